@@ -0,0 +1,374 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor.processor;
+
+import com.qwazr.externalizor.Columnar;
+import com.qwazr.externalizor.Externalized;
+import com.qwazr.externalizor.ExternalizedLayout;
+import com.qwazr.externalizor.FieldAccessor;
+import com.qwazr.externalizor.VarInt;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates an {@link ExternalizedLayout} for each class annotated with {@link Externalized}, and registers
+ * them in META-INF/services so that Externalizor finds them without scanning the classes by reflection.
+ * <p>
+ * The layout also provides a {@link FieldAccessor} per field, reading and writing the field directly when it is
+ * neither private nor final.
+ */
+@SupportedAnnotationTypes("com.qwazr.externalizor.Externalized")
+public class ExternalizedProcessor extends AbstractProcessor {
+
+	final static String SUFFIX = "_ExternalizedLayout";
+
+	private final List<String> layouts = new ArrayList<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+		for (final Element element : roundEnv.getElementsAnnotatedWith(Externalized.class)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				error(element, "@Externalized only applies to classes");
+				continue;
+			}
+			final TypeElement type = (TypeElement) element;
+			if (!isAccessible(type)) {
+				warning(type, "Private classes are not supported, the layout is computed at runtime");
+				continue;
+			}
+			try {
+				layouts.add(generate(type));
+			} catch (IOException e) {
+				error(type, "Cannot generate the layout: " + e.getMessage());
+			}
+		}
+		if (roundEnv.processingOver() && !layouts.isEmpty())
+			writeServices();
+		return true;
+	}
+
+	private void error(final Element element, final String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	private void warning(final Element element, final String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, message, element);
+	}
+
+	private static boolean isAccessible(Element element) {
+		while (element instanceof TypeElement) {
+			if (element.getModifiers().contains(Modifier.PRIVATE))
+				return false;
+			element = element.getEnclosingElement();
+		}
+		return true;
+	}
+
+	/**
+	 * Same rule than the reflection: a public empty constructor is required to instantiate the class.
+	 */
+	private static boolean hasPublicEmptyConstructor(final TypeElement type) {
+		if (type.getModifiers().contains(Modifier.ABSTRACT))
+			return false;
+		if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))
+			return false;
+		for (final ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements()))
+			if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Same rule than the reflection: the fields which are neither static nor transient, in declaration order.
+	 */
+	static List<VariableElement> getFields(final TypeElement type) {
+		final List<VariableElement> fields = new ArrayList<>();
+		for (final VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			final Set<Modifier> modifiers = field.getModifiers();
+			if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT))
+				continue;
+			fields.add(field);
+		}
+		return fields;
+	}
+
+	/**
+	 * Same format than {@link java.lang.reflect.Type#getTypeName()} applied to the generic type of a field.
+	 */
+	private String getTypeName(final TypeMirror type) {
+		switch (type.getKind()) {
+		case ARRAY:
+			return getTypeName(((ArrayType) type).getComponentType()) + "[]";
+		case DECLARED:
+			final DeclaredType declared = (DeclaredType) type;
+			final String binaryName = getBinaryName(declared);
+			if (declared.getTypeArguments().isEmpty())
+				return binaryName;
+			final StringBuilder sb = new StringBuilder();
+			final TypeMirror owner = declared.getEnclosingType();
+			if (owner.getKind() == TypeKind.DECLARED && !((DeclaredType) owner).getTypeArguments().isEmpty())
+				sb.append(getTypeName(owner))
+						.append(binaryName.substring(getBinaryName((DeclaredType) owner).length()));
+			else
+				sb.append(binaryName);
+			String sep = "<";
+			for (final TypeMirror argument : declared.getTypeArguments()) {
+				sb.append(sep).append(getTypeName(argument));
+				sep = ", ";
+			}
+			return sb.append('>').toString();
+		case WILDCARD:
+			final WildcardType wildcard = (WildcardType) type;
+			if (wildcard.getSuperBound() != null)
+				return "? super " + getTypeName(wildcard.getSuperBound());
+			final TypeMirror bound = wildcard.getExtendsBound();
+			if (bound == null || "java.lang.Object".equals(getTypeName(bound)))
+				return "?";
+			return "? extends " + getTypeName(bound);
+		case TYPEVAR:
+			return ((TypeVariable) type).asElement().getSimpleName().toString();
+		default:
+			return type.toString();
+		}
+	}
+
+	private String getBinaryName(final DeclaredType type) {
+		return processingEnv.getElementUtils().getBinaryName((TypeElement) type.asElement()).toString();
+	}
+
+	/**
+	 * @return true if the type is represented by a Class at runtime (no type argument, no type variable)
+	 */
+	private static boolean isClass(final TypeMirror type) {
+		switch (type.getKind()) {
+		case ARRAY:
+			return isClass(((ArrayType) type).getComponentType());
+		case DECLARED:
+			return ((DeclaredType) type).getTypeArguments().isEmpty();
+		default:
+			return type.getKind().isPrimitive();
+		}
+	}
+
+	/**
+	 * @return true if the erasure of the type can be named from the given package
+	 */
+	private boolean isVisible(final TypeMirror type, final String packageName) {
+		final TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+		if (erasure.getKind() == TypeKind.ARRAY)
+			return isVisible(((ArrayType) erasure).getComponentType(), packageName);
+		if (erasure.getKind() != TypeKind.DECLARED)
+			return true;
+		Element element = ((DeclaredType) erasure).asElement();
+		final boolean samePackage =
+				processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().contentEquals(packageName);
+		while (element instanceof TypeElement) {
+			final Set<Modifier> modifiers = element.getModifiers();
+			if (modifiers.contains(Modifier.PRIVATE) || (!samePackage && !modifiers.contains(Modifier.PUBLIC)))
+				return false;
+			element = element.getEnclosingElement();
+		}
+		return true;
+	}
+
+	private String classLiteral(final TypeMirror type) {
+		return processingEnv.getTypeUtils().erasure(type).toString() + ".class";
+	}
+
+	/**
+	 * The private and final fields, and the fields whose types cannot be named by the layout, are accessed using
+	 * {@link FieldAccessor#of(Class, String)}.
+	 */
+	private String getAccessor(final String typeName, final VariableElement field, final String packageName) {
+		final String fieldName = field.getSimpleName().toString();
+		final TypeMirror fieldType = field.asType();
+		final String fallback =
+				FieldAccessor.class.getName() + ".of(" + typeName + ".class, \"" + fieldName + "\")";
+		final Set<Modifier> modifiers = field.getModifiers();
+		if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL) ||
+				!isVisible(fieldType, packageName))
+			return fallback;
+
+		final StringBuilder typeArguments = new StringBuilder("new Class<?>[] {");
+		if (fieldType.getKind() == TypeKind.DECLARED) {
+			String sep = " ";
+			for (final TypeMirror argument : ((DeclaredType) fieldType).getTypeArguments()) {
+				if (!isClass(argument))
+					typeArguments.append(sep).append("null");
+				else if (isVisible(argument, packageName))
+					typeArguments.append(sep).append(classLiteral(argument));
+				else
+					return fallback;
+				sep = ", ";
+			}
+		}
+		typeArguments.append(" }");
+
+		final StringBuilder annotations = new StringBuilder();
+		if (field.getAnnotation(VarInt.class) != null)
+			annotations.append(", ").append(VarInt.class.getName()).append(".class");
+		if (field.getAnnotation(Columnar.class) != null)
+			annotations.append(", ").append(Columnar.class.getName()).append(".class");
+
+		final String valueType;
+		final String accessType;
+		if (fieldType.getKind().isPrimitive()) {
+			valueType = fieldType.toString();
+			accessType = Character.toUpperCase(valueType.charAt(0)) + valueType.substring(1);
+		} else {
+			valueType = "Object";
+			accessType = "";
+		}
+		final String target = "((" + typeName + ") object)." + fieldName;
+		return "new " + FieldAccessor.class.getName() + "(" + typeName + ".class, \"" + fieldName + "\", " +
+				classLiteral(fieldType) + ", \"" + getTypeName(fieldType) + "\", " + typeArguments + annotations +
+				") {\n" +
+				"\t\t\t\t@Override\n" +
+				"\t\t\t\tprotected " + valueType + " get" + accessType + "(final Object object) {\n" +
+				"\t\t\t\t\treturn " + target + ";\n" +
+				"\t\t\t\t}\n\n" +
+				"\t\t\t\t@Override\n" +
+				"\t\t\t\tprotected void set" + accessType + "(final Object object, final " + valueType + " value) {\n" +
+				"\t\t\t\t\t" + target + " = " + (fieldType.getKind().isPrimitive() ?
+				"value" :
+				"(" + processingEnv.getTypeUtils().erasure(fieldType) + ") value") + ";\n" +
+				"\t\t\t\t}\n" +
+				"\t\t\t}";
+	}
+
+	private String generate(final TypeElement type) throws IOException {
+		final String packageName =
+				processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		final String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		final String simpleName =
+				(packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)).replace('$',
+						'_') + SUFFIX;
+		final String className = packageName.isEmpty() ? simpleName : packageName + '.' + simpleName;
+		final String typeName = type.getQualifiedName().toString();
+
+		try (final PrintWriter out = new PrintWriter(
+				processingEnv.getFiler().createSourceFile(className, type).openWriter())) {
+			if (!packageName.isEmpty()) {
+				out.println("package " + packageName + ';');
+				out.println();
+			}
+			out.println("@SuppressWarnings({ \"rawtypes\", \"unchecked\" })");
+			out.println("public final class " + simpleName + " implements " + ExternalizedLayout.class.getName() +
+					"<" + typeName + "> {");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic Class<" + typeName + "> getType() {");
+			out.println("\t\treturn (Class) " + typeName + ".class;");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic String[] getFieldNames() {");
+			out.print("\t\treturn new String[] {");
+			final List<VariableElement> fields = getFields(type);
+			String sep = " ";
+			for (final VariableElement field : fields) {
+				out.print(sep + '"' + field.getSimpleName() + '"');
+				sep = ", ";
+			}
+			out.println(" };");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic " + FieldAccessor.class.getName() + "[] getFieldAccessors() {");
+			out.print("\t\treturn new " + FieldAccessor.class.getName() + "[] {");
+			sep = "\n\t\t\t";
+			for (final VariableElement field : fields) {
+				out.print(sep + getAccessor(typeName, field, packageName));
+				sep = ",\n\t\t\t";
+			}
+			out.println("\n\t\t};");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic java.util.function.Supplier<" + typeName + "> getInstantiator() {");
+			out.println("\t\treturn " + (hasPublicEmptyConstructor(type) ? typeName + "::new" : "null") + ";");
+			out.println("\t}");
+			out.println("}");
+		}
+		return className;
+	}
+
+	/**
+	 * Write the service file. The layouts registered by a previous compilation in the same output are kept, an
+	 * incremental compilation only processes the changed classes.
+	 */
+	private void writeServices() {
+		final String name = "META-INF/services/" + ExternalizedLayout.class.getName();
+		final Set<String> names = new LinkedHashSet<>();
+		try (final BufferedReader reader = new BufferedReader(
+				processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", name).openReader(true))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final int comment = line.indexOf('#');
+				line = (comment == -1 ? line : line.substring(0, comment)).trim();
+				if (!line.isEmpty())
+					names.add(line);
+			}
+		} catch (IOException e) {
+			// No previous service file
+		}
+		names.addAll(layouts);
+		try {
+			final FileObject services =
+					processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", name);
+			try (final Writer writer = services.openWriter()) {
+				for (final String layout : names)
+					writer.write(layout + '\n');
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager()
+					.printMessage(Diagnostic.Kind.ERROR, "Cannot write the service file: " + e.getMessage());
+		}
+	}
+}
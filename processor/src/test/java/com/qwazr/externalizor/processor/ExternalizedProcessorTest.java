@@ -0,0 +1,195 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor.processor;
+
+import com.qwazr.externalizor.ExternalizedLayout;
+import com.qwazr.externalizor.Externalizor;
+import com.qwazr.externalizor.FieldAccessor;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.ServiceLoader;
+
+public class ExternalizedProcessorTest {
+
+	private final static String BASE = "package sample;\n" + "@com.qwazr.externalizor.Externalized\n" +
+			"public class Base {\n" + "	protected long baseValue = 42;\n" + "	static int ignored;\n" + "}\n";
+
+	private final static String SAMPLE = "package sample;\n" + "import java.util.*;\n" +
+			"@com.qwazr.externalizor.Externalized\n" + "public class Sample extends Base {\n" +
+			"	public int id = 1;\n" + "	String name = \"sample\";\n" +
+			"	private final ArrayList<String> tags = new ArrayList<>(Arrays.asList(\"a\", \"b\"));\n" +
+			"	transient int skipped = 3;\n" + "	@com.qwazr.externalizor.VarInt\n" + "	long counter = 1234;\n" +
+			"	public Map<String, Integer> scores = new HashMap<>(Collections.singletonMap(\"a\", 1));\n" +
+			"	public int[] values = { 1, 2, 3 };\n" + "	@com.qwazr.externalizor.Externalized\n" +
+			"	public static class Inner {\n" + "		public double value = 1.5;\n" + "	}\n" + "}\n";
+
+	private final static String OTHER = "package sample;\n" + "@com.qwazr.externalizor.Externalized\n" +
+			"public class Other {\n" + "	public String value = \"other\";\n" + "}\n";
+
+	private static File classes;
+
+	private static JavaFileObject source(final String name, final String code) {
+		return new SimpleJavaFileObject(URI.create("string:///sample/" + name + ".java"), JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+				return code;
+			}
+		};
+	}
+
+	private static void compile(final String classpath, final JavaFileObject... sources) throws IOException {
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		try (final StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+			fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(classes));
+			fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singletonList(classes));
+			final JavaCompiler.CompilationTask task =
+					compiler.getTask(null, fileManager, null, Arrays.asList("-classpath", classpath), null,
+							Arrays.asList(sources));
+			task.setProcessors(Collections.singletonList(new ExternalizedProcessor()));
+			Assert.assertTrue(task.call());
+		}
+	}
+
+	@BeforeClass
+	public static void compile() throws IOException {
+		classes = Files.createTempDirectory("externalizor-processor").toFile();
+		final String classpath = System.getProperty("java.class.path");
+		compile(classpath, source("Base", BASE), source("Sample", SAMPLE));
+		// An incremental compilation: the layouts of the first compilation are kept in the service file
+		compile(classpath + File.pathSeparator + classes, source("Other", OTHER));
+	}
+
+	private static List<String> reflectedFieldNames(final Class<?> clazz) {
+		final List<String> names = new ArrayList<>();
+		for (final Field field : clazz.getDeclaredFields())
+			if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers()))
+				names.add(field.getName());
+		return names;
+	}
+
+	private static byte[] serialize(final Object object) throws IOException, ReflectiveOperationException {
+		try (final ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+			Externalizor.serializeRaw(object, output);
+			return output.toByteArray();
+		}
+	}
+
+	@Test
+	public void generatedLayoutTest() throws IOException, ReflectiveOperationException {
+		final URL[] urls = { classes.toURI().toURL() };
+		final ClassLoader parent = getClass().getClassLoader();
+		try (final URLClassLoader generated = new URLClassLoader(urls, parent)) {
+
+			final List<String> layouts = new ArrayList<>();
+			for (final ExternalizedLayout<?> layout : ServiceLoader.load(ExternalizedLayout.class, generated)) {
+				layouts.add(layout.getType().getName());
+				Assert.assertEquals(reflectedFieldNames(layout.getType()), Arrays.asList(layout.getFieldNames()));
+				Assert.assertNotNull(layout.getInstantiator());
+				final FieldAccessor[] accessors = layout.getFieldAccessors();
+				Assert.assertNotNull(accessors);
+				Assert.assertEquals(layout.getFieldNames().length, accessors.length);
+			}
+			Collections.sort(layouts);
+			Assert.assertEquals(Arrays.asList("sample.Base", "sample.Other", "sample.Sample", "sample.Sample$Inner"),
+					layouts);
+
+			// The accessible fields are read and written by the generated code, without reflection
+			final Class<?> sampleClass = generated.loadClass("sample.Sample");
+			for (final ExternalizedLayout<?> layout : ServiceLoader.load(ExternalizedLayout.class, generated)) {
+				if (layout.getType() != sampleClass)
+					continue;
+				final FieldAccessor[] accessors = layout.getFieldAccessors();
+				for (int i = 0; i < accessors.length; i++) {
+					final Field field = sampleClass.getDeclaredField(layout.getFieldNames()[i]);
+					Assert.assertEquals(field.getGenericType().getTypeName() + " sample.Sample." + field.getName(),
+							accessors[i].toString());
+					Assert.assertEquals(Modifier.isPrivate(field.getModifiers()),
+							accessors[i].getClass().getEnclosingClass() == FieldAccessor.class);
+				}
+			}
+
+			// The same class loaded without the services: the layout is computed by reflection
+			try (final URLClassLoader reflected = new URLClassLoader(urls, parent) {
+				@Override
+				public URL findResource(final String name) {
+					return name.startsWith("META-INF/services/") ? null : super.findResource(name);
+				}
+
+				@Override
+				public Enumeration<URL> findResources(final String name) throws IOException {
+					return name.startsWith("META-INF/services/") ?
+							Collections.emptyEnumeration() :
+							super.findResources(name);
+				}
+			}) {
+				// The layouts are found using the class loader of the class, not the one of the current thread
+				final Object sample = generated.loadClass("sample.Sample").newInstance();
+				final Object sampleReflected = reflected.loadClass("sample.Sample").newInstance();
+
+				final byte[] bytes = serialize(sample);
+				Assert.assertArrayEquals(serialize(sampleReflected), bytes);
+
+				final Object read = Externalizor.deserializeRaw(new ByteArrayInputStream(bytes), sample.getClass());
+				Assert.assertArrayEquals(bytes, serialize(read));
+			}
+		}
+	}
+
+	@Test
+	public void brokenProviderTest() throws IOException, ReflectiveOperationException {
+		final File broken = Files.createTempDirectory("externalizor-broken").toFile();
+		final File services = new File(broken, "META-INF/services/" + ExternalizedLayout.class.getName());
+		Assert.assertTrue(services.getParentFile().mkdirs());
+		Files.write(services.toPath(), Collections.singletonList("sample.Missing_ExternalizedLayout"));
+
+		final URL[] urls = { broken.toURI().toURL(), classes.toURI().toURL() };
+		final ClassLoader previous = Thread.currentThread().getContextClassLoader();
+		try (final URLClassLoader loader = new URLClassLoader(urls, getClass().getClassLoader())) {
+			Thread.currentThread().setContextClassLoader(loader);
+			// The missing provider is skipped, the other layouts are still found
+			Assert.assertEquals(4, Externalizor.warmupLayouts());
+			final Object sample = loader.loadClass("sample.Other").newInstance();
+			final byte[] bytes = serialize(sample);
+			Assert.assertArrayEquals(bytes,
+					serialize(Externalizor.deserializeRaw(new ByteArrayInputStream(bytes), sample.getClass())));
+		} finally {
+			Thread.currentThread().setContextClassLoader(previous);
+		}
+	}
+}
@@ -22,201 +22,215 @@ import org.xerial.snappy.Snappy;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.lang.reflect.Field;
+import java.util.function.IntFunction;
 
 interface ArrayExternalizer<T, V> extends Externalizer<T, V> {
 
-	static FieldExternalizer array(final Field field, final Class<?> clazz) {
+	static FieldExternalizer array(final FieldAccessor accessor, final Class<?> clazz) {
 		final Class<?> componentType = clazz.getComponentType();
 		if (componentType.isPrimitive()) {
 			if (Integer.TYPE.equals(componentType))
-				return new FieldArrayIntegerExternalizer(field);
+				return new FieldArrayIntegerExternalizer(accessor);
 			if (Short.TYPE.equals(componentType))
-				return new FieldArrayShortExternalizer(field);
+				return new FieldArrayShortExternalizer(accessor);
 			if (Long.TYPE.equals(componentType))
-				return new FieldArrayLongExternalizer(field);
+				return new FieldArrayLongExternalizer(accessor);
 			if (Float.TYPE.equals(componentType))
-				return new FieldArrayFloatExternalizer(field);
+				return new FieldArrayFloatExternalizer(accessor);
 			if (Double.TYPE.equals(componentType))
-				return new FieldArrayDoubleExternalizer(field);
+				return new FieldArrayDoubleExternalizer(accessor);
 			if (Boolean.TYPE.equals(componentType))
-				return new FieldArrayBooleanExternalizer(field);
+				return new FieldArrayBooleanExternalizer(accessor);
 			if (Byte.TYPE.equals(componentType))
-				return new FieldArrayByteExternalizer(field);
+				return new FieldArrayByteExternalizer(accessor);
 			if (Character.TYPE.equals(componentType))
-				return new FieldArrayCharExternalizer(field);
+				return new FieldArrayCharExternalizer(accessor);
 		}
-		final Externalizer externalizer = Externalizer.of(componentType);
+		final Externalizer externalizer = Externalizer.component(componentType);
 		if (externalizer != null)
-			return new FieldArrayLangObjectExternalizer(field, componentType, externalizer);
+			return new FieldArrayLangObjectExternalizer(accessor, componentType, externalizer);
 		return null;
 	}
 
-	static void writeBytes(final byte[] bytes, final ObjectOutput out) throws IOException {
-		out.writeInt(bytes.length);
-		out.write(bytes);
+	IntFunction<int[]> INT_ARRAY = byteLength -> new int[byteLength >> 2];
+	IntFunction<long[]> LONG_ARRAY = byteLength -> new long[byteLength >> 3];
+	IntFunction<short[]> SHORT_ARRAY = byteLength -> new short[byteLength >> 1];
+	IntFunction<double[]> DOUBLE_ARRAY = byteLength -> new double[byteLength >> 3];
+	IntFunction<float[]> FLOAT_ARRAY = byteLength -> new float[byteLength >> 2];
+	IntFunction<byte[]> BYTE_ARRAY = byte[]::new;
+	IntFunction<char[]> CHAR_ARRAY = byteLength -> new char[byteLength >> 1];
+
+	/**
+	 * Write the length and the Snappy compression of a primitive array.
+	 * The compression is done straight into the BytesOutput, or into a pooled buffer.
+	 * A large array is compressed in parallel chunks (see {@link ChunkedSnappy}).
+	 *
+	 * @param array      the primitive array
+	 * @param byteLength the size of the array in bytes
+	 * @param out        the output
+	 * @throws IOException if the compression fails
+	 */
+	static void writeSnappy(final Object array, final int byteLength, final ObjectOutput out) throws IOException {
+		if (ChunkedSnappy.isChunked(byteLength)) {
+			ChunkedSnappy.write(array, byteLength, out);
+			return;
+		}
+		if (out instanceof BytesOutput) {
+			((BytesOutput) out).writeSnappy(array, byteLength);
+			return;
+		}
+		final byte[] buffer = Pool.BUFFERS.acquire(Snappy.maxCompressedLength(byteLength));
+		try {
+			final int length = Snappy.rawCompress(array, 0, byteLength, buffer, 0);
+			out.writeInt(length);
+			out.write(buffer, 0, length);
+		} finally {
+			Pool.BUFFERS.release(buffer);
+		}
 	}
 
-	static byte[] readBytes(final ObjectInput in) throws IOException {
-		final byte[] bytes = new byte[in.readInt()];
-		in.readFully(bytes);
-		return bytes;
+	/**
+	 * Read a primitive array written by {@link #writeSnappy(Object, int, ObjectOutput)}.
+	 *
+	 * @param in           the input
+	 * @param arrayOfBytes returns a new primitive array for the given size in bytes
+	 * @param <V>          the type of the array
+	 * @return the uncompressed array
+	 * @throws IOException if the uncompression fails
+	 */
+	static <V> V readSnappy(final ObjectInput in, final IntFunction<V> arrayOfBytes) throws IOException {
+		if (in instanceof BytesInput)
+			return ((BytesInput) in).readSnappy(arrayOfBytes);
+		final int length = in.readInt();
+		if (length == 0)
+			return ChunkedSnappy.read(in, arrayOfBytes);
+		final byte[] buffer = Pool.BUFFERS.acquire(length);
+		try {
+			in.readFully(buffer, 0, length);
+			final V array = arrayOfBytes.apply(Snappy.uncompressedLength(buffer, 0, length));
+			Snappy.rawUncompress(buffer, 0, length, array, 0);
+			return array;
+		} finally {
+			Pool.BUFFERS.release(buffer);
+		}
 	}
 
 	abstract class FieldArraySnappyExternalizer<T, V> extends FieldExternalizer.FieldObjectExternalizer<T, V> {
 
-		protected FieldArraySnappyExternalizer(final Field field) {
-			super(field);
-		}
+		private final IntFunction<V> arrayOfBytes;
 
-		protected abstract V uncompress(final byte[] bytes) throws IOException;
+		protected FieldArraySnappyExternalizer(final FieldAccessor accessor, final IntFunction<V> arrayOfBytes) {
+			super(accessor);
+			this.arrayOfBytes = arrayOfBytes;
+		}
 
-		protected abstract byte[] compress(final V value) throws IOException;
+		protected abstract int byteLength(final V value);
 
 		final protected void writeValue(final V value, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			writeBytes(compress(value), out);
+			writeSnappy(value, byteLength(value), out);
 		}
 
 		@Override
-		final public V readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
-			if (!in.readBoolean())
-				return null;
-			return uncompress(readBytes(in));
+		final protected V readValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			return readSnappy(in, arrayOfBytes);
 		}
 
 	}
 
 	final class FieldArrayIntegerExternalizer<T> extends FieldArraySnappyExternalizer<T, int[]> {
 
-		private FieldArrayIntegerExternalizer(final Field field) {
-			super(field);
+		private FieldArrayIntegerExternalizer(final FieldAccessor accessor) {
+			super(accessor, INT_ARRAY);
 		}
 
 		@Override
-		final protected int[] uncompress(final byte[] bytes) throws IOException {
-			return Snappy.uncompressIntArray(bytes);
-		}
-
-		@Override
-		final protected byte[] compress(final int[] value) throws IOException {
-			return Snappy.compress(value);
+		final protected int byteLength(final int[] value) {
+			return value.length << 2;
 		}
 	}
 
 	final class FieldArrayLongExternalizer<T> extends FieldArraySnappyExternalizer<T, long[]> {
 
-		private FieldArrayLongExternalizer(final Field field) {
-			super(field);
+		private FieldArrayLongExternalizer(final FieldAccessor accessor) {
+			super(accessor, LONG_ARRAY);
 		}
 
 		@Override
-		final protected long[] uncompress(final byte[] bytes) throws IOException {
-			return Snappy.uncompressLongArray(bytes);
-		}
-
-		@Override
-		final protected byte[] compress(final long[] value) throws IOException {
-			return Snappy.compress(value);
+		final protected int byteLength(final long[] value) {
+			return value.length << 3;
 		}
 	}
 
 	final class FieldArrayShortExternalizer<T> extends FieldArraySnappyExternalizer<T, short[]> {
 
-		private FieldArrayShortExternalizer(final Field field) {
-			super(field);
-		}
-
-		@Override
-		final protected short[] uncompress(final byte[] bytes) throws IOException {
-			return Snappy.uncompressShortArray(bytes);
+		private FieldArrayShortExternalizer(final FieldAccessor accessor) {
+			super(accessor, SHORT_ARRAY);
 		}
 
 		@Override
-		final protected byte[] compress(final short[] value) throws IOException {
-			return Snappy.compress(value);
+		final protected int byteLength(final short[] value) {
+			return value.length << 1;
 		}
 	}
 
 	final class FieldArrayDoubleExternalizer<T> extends FieldArraySnappyExternalizer<T, double[]> {
 
-		private FieldArrayDoubleExternalizer(final Field field) {
-			super(field);
+		private FieldArrayDoubleExternalizer(final FieldAccessor accessor) {
+			super(accessor, DOUBLE_ARRAY);
 		}
 
 		@Override
-		final protected double[] uncompress(final byte[] bytes) throws IOException {
-			return Snappy.uncompressDoubleArray(bytes);
-		}
-
-		@Override
-		final protected byte[] compress(final double[] value) throws IOException {
-			return Snappy.compress(value);
+		final protected int byteLength(final double[] value) {
+			return value.length << 3;
 		}
 	}
 
 	final class FieldArrayFloatExternalizer<T> extends FieldArraySnappyExternalizer<T, float[]> {
 
-		private FieldArrayFloatExternalizer(final Field field) {
-			super(field);
-		}
-
-		@Override
-		final protected float[] uncompress(final byte[] bytes) throws IOException {
-			return Snappy.uncompressFloatArray(bytes);
+		private FieldArrayFloatExternalizer(final FieldAccessor accessor) {
+			super(accessor, FLOAT_ARRAY);
 		}
 
 		@Override
-		final protected byte[] compress(final float[] value) throws IOException {
-			return Snappy.compress(value);
+		final protected int byteLength(final float[] value) {
+			return value.length << 2;
 		}
 	}
 
 	final class FieldArrayByteExternalizer<T> extends FieldArraySnappyExternalizer<T, byte[]> {
 
-		private FieldArrayByteExternalizer(final Field field) {
-			super(field);
-		}
-
-		@Override
-		final protected byte[] uncompress(final byte[] bytes) throws IOException {
-			return Snappy.uncompress(bytes);
+		private FieldArrayByteExternalizer(final FieldAccessor accessor) {
+			super(accessor, BYTE_ARRAY);
 		}
 
 		@Override
-		final protected byte[] compress(final byte[] value) throws IOException {
-			return Snappy.compress(value);
+		final protected int byteLength(final byte[] value) {
+			return value.length;
 		}
 	}
 
 	final class FieldArrayCharExternalizer<T> extends FieldArraySnappyExternalizer<T, char[]> {
 
-		private FieldArrayCharExternalizer(final Field field) {
-			super(field);
-		}
-
-		@Override
-		final protected char[] uncompress(final byte[] bytes) throws IOException {
-			return Snappy.uncompressCharArray(bytes);
+		private FieldArrayCharExternalizer(final FieldAccessor accessor) {
+			super(accessor, CHAR_ARRAY);
 		}
 
 		@Override
-		final protected byte[] compress(final char[] value) throws IOException {
-			return Snappy.compress(value);
+		final protected int byteLength(final char[] value) {
+			return value.length << 1;
 		}
 	}
 
 	final class FieldArrayBooleanExternalizer<T> extends FieldExternalizer.FieldObjectExternalizer<T, boolean[]> {
 
-		private FieldArrayBooleanExternalizer(final Field field) {
-			super(field);
+		private FieldArrayBooleanExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
-		public boolean[] readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
-			if (!in.readBoolean())
-				return null;
-			final boolean[] array = new boolean[in.readInt()];
+		final protected boolean[] readValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			final boolean[] array = new boolean[VarInts.readSize(in)];
 			final RoaringBitmap bitmap = new RoaringBitmap();
 			bitmap.readExternal(in);
 			bitmap.forEach((IntConsumer) i -> array[i] = true);
@@ -225,7 +239,7 @@ interface ArrayExternalizer<T, V> extends Externalizer<T, V> {
 
 		@Override
 		final protected void writeValue(final boolean[] value, final ObjectOutput out) throws IOException {
-			out.writeInt(value.length);
+			VarInts.writeSize(out, value.length);
 			final RoaringBitmap bitmap = new RoaringBitmap();
 			for (int i = 0; i < value.length; i++)
 				if (value[i])
@@ -240,18 +254,16 @@ interface ArrayExternalizer<T, V> extends Externalizer<T, V> {
 		private final Externalizer componentExternalizer;
 		private final Class<?> componentType;
 
-		FieldArrayLangObjectExternalizer(final Field field, final Class<?> componentType,
+		FieldArrayLangObjectExternalizer(final FieldAccessor accessor, final Class<?> componentType,
 				final Externalizer componentExternalizer) {
-			super(field);
+			super(accessor);
 			this.componentExternalizer = componentExternalizer;
 			this.componentType = componentType;
 		}
 
 		@Override
-		final public Object[] readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
-			if (!in.readBoolean())
-				return null;
-			final Object[] array = (Object[]) java.lang.reflect.Array.newInstance(componentType, in.readInt());
+		final protected Object[] readValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			final Object[] array = (Object[]) java.lang.reflect.Array.newInstance(componentType, VarInts.readSize(in));
 			for (int i = 0; i < array.length; i++)
 				array[i] = componentExternalizer.readObject(in);
 			return array;
@@ -260,7 +272,7 @@ interface ArrayExternalizer<T, V> extends Externalizer<T, V> {
 		@Override
 		final protected void writeValue(final Object[] value, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeInt(value.length);
+			VarInts.writeSize(out, value.length);
 			for (final Object item : value)
 				componentExternalizer.writeExternal(item, out);
 		}
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Builds in one step the collections and the maps whose add is expensive: a copy of the whole array for each
+ * element (copy-on-write), or a search and a rebalancing of a tree (sorted). The elements are read first in an array.
+ * <p>
+ * The sorted collections are built in linear time from the elements when they are in their natural order, which is
+ * the order of the serialization. Otherwise the elements are added one by one.
+ */
+final class BulkCollections {
+
+	private final static Map<Class<?>, Function<Object[], Collection<?>>> COLLECTIONS = new HashMap<>();
+
+	private final static Map<Class<?>, BiFunction<Object[], Object[], Map<?, ?>>> MAPS = new HashMap<>();
+
+	static {
+		COLLECTIONS.put(CopyOnWriteArrayList.class, CopyOnWriteArrayList::new);
+		COLLECTIONS.put(CopyOnWriteArraySet.class, elements -> new CopyOnWriteArraySet<>(Arrays.asList(elements)));
+		COLLECTIONS.put(TreeSet.class, elements -> isSorted(elements) ?
+				new TreeSet<>(new SortedArraySet(elements)) :
+				new TreeSet<>(Arrays.asList(elements)));
+		COLLECTIONS.put(ConcurrentSkipListSet.class, elements -> isSorted(elements) ?
+				new ConcurrentSkipListSet<>(new SortedArraySet(elements)) :
+				new ConcurrentSkipListSet<>(Arrays.asList(elements)));
+		MAPS.put(TreeMap.class, (keys, values) -> isSorted(keys) ?
+				new TreeMap<>(new SortedArrayMap(keys, values)) :
+				put(new TreeMap<>(), keys, values));
+		MAPS.put(ConcurrentSkipListMap.class, (keys, values) -> isSorted(keys) ?
+				new ConcurrentSkipListMap<>(new SortedArrayMap(keys, values)) :
+				put(new ConcurrentSkipListMap<>(), keys, values));
+	}
+
+	private BulkCollections() {
+	}
+
+	/**
+	 * @param clazz the concrete class of the collection
+	 * @param <C>   the type of the collection
+	 * @return the function building the collection from its elements, or null if the elements can be added one by one
+	 */
+	static <C extends Collection<?>> Function<Object[], C> collection(final Class<?> clazz) {
+		return (Function<Object[], C>) (Function) COLLECTIONS.get(clazz);
+	}
+
+	/**
+	 * @param clazz the concrete class of the map
+	 * @param <M>   the type of the map
+	 * @return the function building the map from its keys and its values, or null if the entries can be put one by
+	 * one
+	 */
+	static <M extends Map<?, ?>> BiFunction<Object[], Object[], M> map(final Class<?> clazz) {
+		return (BiFunction<Object[], Object[], M>) (BiFunction) MAPS.get(clazz);
+	}
+
+	/**
+	 * @return true if the elements are comparable and strictly increasing in their natural order
+	 */
+	private static boolean isSorted(final Object[] elements) {
+		if (elements.length == 0)
+			return true;
+		try {
+			Comparable previous = (Comparable) elements[0];
+			if (previous == null)
+				return false;
+			for (int i = 1; i < elements.length; i++) {
+				final Comparable element = (Comparable) elements[i];
+				if (element == null || previous.compareTo(element) >= 0)
+					return false;
+				previous = element;
+			}
+			return true;
+		} catch (ClassCastException e) {
+			// Let the collection report the element which is not comparable
+			return false;
+		}
+	}
+
+	private static <M extends Map<Object, Object>> M put(final M map, final Object[] keys, final Object[] values) {
+		for (int i = 0; i < keys.length; i++)
+			map.put(keys[i], values[i]);
+		return map;
+	}
+
+	private static abstract class ArrayIterator<E> implements Iterator<E> {
+
+		private final int length;
+		private int i;
+
+		private ArrayIterator(final int length) {
+			this.length = length;
+		}
+
+		abstract E get(final int i);
+
+		@Override
+		final public boolean hasNext() {
+			return i < length;
+		}
+
+		@Override
+		final public E next() {
+			if (i >= length)
+				throw new NoSuchElementException();
+			return get(i++);
+		}
+	}
+
+	/**
+	 * A read-only view of sorted elements, only iterated by the copy constructors of the sorted collections
+	 */
+	private final static class SortedArraySet extends AbstractSet<Object> implements SortedSet<Object> {
+
+		private final Object[] elements;
+
+		private SortedArraySet(final Object[] elements) {
+			this.elements = elements;
+		}
+
+		@Override
+		final public Iterator<Object> iterator() {
+			return new ArrayIterator<Object>(elements.length) {
+				@Override
+				final Object get(final int i) {
+					return elements[i];
+				}
+			};
+		}
+
+		@Override
+		final public int size() {
+			return elements.length;
+		}
+
+		@Override
+		final public Comparator<? super Object> comparator() {
+			return null;
+		}
+
+		@Override
+		final public SortedSet<Object> subSet(final Object fromElement, final Object toElement) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		final public SortedSet<Object> headSet(final Object toElement) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		final public SortedSet<Object> tailSet(final Object fromElement) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		final public Object first() {
+			if (elements.length == 0)
+				throw new NoSuchElementException();
+			return elements[0];
+		}
+
+		@Override
+		final public Object last() {
+			if (elements.length == 0)
+				throw new NoSuchElementException();
+			return elements[elements.length - 1];
+		}
+	}
+
+	/**
+	 * A read-only view of entries sorted by key, only iterated by the copy constructors of the sorted maps
+	 */
+	private final static class SortedArrayMap extends AbstractMap<Object, Object> implements SortedMap<Object, Object> {
+
+		private final Object[] keys;
+		private final Object[] values;
+
+		private SortedArrayMap(final Object[] keys, final Object[] values) {
+			this.keys = keys;
+			this.values = values;
+		}
+
+		@Override
+		final public Set<Entry<Object, Object>> entrySet() {
+			return new AbstractSet<Entry<Object, Object>>() {
+
+				@Override
+				final public Iterator<Entry<Object, Object>> iterator() {
+					return new ArrayIterator<Entry<Object, Object>>(keys.length) {
+						@Override
+						final Entry<Object, Object> get(final int i) {
+							return new SimpleImmutableEntry<>(keys[i], values[i]);
+						}
+					};
+				}
+
+				@Override
+				final public int size() {
+					return keys.length;
+				}
+			};
+		}
+
+		@Override
+		final public Comparator<? super Object> comparator() {
+			return null;
+		}
+
+		@Override
+		final public SortedMap<Object, Object> subMap(final Object fromKey, final Object toKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		final public SortedMap<Object, Object> headMap(final Object toKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		final public SortedMap<Object, Object> tailMap(final Object fromKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		final public Object firstKey() {
+			if (keys.length == 0)
+				throw new NoSuchElementException();
+			return keys[0];
+		}
+
+		@Override
+		final public Object lastKey() {
+			if (keys.length == 0)
+				throw new NoSuchElementException();
+			return keys[keys.length - 1];
+		}
+	}
+}
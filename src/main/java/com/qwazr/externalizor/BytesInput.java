@@ -0,0 +1,589 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * A binary ObjectInput reading from a byte array, the counterpart of {@link BytesOutput}.
+ * The Java serialization is only started when an object is read, and shared by the whole stream.
+ */
+final class BytesInput implements ObjectInput {
+
+	private final byte[] buffer;
+	private final int limit;
+	private int pos;
+
+	private ObjectInputStream objectInput;
+	private int isolated;
+
+	private String[] strings;
+	private int stringCount;
+
+	private IdentityHashMap<Class<?>, Enum<?>[]> enumConstants;
+
+	private Object root;
+	private Object[] references;
+	private int referenceCount;
+
+	private boolean nullBitmap;
+	private int nullsPosition = -1;
+	private int nullsIndex;
+
+	private boolean varInts;
+
+	BytesInput(final byte[] buffer, final int offset, final int length) {
+		this.buffer = buffer;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	BytesInput(final byte[] buffer) {
+		this(buffer, 0, buffer.length);
+	}
+
+	/**
+	 * @param in the input of an externalizer
+	 * @return the input as a BytesInput
+	 * @throws StreamCorruptedException if the input is not a BytesInput, the stream state is not available
+	 */
+	static BytesInput of(final ObjectInput in) throws StreamCorruptedException {
+		if (!(in instanceof BytesInput))
+			throw new StreamCorruptedException("The state of the stream is not available");
+		return (BytesInput) in;
+	}
+
+	/**
+	 * @return the position in the byte array
+	 */
+	final int position() {
+		return pos;
+	}
+
+	final static int NO_NULL_BITMAP = -1;
+
+	/**
+	 * @param flags the modes of the writer, read in the format byte (see {@link BytesOutput#formatFlags()})
+	 * @return the flags
+	 * @throws StreamCorruptedException if a flag is unknown
+	 */
+	static int checkFormatFlags(final int flags) throws StreamCorruptedException {
+		if ((flags & ~(BytesOutput.NULL_BITMAP | BytesOutput.VAR_INTS)) != 0)
+			throw new StreamCorruptedException("Unknown format flags: " + flags);
+		return flags;
+	}
+
+	/**
+	 * Use the modes of the writer. They are disabled by default.
+	 *
+	 * @param flags the flags checked by {@link #checkFormatFlags(int)}
+	 */
+	final void setFormatFlags(final int flags) {
+		nullBitmap = (flags & BytesOutput.NULL_BITMAP) != 0;
+		varInts = (flags & BytesOutput.VAR_INTS) != 0;
+	}
+
+	/**
+	 * Read the null bitmap of an object written by {@link BytesOutput#beginNulls(int)}
+	 *
+	 * @param fields the number of nullable fields of the object
+	 * @return the state of the bitmap of the enclosing object, given back to {@link #endNulls(long)}
+	 * @throws EOFException if the stream ends
+	 */
+	final long beginNulls(final int fields) throws EOFException {
+		final long state = ((long) nullsPosition << 32) | (nullsIndex & 0xFFFFFFFFL);
+		if (!nullBitmap || fields == 0) {
+			nullsPosition = -1;
+			return state;
+		}
+		nullsPosition = require((fields + 7) >>> 3);
+		nullsIndex = 0;
+		return state;
+	}
+
+	final void endNulls(final long state) {
+		nullsPosition = (int) (state >> 32);
+		nullsIndex = (int) state;
+	}
+
+	/**
+	 * @return the next null flag of the bitmap of the current object: 1 for null, 0 otherwise, or
+	 * {@link #NO_NULL_BITMAP} if the flag is written in the stream
+	 */
+	final int readNullBit() {
+		if (nullsPosition < 0)
+			return NO_NULL_BITMAP;
+		final int bit = (buffer[nullsPosition + (nullsIndex >>> 3)] >>> (nullsIndex & 7)) & 1;
+		nullsIndex++;
+		return bit;
+	}
+
+	/**
+	 * Skip bytes read by the caller straight from the array returned by {@link #buffer()}
+	 *
+	 * @param length the number of bytes
+	 * @return the position of the bytes
+	 * @throws EOFException if the stream ends
+	 */
+	final int consume(final int length) throws EOFException {
+		return require(length);
+	}
+
+	/**
+	 * @return the byte array
+	 */
+	final byte[] buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Move to a position of the byte array
+	 *
+	 * @param position the new position
+	 * @throws EOFException if the position is after the end
+	 */
+	final void seek(final int position) throws EOFException {
+		if (position < 0 || position > limit)
+			throw new EOFException();
+		pos = position;
+	}
+
+	/**
+	 * Uncompress a primitive array written by {@link BytesOutput#writeSnappy(Object, int)} straight from the buffer.
+	 *
+	 * @param arrayOfBytes returns a new primitive array for the given size in bytes
+	 * @param <V>          the type of the array
+	 * @return the uncompressed array
+	 * @throws IOException if the uncompression fails
+	 */
+	final <V> V readSnappy(final IntFunction<V> arrayOfBytes) throws IOException {
+		final int length = readSize();
+		if (length == 0)
+			return ChunkedSnappy.read(this, arrayOfBytes);
+		final int p = require(length);
+		final V array = arrayOfBytes.apply(Snappy.uncompressedLength(buffer, p, length));
+		Snappy.rawUncompress(buffer, p, length, array, 0);
+		return array;
+	}
+
+	/**
+	 * Read a variable length integer written by {@link BytesOutput#writeVarInt(int)}
+	 *
+	 * @return the value
+	 * @throws IOException if the stream ends or the integer is longer than 5 bytes
+	 */
+	final int readVarInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final int b = buffer[require(1)];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new StreamCorruptedException("Malformed variable length integer");
+	}
+
+	/**
+	 * Read a variable length long written by {@link BytesOutput#writeVarLong(long)}
+	 *
+	 * @return the value
+	 * @throws IOException if the stream ends or the long is longer than 10 bytes
+	 */
+	final long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			final int b = buffer[require(1)];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new StreamCorruptedException("Malformed variable length long");
+	}
+
+	/**
+	 * @return true if the ints, the longs and the lengths are read with a variable length, as told by the format byte
+	 */
+	final boolean isVarInts() {
+		return varInts;
+	}
+
+	/**
+	 * @return an int written by {@link BytesOutput#writeCompactInt(int)}
+	 * @throws IOException if the stream ends or the integer is malformed
+	 */
+	final int readCompactInt() throws IOException {
+		if (!isVarInts())
+			return readInt();
+		final int v = readVarInt();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * @return a long written by {@link BytesOutput#writeCompactLong(long)}
+	 * @throws IOException if the stream ends or the long is malformed
+	 */
+	final long readCompactLong() throws IOException {
+		if (!isVarInts())
+			return readLong();
+		final long v = readVarLong();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * @return a size written by {@link BytesOutput#writeSize(int)}
+	 * @throws IOException if the stream ends or the size is negative
+	 */
+	final int readSize() throws IOException {
+		final int size = isVarInts() ? readVarInt() : readInt();
+		if (size < 0)
+			throw new StreamCorruptedException("Negative size: " + size);
+		return size;
+	}
+
+	/**
+	 * Add a string to the string table of the stream
+	 *
+	 * @param value the string read inline
+	 * @return the string
+	 */
+	final String addString(final String value) {
+		if (strings == null)
+			strings = new String[16];
+		else if (stringCount == strings.length)
+			strings = Arrays.copyOf(strings, stringCount << 1);
+		strings[stringCount++] = value;
+		return value;
+	}
+
+	/**
+	 * @param index the index in the string table
+	 * @return the instance read the first time
+	 * @throws StreamCorruptedException if the index is not in the table
+	 */
+	final String getString(final int index) throws StreamCorruptedException {
+		if (index < 0 || index >= stringCount)
+			throw new StreamCorruptedException("Unknown string reference: " + index);
+		return strings[index];
+	}
+
+	/**
+	 * Add an object to the reference table of the stream, before its fields are read
+	 *
+	 * @param object the new object
+	 */
+	final void addReference(final Object object) {
+		if (references == null) {
+			references = new Object[16];
+			references[0] = root;
+		} else if (referenceCount == references.length)
+			references = Arrays.copyOf(references, referenceCount << 1);
+		references[referenceCount++] = object;
+	}
+
+	/**
+	 * Add the root object of the stream to the reference table, if the table is empty. The table is only allocated
+	 * when a second object is added: the objects written without tracking only have the root.
+	 *
+	 * @param object the object read first
+	 */
+	final void referenceRoot(final Object object) {
+		if (referenceCount == 0) {
+			root = object;
+			referenceCount = 1;
+		}
+	}
+
+	/**
+	 * @param handle the handle of an object already read
+	 * @return the object
+	 * @throws StreamCorruptedException if the handle is not in the table
+	 */
+	final Object getReference(final int handle) throws StreamCorruptedException {
+		if (handle < 0 || handle >= referenceCount)
+			throw new StreamCorruptedException("Unknown object reference: " + handle);
+		return references == null ? root : references[handle];
+	}
+
+	/**
+	 * The constants of an enum already read in the stream, indexed by the ordinals of the writer
+	 *
+	 * @param enumType the type of the enum
+	 * @param minSize  the minimal length of the returned array
+	 * @return the constants, null for an ordinal not read yet
+	 */
+	final Enum<?>[] enumConstants(final Class<?> enumType, final int minSize) {
+		if (enumConstants == null)
+			enumConstants = new IdentityHashMap<>();
+		Enum<?>[] constants = enumConstants.get(enumType);
+		if (constants == null || constants.length < minSize) {
+			constants = constants == null ? new Enum<?>[minSize] : Arrays.copyOf(constants, minSize);
+			enumConstants.put(enumType, constants);
+		}
+		return constants;
+	}
+
+	private int require(final int length) throws EOFException {
+		final int start = pos;
+		if (length > limit - start)
+			throw new EOFException();
+		pos = start + length;
+		return start;
+	}
+
+	@Override
+	final public int read() {
+		return pos < limit ? buffer[pos++] & 0xFF : -1;
+	}
+
+	@Override
+	final public int read(final byte[] b) {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	final public int read(final byte[] b, final int off, final int len) {
+		if (len == 0)
+			return 0;
+		final int available = limit - pos;
+		if (available <= 0)
+			return -1;
+		final int length = Math.min(len, available);
+		System.arraycopy(buffer, pos, b, off, length);
+		pos += length;
+		return length;
+	}
+
+	@Override
+	final public long skip(final long n) {
+		final int length = (int) Math.max(0, Math.min(n, limit - pos));
+		pos += length;
+		return length;
+	}
+
+	@Override
+	final public int available() {
+		return limit - pos;
+	}
+
+	@Override
+	final public void readFully(final byte[] b) throws EOFException {
+		readFully(b, 0, b.length);
+	}
+
+	@Override
+	final public void readFully(final byte[] b, final int off, final int len) throws EOFException {
+		System.arraycopy(buffer, require(len), b, off, len);
+	}
+
+	@Override
+	final public int skipBytes(final int n) {
+		return (int) skip(n);
+	}
+
+	@Override
+	final public boolean readBoolean() throws EOFException {
+		return buffer[require(1)] != 0;
+	}
+
+	@Override
+	final public byte readByte() throws EOFException {
+		return buffer[require(1)];
+	}
+
+	@Override
+	final public int readUnsignedByte() throws EOFException {
+		return buffer[require(1)] & 0xFF;
+	}
+
+	@Override
+	final public short readShort() throws EOFException {
+		final int p = require(2);
+		return (short) (((buffer[p] & 0xFF) << 8) | (buffer[p + 1] & 0xFF));
+	}
+
+	@Override
+	final public int readUnsignedShort() throws EOFException {
+		final int p = require(2);
+		return ((buffer[p] & 0xFF) << 8) | (buffer[p + 1] & 0xFF);
+	}
+
+	@Override
+	final public char readChar() throws EOFException {
+		return (char) readUnsignedShort();
+	}
+
+	@Override
+	final public int readInt() throws EOFException {
+		final int p = require(4);
+		return ((buffer[p] & 0xFF) << 24) | ((buffer[p + 1] & 0xFF) << 16) | ((buffer[p + 2] & 0xFF) << 8) |
+				(buffer[p + 3] & 0xFF);
+	}
+
+	@Override
+	final public long readLong() throws EOFException {
+		final int p = require(8);
+		return ((long) (buffer[p] & 0xFF) << 56) | ((long) (buffer[p + 1] & 0xFF) << 48) |
+				((long) (buffer[p + 2] & 0xFF) << 40) | ((long) (buffer[p + 3] & 0xFF) << 32) |
+				((long) (buffer[p + 4] & 0xFF) << 24) | ((buffer[p + 5] & 0xFF) << 16) |
+				((buffer[p + 6] & 0xFF) << 8) | (buffer[p + 7] & 0xFF);
+	}
+
+	@Override
+	final public float readFloat() throws EOFException {
+		return Float.intBitsToFloat(readInt());
+	}
+
+	@Override
+	final public double readDouble() throws EOFException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	@Override
+	@Deprecated
+	final public String readLine() {
+		if (pos >= limit)
+			return null;
+		final StringBuilder sb = new StringBuilder();
+		while (pos < limit) {
+			final int c = buffer[pos++] & 0xFF;
+			if (c == '\n')
+				break;
+			if (c == '\r') {
+				if (pos < limit && buffer[pos] == '\n')
+					pos++;
+				break;
+			}
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Read a string written by {@link BytesOutput#writeLatin1(String)}, the bytes are copied in bulk
+	 *
+	 * @return the string
+	 * @throws IOException if the stream ends
+	 */
+	@SuppressWarnings("deprecation")
+	final String readLatin1() throws IOException {
+		final int length = readLength();
+		return new String(buffer, 0, require(length), length);
+	}
+
+	/**
+	 * Read a string written by {@link BytesOutput#writeUtf8(String)}
+	 *
+	 * @return the string
+	 * @throws IOException if the stream ends
+	 */
+	final String readUtf8() throws IOException {
+		final int length = readLength();
+		return new String(buffer, require(length), length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return a length written as a variable length integer
+	 * @throws IOException if the stream ends or the length is negative
+	 */
+	final int readLength() throws IOException {
+		final int length = readVarInt();
+		if (length < 0)
+			throw new StreamCorruptedException("Negative length: " + length);
+		return length;
+	}
+
+	/**
+	 * Modified UTF-8, as DataInput.readUTF. The ASCII strings are decoded without intermediate buffer.
+	 */
+	@Override
+	final public String readUTF() throws IOException {
+		final int start = pos;
+		final int utfLength = readUnsignedShort();
+		final int p = require(utfLength);
+		final char[] chars = new char[utfLength];
+		for (int i = 0; i < utfLength; i++) {
+			final byte b = buffer[p + i];
+			if (b < 0) {
+				// Not ASCII: the standard decoder
+				pos = start;
+				return DataInputStream.readUTF(this);
+			}
+			chars[i] = (char) b;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Read the objects written between {@link BytesOutput#beginIsolated()} and {@link BytesOutput#endIsolated()}
+	 * until {@link #endIsolated()}: each object written by the Java serialization has its own stream.
+	 */
+	final void beginIsolated() {
+		isolated++;
+	}
+
+	final void endIsolated() {
+		isolated--;
+	}
+
+	private InputStream asInputStream() {
+		return new InputStream() {
+
+			@Override
+			public int read() {
+				return BytesInput.this.read();
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) {
+				return BytesInput.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				return BytesInput.this.available();
+			}
+		};
+	}
+
+	/**
+	 * Use the Java serialization. The ObjectInputStream is created on the first call.
+	 * The ObjectInputStream does not read ahead, the position stays exact after each object.
+	 */
+	@Override
+	final public Object readObject() throws ClassNotFoundException, IOException {
+		if (isolated > 0)
+			return new ObjectInputStream(asInputStream()).readObject();
+		if (objectInput == null)
+			objectInput = new ObjectInputStream(asInputStream());
+		return objectInput.readObject();
+	}
+
+	@Override
+	final public void close() {
+	}
+}
@@ -0,0 +1,724 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A binary ObjectOutput writing in a growable byte array.
+ * The encoding of the primitives is the same than DataOutput.
+ * The Java serialization is only started when an object is written, and shared by the whole stream.
+ */
+final class BytesOutput implements ObjectOutput {
+
+	private final static int DEFAULT_CAPACITY = 256;
+
+	private byte[] buffer;
+	private int count;
+
+	private ObjectOutputStream objectOutput;
+	private Stream stream;
+
+	private HashMap<String, Integer> strings;
+	private int maxStrings = -1;
+
+	private IdentityHashMap<Class<?>, boolean[]> enumNames;
+	private int enumOrdinals = -1;
+
+	private IdentityTable references;
+	private int referenceTracking = -1;
+
+	private int isolated;
+
+	private boolean nullBitmap;
+	private int nullsPosition = -1;
+	private int nullsIndex;
+
+	private boolean varInts;
+
+	BytesOutput() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	BytesOutput(final int capacity) {
+		buffer = new byte[capacity];
+		count = 0;
+	}
+
+	private void ensureCapacity(final int length) {
+		final int required = count + length;
+		if (required < 0)
+			throw new OutOfMemoryError("Required array size too large");
+		if (required <= buffer.length)
+			return;
+		buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length << 1));
+	}
+
+	/**
+	 * Empty the buffer and forget the state of the previous stream, the allocated capacity is kept
+	 */
+	final void reset() {
+		count = 0;
+		objectOutput = null;
+		if (strings != null)
+			strings.clear();
+		maxStrings = -1;
+		if (enumNames != null)
+			enumNames.clear();
+		if (references != null) {
+			// A large table is not kept by the pool
+			if (references.size() > MAX_POOLED_REFERENCES)
+				references = null;
+			else
+				references.clear();
+		}
+		referenceTracking = -1;
+		isolated = 0;
+		nullBitmap = false;
+		nullsPosition = -1;
+		varInts = false;
+		enumOrdinals = -1;
+	}
+
+	private final static int MAX_POOLED_REFERENCES = 4096;
+
+	final static int REFERENCE_ADDED = -1;
+	final static int REFERENCE_NOT_TRACKED = -2;
+
+	/**
+	 * Look up the reference table of the stream. The tracking is enabled by
+	 * {@link Externalizor#setReferenceTracking(boolean)}, read when the first object is looked up.
+	 *
+	 * @param object the object to write
+	 * @return the handle of the object if it was already written, otherwise {@link #REFERENCE_ADDED} if it has been
+	 * added to the table, or {@link #REFERENCE_NOT_TRACKED} if the tracking is disabled
+	 */
+	final int reference(final Object object) {
+		if (isolated > 0)
+			return REFERENCE_NOT_TRACKED;
+		if (referenceTracking == -1)
+			referenceTracking = Externalizor.isReferenceTracking() ? 1 : 0;
+		if (referenceTracking == 0)
+			return REFERENCE_NOT_TRACKED;
+		if (references == null)
+			references = new IdentityTable();
+		return references.putIfAbsent(object);
+	}
+
+	/**
+	 * Add the root object of the stream to the reference table, if the table is empty
+	 *
+	 * @param object the object written first
+	 */
+	final void referenceRoot(final Object object) {
+		if (referenceTracking == 0 || (references != null && references.size() > 0))
+			return;
+		reference(object);
+	}
+
+	/**
+	 * The constants of an enum whose name has been written in the stream
+	 *
+	 * @param enumType the type of the enum
+	 * @param size     the number of constants
+	 * @return a flag per constant, indexed by ordinal, or null if the tables of the stream are not used or if the
+	 * ordinals are disabled (see {@link Externalizor#setEnumOrdinals(boolean)})
+	 */
+	final boolean[] enumNames(final Class<?> enumType, final int size) {
+		if (enumOrdinals == -1)
+			enumOrdinals = Externalizor.isEnumOrdinals() ? 1 : 0;
+		if (isolated > 0 || enumOrdinals == 0)
+			return null;
+		if (enumNames == null)
+			enumNames = new IdentityHashMap<>();
+		boolean[] names = enumNames.get(enumType);
+		if (names == null) {
+			names = new boolean[size];
+			enumNames.put(enumType, names);
+		}
+		return names;
+	}
+
+	final static int STRING_ADDED = -1;
+	final static int STRING_NOT_ADDED = -2;
+
+	/**
+	 * Look up the string table of the stream. The maximum size of the table is read from
+	 * {@link Externalizor#getStringTableSize()} when the first string is written.
+	 *
+	 * @param value the string to write
+	 * @return the index of the string if it was already written, otherwise {@link #STRING_ADDED} if it has been
+	 * added to the table, or {@link #STRING_NOT_ADDED} if the table is full, disabled or not used
+	 */
+	final int stringIndex(final String value) {
+		if (isolated > 0)
+			return STRING_NOT_ADDED;
+		if (maxStrings == -1)
+			maxStrings = Externalizor.getStringTableSize();
+		if (maxStrings == 0)
+			return STRING_NOT_ADDED;
+		if (strings == null)
+			strings = new HashMap<>();
+		final Integer index = strings.get(value);
+		if (index != null)
+			return index;
+		if (strings.size() >= maxStrings)
+			return STRING_NOT_ADDED;
+		strings.put(value, strings.size());
+		return STRING_ADDED;
+	}
+
+	/**
+	 * The flag of the format byte telling that the null flags are in a bitmap
+	 */
+	final static int NULL_BITMAP = 0x10;
+
+	/**
+	 * The flag of the format byte telling that the ints, the longs and the lengths have a variable length
+	 */
+	final static int VAR_INTS = 0x20;
+
+	/**
+	 * The modes changing the layout of the objects are written in the high bits of the format byte, the reader uses
+	 * the modes of the writer whatever its settings.
+	 *
+	 * @return the flags of the modes enabled by the settings
+	 */
+	static int formatFlags() {
+		return (Externalizor.isNullBitmap() ? NULL_BITMAP : 0) | (Externalizor.isVarInts() ? VAR_INTS : 0);
+	}
+
+	/**
+	 * Set the modes of the stream, written in the format byte. They are disabled by default and by {@link #reset()}.
+	 *
+	 * @param flags the flags returned by {@link #formatFlags()}
+	 */
+	final void setFormatFlags(final int flags) {
+		nullBitmap = (flags & NULL_BITMAP) != 0;
+		varInts = (flags & VAR_INTS) != 0;
+	}
+
+	/**
+	 * Reserve the null bitmap of an object, if enabled by the flags of the stream (see {@link #setFormatFlags(int)}).
+	 *
+	 * @param fields the number of nullable fields of the object
+	 * @return the state of the bitmap of the enclosing object, given back to {@link #endNulls(long)}
+	 */
+	final long beginNulls(final int fields) {
+		final long state = ((long) nullsPosition << 32) | (nullsIndex & 0xFFFFFFFFL);
+		if (!nullBitmap || fields == 0) {
+			nullsPosition = -1;
+			return state;
+		}
+		final int length = (fields + 7) >>> 3;
+		ensureCapacity(length);
+		Arrays.fill(buffer, count, count + length, (byte) 0);
+		nullsPosition = count;
+		nullsIndex = 0;
+		count += length;
+		return state;
+	}
+
+	final void endNulls(final long state) {
+		nullsPosition = (int) (state >> 32);
+		nullsIndex = (int) state;
+	}
+
+	/**
+	 * Write the null flag of a field in the null bitmap of the current object
+	 *
+	 * @param isNull true if the value of the field is null
+	 * @return false if there is no null bitmap, the flag must be written in the stream
+	 */
+	final boolean writeNullBit(final boolean isNull) {
+		if (nullsPosition < 0)
+			return false;
+		if (isNull)
+			buffer[nullsPosition + (nullsIndex >>> 3)] |= 1 << (nullsIndex & 7);
+		nullsIndex++;
+		return true;
+	}
+
+	/**
+	 * Stop using the tables of the stream (strings, references, enum names and the Java serialization stream) until
+	 * {@link #endIsolated()}.
+	 * The bytes written meanwhile can be skipped by the reader without losing the state of the stream.
+	 */
+	final void beginIsolated() {
+		isolated++;
+	}
+
+	final void endIsolated() {
+		isolated--;
+	}
+
+	/**
+	 * Overwrite an int already written
+	 *
+	 * @param position the position of the int
+	 * @param v        the new value
+	 */
+	final void setInt(final int position, final int v) {
+		buffer[position] = (byte) (v >>> 24);
+		buffer[position + 1] = (byte) (v >>> 16);
+		buffer[position + 2] = (byte) (v >>> 8);
+		buffer[position + 3] = (byte) v;
+	}
+
+	final byte[] buffer() {
+		return buffer;
+	}
+
+	final int size() {
+		return count;
+	}
+
+	final byte[] toByteArray() {
+		return Arrays.copyOf(buffer, count);
+	}
+
+	final void writeTo(final OutputStream output) throws IOException {
+		output.write(buffer, 0, count);
+	}
+
+	final void writeTo(final ByteBuffer output) {
+		output.put(buffer, 0, count);
+	}
+
+	/**
+	 * Unsigned variable length integer, 7 bits per byte, least significant group first
+	 *
+	 * @param value the value, negative values use 5 bytes
+	 */
+	final void writeVarInt(int value) {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			buffer[count++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[count++] = (byte) value;
+	}
+
+	/**
+	 * Reserve bytes written by the caller straight into the array returned by {@link #buffer()}
+	 *
+	 * @param length the number of bytes
+	 * @return the position of the reserved bytes
+	 */
+	final int reserve(final int length) {
+		ensureCapacity(length);
+		final int start = count;
+		count += length;
+		return start;
+	}
+
+	/**
+	 * Unsigned variable length long, 7 bits per byte, least significant group first
+	 *
+	 * @param value the value, negative values use 10 bytes
+	 */
+	final void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer[count++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[count++] = (byte) value;
+	}
+
+	/**
+	 * @return true if the ints, the longs and the lengths are written with a variable length, enabled by the flags
+	 * of the stream (see {@link #setFormatFlags(int)})
+	 */
+	final boolean isVarInts() {
+		return varInts;
+	}
+
+	/**
+	 * Write an int, as a zigzag variable length integer if enabled: the small negative values are short too
+	 *
+	 * @param v the value
+	 */
+	final void writeCompactInt(final int v) {
+		if (isVarInts())
+			writeVarInt((v << 1) ^ (v >> 31));
+		else
+			writeInt(v);
+	}
+
+	/**
+	 * Write a long, as a zigzag variable length long if enabled
+	 *
+	 * @param v the value
+	 */
+	final void writeCompactLong(final long v) {
+		if (isVarInts())
+			writeVarLong((v << 1) ^ (v >> 63));
+		else
+			writeLong(v);
+	}
+
+	/**
+	 * Write the length of an array or the size of a collection, as a variable length integer if enabled
+	 *
+	 * @param size the positive size
+	 */
+	final void writeSize(final int size) {
+		if (isVarInts())
+			writeVarInt(size);
+		else
+			writeInt(size);
+	}
+
+	/**
+	 * Append the content of the stream until its end
+	 *
+	 * @param input the stream to read
+	 * @throws IOException if the stream cannot be read
+	 */
+	final void readFrom(final InputStream input) throws IOException {
+		ensureCapacity(Math.max(input.available(), DEFAULT_CAPACITY));
+		int read;
+		while ((read = input.read(buffer, count, buffer.length - count)) != -1) {
+			count += read;
+			if (count == buffer.length)
+				ensureCapacity(1);
+		}
+	}
+
+	/**
+	 * Append the uncompressed bytes until the end of the deflate stream
+	 *
+	 * @param inflater an inflater having its input set
+	 * @param sizeHint the expected uncompressed size
+	 * @throws IOException if the input is truncated or corrupted
+	 */
+	final void inflate(final Inflater inflater, final int sizeHint) throws IOException {
+		ensureCapacity(Math.max(sizeHint, DEFAULT_CAPACITY));
+		try {
+			while (!inflater.finished()) {
+				if (count == buffer.length)
+					ensureCapacity(1);
+				final int n = inflater.inflate(buffer, count, buffer.length - count);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new EOFException("Unexpected end of ZLIB input stream");
+				count += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Compress a primitive array straight into the buffer.
+	 * The format is the same than writing the length ({@link #writeSize(int)}) and the bytes returned by
+	 * Snappy.compress.
+	 *
+	 * @param array      the primitive array
+	 * @param byteLength the size of the array in bytes
+	 * @throws IOException if the compression fails
+	 */
+	final void writeSnappy(final Object array, final int byteLength) throws IOException {
+		final boolean variable = isVarInts();
+		final int prefix = variable ? 5 : 4;
+		ensureCapacity(prefix + Snappy.maxCompressedLength(byteLength));
+		final int start = count;
+		final int length = Snappy.rawCompress(array, 0, byteLength, buffer, start + prefix);
+		if (variable) {
+			// The compressed length is not known before the compression, the bytes are moved after its actual size
+			writeVarInt(length);
+			if (count != start + prefix)
+				System.arraycopy(buffer, start + prefix, buffer, count, length);
+		} else
+			writeInt(length);
+		count += length;
+	}
+
+	@Override
+	final public void write(final int b) {
+		ensureCapacity(1);
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	final public void write(final byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	final public void write(final byte[] b, final int off, final int len) {
+		ensureCapacity(len);
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	@Override
+	final public void writeBoolean(final boolean v) {
+		write(v ? 1 : 0);
+	}
+
+	@Override
+	final public void writeByte(final int v) {
+		write(v);
+	}
+
+	@Override
+	final public void writeShort(final int v) {
+		ensureCapacity(2);
+		buffer[count++] = (byte) (v >>> 8);
+		buffer[count++] = (byte) v;
+	}
+
+	@Override
+	final public void writeChar(final int v) {
+		writeShort(v);
+	}
+
+	@Override
+	final public void writeInt(final int v) {
+		ensureCapacity(4);
+		buffer[count++] = (byte) (v >>> 24);
+		buffer[count++] = (byte) (v >>> 16);
+		buffer[count++] = (byte) (v >>> 8);
+		buffer[count++] = (byte) v;
+	}
+
+	@Override
+	final public void writeLong(final long v) {
+		ensureCapacity(8);
+		buffer[count++] = (byte) (v >>> 56);
+		buffer[count++] = (byte) (v >>> 48);
+		buffer[count++] = (byte) (v >>> 40);
+		buffer[count++] = (byte) (v >>> 32);
+		buffer[count++] = (byte) (v >>> 24);
+		buffer[count++] = (byte) (v >>> 16);
+		buffer[count++] = (byte) (v >>> 8);
+		buffer[count++] = (byte) v;
+	}
+
+	@Override
+	final public void writeFloat(final float v) {
+		writeInt(Float.floatToIntBits(v));
+	}
+
+	@Override
+	final public void writeDouble(final double v) {
+		writeLong(Double.doubleToLongBits(v));
+	}
+
+	@Override
+	final public void writeBytes(final String s) {
+		final int length = s.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++)
+			buffer[count++] = (byte) s.charAt(i);
+	}
+
+	@Override
+	final public void writeChars(final String s) {
+		final int length = s.length();
+		ensureCapacity(length * 2);
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			buffer[count++] = (byte) (c >>> 8);
+			buffer[count++] = (byte) c;
+		}
+	}
+
+	/**
+	 * Write a string having only chars below 256, one byte per char, preceded by the length as a variable length
+	 * integer. The chars are copied in bulk.
+	 *
+	 * @param value the string
+	 */
+	@SuppressWarnings("deprecation")
+	final void writeLatin1(final String value) {
+		final int length = value.length();
+		writeVarInt(length);
+		ensureCapacity(length);
+		value.getBytes(0, length, buffer, count);
+		count += length;
+	}
+
+	/**
+	 * Write a string in UTF-8, preceded by the number of bytes as a variable length integer.
+	 * Like String.getBytes, an unpaired surrogate is written as '?'.
+	 *
+	 * @param value the string
+	 */
+	final void writeUtf8(final String value) {
+		final int length = value.length();
+		int utfLength = 0;
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if (c < 0x80)
+				utfLength++;
+			else if (c < 0x800)
+				utfLength += 2;
+			else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					utfLength += 4;
+					i++;
+				} else
+					utfLength++;
+			} else
+				utfLength += 3;
+		}
+		writeVarInt(utfLength);
+		ensureCapacity(utfLength);
+		final byte[] b = buffer;
+		int p = count;
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if (c < 0x80)
+				b[p++] = (byte) c;
+			else if (c < 0x800) {
+				b[p++] = (byte) (0xC0 | (c >> 6));
+				b[p++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					final int cp = Character.toCodePoint(c, value.charAt(++i));
+					b[p++] = (byte) (0xF0 | (cp >> 18));
+					b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					b[p++] = (byte) (0x80 | (cp & 0x3F));
+				} else
+					b[p++] = '?';
+			} else {
+				b[p++] = (byte) (0xE0 | (c >> 12));
+				b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				b[p++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		count = p;
+	}
+
+	/**
+	 * Modified UTF-8, as DataOutput.writeUTF
+	 */
+	@Override
+	final public void writeUTF(final String s) throws UTFDataFormatException {
+		final int length = s.length();
+		int utfLength = 0;
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F)
+				utfLength++;
+			else if (c > 0x07FF)
+				utfLength += 3;
+			else
+				utfLength += 2;
+		}
+		if (utfLength > 65535)
+			throw new UTFDataFormatException("Encoded string too long: " + utfLength + " bytes");
+		writeShort(utfLength);
+		ensureCapacity(utfLength);
+		if (utfLength == length) {
+			for (int i = 0; i < length; i++)
+				buffer[count++] = (byte) s.charAt(i);
+			return;
+		}
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F)
+				buffer[count++] = (byte) c;
+			else if (c > 0x07FF) {
+				buffer[count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+				buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[count++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				buffer[count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+				buffer[count++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * @return an OutputStream appending to this buffer
+	 */
+	final OutputStream asOutputStream() {
+		if (stream == null)
+			stream = new Stream();
+		return stream;
+	}
+
+	/**
+	 * @param output a stream
+	 * @return the BytesOutput if the stream was returned by {@link #asOutputStream()}, null otherwise
+	 */
+	static BytesOutput of(final OutputStream output) {
+		return output instanceof Stream ? ((Stream) output).owner() : null;
+	}
+
+	private final class Stream extends OutputStream {
+
+		@Override
+		public void write(final int b) {
+			BytesOutput.this.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			BytesOutput.this.write(b, off, len);
+		}
+
+		private BytesOutput owner() {
+			return BytesOutput.this;
+		}
+	}
+
+	/**
+	 * Use the Java serialization. The ObjectOutputStream is created on the first call. Between
+	 * {@link #beginIsolated()} and {@link #endIsolated()}, each object is written by its own ObjectOutputStream: the
+	 * reader can skip it.
+	 */
+	@Override
+	final public void writeObject(final Object obj) throws IOException {
+		if (isolated > 0) {
+			final ObjectOutputStream output = new ObjectOutputStream(asOutputStream());
+			output.writeObject(obj);
+			output.flush();
+			return;
+		}
+		if (objectOutput == null)
+			objectOutput = new ObjectOutputStream(asOutputStream());
+		objectOutput.writeObject(obj);
+		// The object must be written before the next primitive
+		objectOutput.flush();
+	}
+
+	@Override
+	final public void flush() {
+	}
+
+	@Override
+	final public void close() {
+	}
+}
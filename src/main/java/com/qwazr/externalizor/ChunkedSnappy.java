@@ -0,0 +1,208 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+
+/**
+ * The Snappy compression of a large primitive array, cut in chunks compressed and uncompressed in parallel by the
+ * pool set with {@link Externalizor#setCompressionPool(ForkJoinPool)}.
+ * <p>
+ * The format starts with a zero length, which is never the length of a Snappy block, then the size of the array in
+ * bytes, the size of a chunk, and the length and the bytes of each compressed chunk.
+ * The chunks are compressed by waves of the parallelism of the pool: the temporary memory is one compressed chunk per
+ * thread, whatever the size of the array.
+ */
+final class ChunkedSnappy {
+
+	/**
+	 * The size of a chunk in bytes, its compressed size fits in a pooled buffer
+	 */
+	final static int CHUNK_SIZE = 512 * 1024;
+
+	private ChunkedSnappy() {
+	}
+
+	/**
+	 * @param byteLength the size of the array in bytes
+	 * @return true if the array is compressed in chunks (see {@link Externalizor#setParallelCompression(int)})
+	 */
+	static boolean isChunked(final int byteLength) {
+		final int minByteLength = Externalizor.getParallelCompression();
+		return minByteLength > 0 && byteLength >= minByteLength && byteLength > CHUNK_SIZE;
+	}
+
+	static void write(final Object array, final int byteLength, final ObjectOutput out) throws IOException {
+		final ForkJoinPool pool = Externalizor.getCompressionPool();
+		final int chunks = chunks(byteLength, CHUNK_SIZE);
+		VarInts.writeSize(out, 0);
+		VarInts.writeSize(out, byteLength);
+		VarInts.writeSize(out, CHUNK_SIZE);
+		final byte[][] buffers = new byte[Math.min(chunks, pool.getParallelism() + 1)][];
+		final int[] lengths = new int[buffers.length];
+		try {
+			for (int i = 0; i < buffers.length; i++)
+				buffers[i] = Pool.BUFFERS.acquire(Snappy.maxCompressedLength(CHUNK_SIZE));
+			for (int first = 0; first < chunks; first += buffers.length) {
+				final int start = first;
+				final int count = Math.min(buffers.length, chunks - first);
+				invoke(pool, count, i -> {
+					final int offset = (start + i) * CHUNK_SIZE;
+					lengths[i] = Snappy.rawCompress(array, offset, Math.min(CHUNK_SIZE, byteLength - offset),
+							buffers[i], 0);
+				});
+				for (int i = 0; i < count; i++) {
+					VarInts.writeSize(out, lengths[i]);
+					out.write(buffers[i], 0, lengths[i]);
+				}
+			}
+		} finally {
+			for (final byte[] buffer : buffers)
+				if (buffer != null)
+					Pool.BUFFERS.release(buffer);
+		}
+	}
+
+	/**
+	 * Read an array written by {@link #write(Object, int, ObjectOutput)}, after its zero length
+	 */
+	static <V> V read(final ObjectInput in, final IntFunction<V> arrayOfBytes) throws IOException {
+		final int byteLength = VarInts.readSize(in);
+		final int chunkSize = VarInts.readSize(in);
+		if (chunkSize == 0)
+			throw new StreamCorruptedException("Empty chunk size");
+		final V array = arrayOfBytes.apply(byteLength);
+		if (byteLength(array) != byteLength)
+			throw new StreamCorruptedException("Wrong array size: " + byteLength);
+		final int chunks = chunks(byteLength, chunkSize);
+		final ForkJoinPool pool = Externalizor.getCompressionPool();
+		if (in instanceof BytesInput) {
+			// The chunks are uncompressed straight from the bytes of the stream
+			final BytesInput bytesInput = (BytesInput) in;
+			final int[] positions = new int[chunks];
+			final int[] lengths = new int[chunks];
+			for (int i = 0; i < chunks; i++) {
+				lengths[i] = bytesInput.readSize();
+				positions[i] = bytesInput.consume(lengths[i]);
+			}
+			final byte[] buffer = bytesInput.buffer();
+			invoke(pool, chunks, i -> uncompress(buffer, positions[i], lengths[i], array, i, chunkSize, byteLength));
+			return array;
+		}
+		final int maxLength = Snappy.maxCompressedLength(chunkSize);
+		final byte[][] buffers = new byte[Math.min(chunks, pool.getParallelism() + 1)][];
+		final int[] lengths = new int[buffers.length];
+		try {
+			for (int first = 0; first < chunks; first += buffers.length) {
+				final int start = first;
+				final int count = Math.min(buffers.length, chunks - first);
+				for (int i = 0; i < count; i++) {
+					lengths[i] = VarInts.readSize(in);
+					if (lengths[i] > maxLength)
+						throw new StreamCorruptedException("Wrong chunk length: " + lengths[i]);
+					if (buffers[i] == null)
+						buffers[i] = Pool.BUFFERS.acquire(maxLength);
+					in.readFully(buffers[i], 0, lengths[i]);
+				}
+				invoke(pool, count,
+						i -> uncompress(buffers[i], 0, lengths[i], array, start + i, chunkSize, byteLength));
+			}
+			return array;
+		} finally {
+			for (final byte[] buffer : buffers)
+				if (buffer != null)
+					Pool.BUFFERS.release(buffer);
+		}
+	}
+
+	private static void uncompress(final byte[] buffer, final int position, final int length, final Object array,
+			final int chunk, final int chunkSize, final int byteLength) throws IOException {
+		final long offset = (long) chunk * chunkSize;
+		// The uncompressed size is checked, Snappy would write after the end of the array
+		if (Snappy.uncompressedLength(buffer, position, length) != Math.min(chunkSize, byteLength - offset))
+			throw new StreamCorruptedException("Wrong size of the chunk " + chunk);
+		Snappy.rawUncompress(buffer, position, length, array, (int) offset);
+	}
+
+	private static int chunks(final int byteLength, final int chunkSize) {
+		return (int) (((long) byteLength + chunkSize - 1) / chunkSize);
+	}
+
+	private static int byteLength(final Object array) {
+		final int length = Array.getLength(array);
+		final Class<?> type = array.getClass().getComponentType();
+		if (type == Long.TYPE || type == Double.TYPE)
+			return length << 3;
+		if (type == Integer.TYPE || type == Float.TYPE)
+			return length << 2;
+		if (type == Short.TYPE || type == Character.TYPE)
+			return length << 1;
+		return length;
+	}
+
+	private interface Chunk {
+
+		void run(final int index) throws IOException;
+	}
+
+	/**
+	 * Run the chunks in the pool, the calling thread runs the first one, then waits for all of them
+	 */
+	private static void invoke(final ForkJoinPool pool, final int count, final Chunk chunk) throws IOException {
+		final IOException[] errors = new IOException[count];
+		final ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[count];
+		for (int i = 1; i < count; i++) {
+			final int index = i;
+			tasks[i] = pool.submit(() -> {
+				try {
+					chunk.run(index);
+				} catch (IOException e) {
+					errors[index] = e;
+				}
+			});
+		}
+		Throwable failure = null;
+		try {
+			chunk.run(0);
+		} catch (IOException e) {
+			errors[0] = e;
+		} catch (RuntimeException | Error e) {
+			failure = e;
+		}
+		// The buffers are in use until every task is done
+		for (int i = 1; i < count; i++) {
+			tasks[i].quietlyJoin();
+			if (failure == null)
+				failure = tasks[i].getException();
+		}
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		for (final IOException error : errors)
+			if (error != null)
+				throw error;
+	}
+}
@@ -19,22 +19,83 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.io.Serializable;
-import java.lang.reflect.Constructor;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
 
 interface ClassExternalizer<T> extends Externalizer<T, T> {
 
+	/**
+	 * The classes whose externalizer is being built by the current thread
+	 */
+	ThreadLocal<Set<Class<?>>> BUILDING = ThreadLocal.withInitial(HashSet::new);
+
 	static <T> ClassExternalizer<T> of(final Class<T> clazz) {
+		final Set<Class<?>> building = BUILDING.get();
+		// A recursive type: the externalizer is resolved at the first use
+		if (!building.add(clazz))
+			return new LazyExternalizer<>(clazz);
 		try {
-			final Constructor<T> constructor = clazz.getConstructor();
+			return build(clazz);
+		} finally {
+			building.remove(clazz);
+		}
+	}
+
+	/**
+	 * The externalizer of a field referencing an object. The references are tracked unless the class is
+	 * {@link Acyclic}.
+	 */
+	static <T, V> FieldExternalizer<T, V> field(final FieldAccessor accessor, final Class<V> clazz) {
+		final ClassExternalizer<V> externalizer = of(clazz);
+		return clazz.isAnnotationPresent(Acyclic.class) ?
+				new FieldExternalizer.FieldParentExternalizer<>(accessor, externalizer) :
+				new FieldExternalizer.FieldReferenceExternalizer<>(accessor, externalizer);
+	}
+
+	static <T> ClassExternalizer<T> build(final Class<T> clazz) {
+		// A type which is not Serializable is still rejected: the values of the classes which are not registered
+		// could not be written
+		if ((clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())) &&
+				Serializable.class.isAssignableFrom(clazz))
+			return new PolymorphicExternalizer<>(clazz);
+		final ExternalizedLayout<T> layout = Layouts.get(clazz);
+		Instantiator<T> instantiator = layout == null ? null : Instantiator.of(layout.getInstantiator());
+		if (instantiator == null)
+			instantiator = Instantiator.of(clazz);
+		if (instantiator == null && Externalizor.isInstantiateWithoutConstructor())
+			instantiator = Instantiator.withoutConstructor(clazz);
+		if (instantiator != null) {
 			final Collection<Externalizer> externalizers = new ArrayList<>();
 			detectFields(clazz, externalizers);
-			if (externalizers.size() > 0)
-				return new RootExternalizer(constructor, externalizers);
-		} catch (NoSuchMethodException e) {
+			if (externalizers.size() > 0) {
+				if (clazz.isAnnotationPresent(Versioned.class))
+					// The versioned fields can be read out of order, the null flags are not in a bitmap
+					return new RootExternalizer(instantiator, new VersionedExternalizer<>(clazz, externalizers), null,
+							0, !clazz.isAnnotationPresent(Acyclic.class));
+				// The primitive block is only written in the bytes format, the object streams keep the field order
+				final Collection<Externalizer> fields = PrimitiveExternalizer.block(externalizers);
+				final Externalizer<T, T> streamFields =
+						fields == externalizers ? null : FieldsExternalizer.of(clazz, externalizers);
+				int nullables = 0;
+				for (final Externalizer externalizer : fields)
+					if (externalizer instanceof FieldExternalizer.FieldObjectExternalizer ||
+							externalizer instanceof FieldExternalizer.FieldReferenceExternalizer)
+						nullables++;
+				return new RootExternalizer(instantiator, FieldsExternalizer.of(clazz, fields), streamFields, nullables,
+						!clazz.isAnnotationPresent(Acyclic.class));
+			}
 		}
 		if (Serializable.class.isAssignableFrom(clazz))
 			return new SerializableExternalizer<>(clazz);
@@ -44,29 +105,235 @@ interface ClassExternalizer<T> extends Externalizer<T, T> {
 	static void detectFields(final Class<?> clazz, final Collection<Externalizer> externalizers) {
 		if (clazz == null)
 			return;
-		final Field[] fields = clazz.getDeclaredFields();
-		for (Field field : fields) {
-			final Class<?> cl = field.getType();
-			final int modifier = field.getModifiers();
-			if (Modifier.isStatic(modifier) || Modifier.isTransient(modifier))
-				continue;
-			field.setAccessible(true);
-			final Externalizer fieldExt = Externalizer.of(field, cl);
-			externalizers.add(fieldExt);
+		final ExternalizedLayout<?> layout = Layouts.get(clazz);
+		final FieldAccessor[] accessors = layout == null ? null : layout.getFieldAccessors();
+		if (accessors != null) {
+			for (final FieldAccessor accessor : accessors)
+				externalizers.add(Externalizer.of(accessor, accessor.type));
+		} else if (layout != null) {
+			for (final String fieldName : layout.getFieldNames()) {
+				try {
+					final Field field = clazz.getDeclaredField(fieldName);
+					externalizers.add(Externalizer.of(FieldAccessor.of(field), field.getType()));
+				} catch (NoSuchFieldException e) {
+					throw new ExternalizorException("The layout does not match the class " + clazz, e);
+				}
+			}
+		} else {
+			final Field[] fields = clazz.getDeclaredFields();
+			for (Field field : fields) {
+				final Class<?> cl = field.getType();
+				final int modifier = field.getModifiers();
+				if (Modifier.isStatic(modifier) || Modifier.isTransient(modifier))
+					continue;
+				final Externalizer fieldExt = Externalizer.of(FieldAccessor.of(field), cl);
+				externalizers.add(fieldExt);
+			}
 		}
 		detectFields(clazz.getSuperclass(), externalizers);
 	}
 
+	/**
+	 * The layouts generated at build time, found using the ServiceLoader of the class loader of each class. The layout
+	 * is kept by the class itself, it does not prevent the class loader from being unloaded.
+	 */
+	final class Layouts {
+
+		private final static ClassValue<ExternalizedLayout<?>> LAYOUTS = new ClassValue<ExternalizedLayout<?>>() {
+			@Override
+			protected ExternalizedLayout<?> computeValue(final Class<?> clazz) {
+				for (final ExternalizedLayout<?> layout : load(clazz.getClassLoader()))
+					if (layout.getType() == clazz)
+						return layout;
+				return null;
+			}
+		};
+
+		static <T> ExternalizedLayout<T> get(final Class<T> clazz) {
+			return (ExternalizedLayout<T>) LAYOUTS.get(clazz);
+		}
+
+		/**
+		 * @return the classes having a generated layout visible from the context class loader of the current thread
+		 */
+		static Set<Class<?>> types() {
+			final Set<Class<?>> types = new LinkedHashSet<>();
+			for (final ExternalizedLayout<?> layout : load(Thread.currentThread().getContextClassLoader()))
+				types.add(layout.getType());
+			return Collections.unmodifiableSet(types);
+		}
+
+		/**
+		 * Load the layouts of a class loader. A provider which cannot be loaded is skipped, the other layouts are still
+		 * available.
+		 *
+		 * @param classLoader the class loader, or null for the system class loader
+		 * @return the layouts
+		 */
+		private static Collection<ExternalizedLayout<?>> load(final ClassLoader classLoader) {
+			final Collection<ExternalizedLayout<?>> layouts = new ArrayList<>();
+			final Iterator<ExternalizedLayout> iterator =
+					ServiceLoader.load(ExternalizedLayout.class, classLoader).iterator();
+			for (; ; ) {
+				try {
+					if (!iterator.hasNext())
+						return layouts;
+				} catch (ServiceConfigurationError e) {
+					// A malformed configuration file: the iteration cannot go further
+					return layouts;
+				}
+				try {
+					layouts.add(iterator.next());
+				} catch (ServiceConfigurationError e) {
+					// A missing or broken provider class
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read an object written by a tracked reference. The object is added to the reference table of the stream before
+	 * its fields are read, the fields can reference it.
+	 *
+	 * @param in the input stream
+	 * @return the object
+	 */
+	default T readReference(final BytesInput in) throws IOException, ReflectiveOperationException {
+		final T object = readObject(in);
+		in.addReference(object);
+		return object;
+	}
+
 	final class RootExternalizer<T> implements ClassExternalizer<T> {
 
-		private final Constructor<T> constructor;
-		private final Collection<Externalizer> externalizers;
+		final Instantiator<T> instantiator;
+		final Externalizer<T, T> fields;
+		private final Externalizer<T, T> streamFields;
+		private final int nullables;
+		private final boolean tracked;
+
+		/**
+		 * @param fields       the fields written in the bytes format
+		 * @param streamFields the fields written in the other object streams, in declaration order, or null if they
+		 *                     are the same
+		 */
+		private RootExternalizer(final Instantiator<T> instantiator, final Externalizer<T, T> fields,
+				final Externalizer<T, T> streamFields, final int nullables, final boolean tracked) {
+			this.instantiator = instantiator;
+			this.fields = fields;
+			this.streamFields = streamFields == null ? fields : streamFields;
+			this.nullables = nullables;
+			this.tracked = tracked;
+		}
+
+		@Override
+		final public void writeExternal(final T object, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			if (!(out instanceof BytesOutput)) {
+				streamFields.writeExternal(object, out);
+				return;
+			}
+			final BytesOutput bytesOutput = (BytesOutput) out;
+			if (tracked)
+				bytesOutput.referenceRoot(object);
+			final long nulls = bytesOutput.beginNulls(nullables);
+			fields.writeExternal(object, out);
+			bytesOutput.endNulls(nulls);
+		}
+
+		@Override
+		final public void readExternal(final T object, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			if (!(in instanceof BytesInput)) {
+				streamFields.readExternal(object, in);
+				return;
+			}
+			final BytesInput bytesInput = (BytesInput) in;
+			final long nulls = bytesInput.beginNulls(nullables);
+			fields.readExternal(object, in);
+			bytesInput.endNulls(nulls);
+		}
+
+		@Override
+		final public T readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			final T object = instantiator.newInstance();
+			if (tracked && in instanceof BytesInput)
+				((BytesInput) in).referenceRoot(object);
+			readExternal(object, in);
+			return object;
+		}
+
+		@Override
+		final public T readReference(final BytesInput in) throws IOException, ReflectiveOperationException {
+			final T object = instantiator.newInstance();
+			in.addReference(object);
+			readExternal(object, in);
+			return object;
+		}
+	}
+
+	/**
+	 * The externalizer of a class referencing itself, directly or not, resolved at the first use
+	 */
+	final class LazyExternalizer<T> implements ClassExternalizer<T> {
+
+		private final Class<T> clazz;
+		private volatile ClassExternalizer<T> externalizer;
+
+		private LazyExternalizer(final Class<T> clazz) {
+			this.clazz = clazz;
+		}
+
+		private ClassExternalizer<T> get() {
+			ClassExternalizer<T> ext = externalizer;
+			if (ext == null)
+				externalizer = ext = (ClassExternalizer<T>) Externalizor.of(clazz);
+			return ext;
+		}
+
+		@Override
+		final public void writeExternal(final T object, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			get().writeExternal(object, out);
+		}
+
+		@Override
+		final public void readExternal(final T object, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			get().readExternal(object, in);
+		}
+
+		@Override
+		final public T readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			return get().readObject(in);
+		}
+
+		@Override
+		final public T readReference(final BytesInput in) throws IOException, ReflectiveOperationException {
+			return get().readReference(in);
+		}
+	}
+
+	/**
+	 * The interpreted sequence of the field externalizers.
+	 * Used when the bytecode generation is disabled or not possible.
+	 *
+	 * @param <T>
+	 */
+	final class FieldsExternalizer<T> implements Externalizer<T, T> {
+
+		private final Externalizer[] externalizers;
 
-		private RootExternalizer(final Constructor<T> constructor, final Collection<Externalizer> externalizers) {
-			this.constructor = constructor;
+		private FieldsExternalizer(final Externalizer[] externalizers) {
 			this.externalizers = externalizers;
 		}
 
+		static <T> Externalizer<T, T> of(final Class<T> clazz, final Collection<Externalizer> externalizers) {
+			final Externalizer[] array = externalizers.toArray(new Externalizer[externalizers.size()]);
+			final Externalizer<T, T> generated = GeneratedExternalizer.of(clazz, array);
+			return generated != null ? generated : new FieldsExternalizer<>(array);
+		}
+
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
@@ -81,14 +348,231 @@ interface ClassExternalizer<T> extends Externalizer<T, T> {
 				externalizer.readExternal(object, in);
 		}
 
+		@Override
+		final public T readObject(final ObjectInput in) {
+			throw new ExternalizorException("Not available");
+		}
+	}
+
+	/**
+	 * The externalizer of a type declared as a Serializable interface or abstract class.
+	 * The value of a class registered with {@link Externalizor#register(Class, int)} is written as the id of the class
+	 * followed by the value written by the externalizer of this class. The other values use the Java serialization.
+	 * <p>
+	 * NULL and SERIALIZED are the boolean written by {@link SerializableExternalizer}.
+	 */
+	final class PolymorphicExternalizer<T> implements ClassExternalizer<T> {
+
+		final static int NULL = 0;
+		final static int SERIALIZED = 1;
+		final static int REGISTERED = 2;
+
+		private final Class<T> clazz;
+
+		private PolymorphicExternalizer(final Class<T> clazz) {
+			this.clazz = clazz;
+		}
+
+		@Override
+		final public void writeExternal(final T object, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			if (object == null) {
+				out.writeByte(NULL);
+				return;
+			}
+			final Class<T> valueClass = (Class<T>) object.getClass();
+			final int id = ClassIds.of(valueClass);
+			if (id < 0) {
+				out.writeByte(SERIALIZED);
+				out.writeObject(object);
+				return;
+			}
+			out.writeByte(REGISTERED);
+			VarInts.writeVarInt(out, id);
+			Externalizor.of(valueClass).writeExternal(object, out);
+		}
+
+		private Externalizer<T, T> registered(final ObjectInput in) throws IOException {
+			final int id = VarInts.readVarInt(in);
+			final Class<?> registeredClass = ClassIds.get(id);
+			if (registeredClass == null)
+				throw new StreamCorruptedException("Unknown class id: " + id);
+			if (!clazz.isAssignableFrom(registeredClass))
+				throw new StreamCorruptedException("The class " + registeredClass + " is not a " + clazz);
+			return Externalizor.of((Class<T>) registeredClass);
+		}
+
+		@Override
+		final public void readExternal(final T object, final ObjectInput in) {
+			throw new ExternalizorException("Cannot read external from " + clazz);
+		}
+
 		@Override
 		final public T readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
-			final T object = constructor.newInstance();
-			readExternal(object, in);
+			final int tag = in.readUnsignedByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case SERIALIZED:
+				return (T) in.readObject();
+			case REGISTERED:
+				return registered(in).readObject(in);
+			default:
+				throw new StreamCorruptedException("Unknown polymorphic tag: " + tag);
+			}
+		}
+
+		@Override
+		final public T readReference(final BytesInput in) throws IOException, ReflectiveOperationException {
+			final int tag = in.readUnsignedByte();
+			if (tag == REGISTERED) {
+				final Externalizer<T, T> externalizer = registered(in);
+				if (externalizer instanceof ClassExternalizer)
+					return ((ClassExternalizer<T>) externalizer).readReference(in);
+				final T object = externalizer.readObject(in);
+				in.addReference(object);
+				return object;
+			}
+			if (tag != SERIALIZED)
+				throw new StreamCorruptedException("Unknown polymorphic tag: " + tag);
+			final T object = (T) in.readObject();
+			in.addReference(object);
 			return object;
 		}
 	}
 
+	/**
+	 * The fields of a {@link Versioned} class. The hash of the schema and the size of the values are written first,
+	 * then the values in the order of the fields, then the tag and the size of each value.
+	 * <p>
+	 * When the hash is the one of the reader, the values are read in sequence and the tags are skipped.
+	 * Otherwise the values are read by tag. A stream other than a BytesOutput has no tags, the schema must match.
+	 */
+	final class VersionedExternalizer<T> implements Externalizer<T, T> {
+
+		final static int NO_TAGS = -1;
+
+		private final Class<T> clazz;
+		private final Externalizer<T, T> sequence;
+		private final Externalizer[] externalizers;
+		private final int[] tags;
+		private final int schemaHash;
+		private final Map<Integer, Externalizer> byTag;
+
+		private VersionedExternalizer(final Class<T> clazz, final Collection<Externalizer> externalizers) {
+			this.clazz = clazz;
+			this.sequence = FieldsExternalizer.of(clazz, externalizers);
+			this.externalizers = externalizers.toArray(new Externalizer[externalizers.size()]);
+			this.tags = new int[this.externalizers.length];
+			this.byTag = new HashMap<>();
+			int hash = 1;
+			for (int i = 0; i < tags.length; i++) {
+				final FieldAccessor accessor = ((FieldExternalizer<?, ?>) this.externalizers[i]).accessor;
+				tags[i] = (accessor.name + ':' + accessor.typeName).hashCode();
+				if (byTag.put(tags[i], this.externalizers[i]) != null)
+					throw new ExternalizorException("Two fields have the same tag in " + clazz + ": " + accessor);
+				hash = 31 * hash + tags[i];
+			}
+			this.schemaHash = hash;
+		}
+
+		@Override
+		final public void writeExternal(final T object, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			out.writeInt(schemaHash);
+			if (!(out instanceof BytesOutput)) {
+				out.writeInt(NO_TAGS);
+				sequence.writeExternal(object, out);
+				return;
+			}
+			final BytesOutput bytes = (BytesOutput) out;
+			final int sizePosition = bytes.size();
+			bytes.writeInt(0);
+			final int start = bytes.size();
+			final int[] sizes = new int[externalizers.length];
+			bytes.beginIsolated();
+			try {
+				for (int i = 0; i < externalizers.length; i++) {
+					final int position = bytes.size();
+					externalizers[i].writeExternal(object, bytes);
+					sizes[i] = bytes.size() - position;
+				}
+			} finally {
+				bytes.endIsolated();
+			}
+			bytes.setInt(sizePosition, bytes.size() - start);
+			bytes.writeVarInt(externalizers.length);
+			for (int i = 0; i < externalizers.length; i++) {
+				bytes.writeInt(tags[i]);
+				bytes.writeVarInt(sizes[i]);
+			}
+		}
+
+		@Override
+		final public void readExternal(final T object, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final int hash = in.readInt();
+			final int size = in.readInt();
+			if (size == NO_TAGS) {
+				if (hash != schemaHash)
+					throw new StreamCorruptedException("The schema of " + clazz + " does not match");
+				sequence.readExternal(object, in);
+				return;
+			}
+			final BytesInput bytes = BytesInput.of(in);
+			bytes.beginIsolated();
+			try {
+				readValues(object, bytes, hash, size);
+			} finally {
+				bytes.endIsolated();
+			}
+		}
+
+		private void readValues(final T object, final BytesInput bytes, final int hash, final int size)
+				throws IOException, ReflectiveOperationException {
+			if (hash == schemaHash) {
+				sequence.readExternal(object, bytes);
+				int count = bytes.readVarInt();
+				while (count-- > 0) {
+					bytes.readInt();
+					bytes.readVarInt();
+				}
+				return;
+			}
+			if (size < 0)
+				throw new StreamCorruptedException("Negative size: " + size);
+			final int start = bytes.position();
+			bytes.seek(start + size);
+			final int count = bytes.readLength();
+			final int[] writtenTags = new int[count];
+			final int[] sizes = new int[count];
+			for (int i = 0; i < count; i++) {
+				writtenTags[i] = bytes.readInt();
+				sizes[i] = bytes.readLength();
+			}
+			final int end = bytes.position();
+			int position = start;
+			for (int i = 0; i < count; i++) {
+				final Externalizer externalizer = byTag.get(writtenTags[i]);
+				if (externalizer != null) {
+					bytes.seek(position);
+					externalizer.readExternal(object, bytes);
+					if (bytes.position() != position + sizes[i])
+						throw new StreamCorruptedException("Unexpected size of a field of " + clazz);
+				}
+				position += sizes[i];
+			}
+			if (position != start + size)
+				throw new StreamCorruptedException("Unexpected size of the fields of " + clazz);
+			bytes.seek(end);
+		}
+
+		@Override
+		final public T readObject(final ObjectInput in) {
+			throw new ExternalizorException("Not available");
+		}
+	}
+
 	final class SerializableExternalizer<T> implements ClassExternalizer<T> {
 
 		private final Class<T> clazz;
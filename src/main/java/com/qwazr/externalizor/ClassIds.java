@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ids of the classes registered with {@link Externalizor#register(Class, int)}.
+ * <p>
+ * A field declared with a Serializable interface or abstract class writes the id of the class of its value, followed
+ * by the value written by the externalizer of this class.
+ */
+final class ClassIds {
+
+	private final static ConcurrentHashMap<Class<?>, Integer> byClass = new ConcurrentHashMap<>();
+
+	private final static ConcurrentHashMap<Integer, Class<?>> byId = new ConcurrentHashMap<>();
+
+	private ClassIds() {
+	}
+
+	static synchronized void register(final Class<?> clazz, final int id) {
+		if (id < 0)
+			throw new ExternalizorException("The class id must be positive: " + id);
+		if (clazz.isInterface() || clazz.isPrimitive() || clazz.isArray() ||
+				Modifier.isAbstract(clazz.getModifiers()))
+			throw new ExternalizorException("Only a concrete class can be registered: " + clazz);
+		final Class<?> previousClass = byId.get(id);
+		if (previousClass != null && previousClass != clazz)
+			throw new ExternalizorException("The class id " + id + " is already used by " + previousClass);
+		final Integer previousId = byClass.get(clazz);
+		if (previousId != null && previousId != id)
+			throw new ExternalizorException("The class " + clazz + " is already registered with the id " + previousId);
+		byId.put(id, clazz);
+		byClass.put(clazz, id);
+	}
+
+	/**
+	 * @return the id of the class, or -1 if the class is not registered
+	 */
+	static int of(final Class<?> clazz) {
+		final Integer id = byClass.get(clazz);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @return the class registered with this id, or null
+	 */
+	static Class<?> get(final int id) {
+		return byId.get(id);
+	}
+
+	/**
+	 * Forget all the registered classes. Used by the tests, the registry is global.
+	 */
+	static synchronized void clear() {
+		byClass.clear();
+		byId.clear();
+	}
+}
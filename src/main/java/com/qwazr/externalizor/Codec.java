@@ -0,0 +1,91 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * The compression applied by {@link Externalizor#serialize(Object, OutputStream)} on the serialized object.
+ * <p>
+ * The compressed stream starts with the id of the codec, which lets the deserialization find the codec.
+ * The GZIP codec is an exception: its id is the first byte of the GZIP magic number (0x1f), no additional byte is
+ * written, the streams written by the previous versions are read as GZIP streams.
+ * <p>
+ * The ids below 32 are reserved for the built-in codecs. A custom codec must be registered using
+ * {@link Externalizor#registerCodec(Codec)} to be found by the deserialization.
+ */
+public interface Codec {
+
+	/**
+	 * No compression
+	 */
+	Codec NONE = new Codecs.NoneCodec();
+
+	/**
+	 * GZIP compression, the default codec
+	 */
+	Codec GZIP = new Codecs.GzipCodec();
+
+	/**
+	 * Snappy framing format, fast with a lower compression ratio
+	 */
+	Codec SNAPPY = new Codecs.SnappyCodec();
+
+	/**
+	 * Deflate compression (zlib format) with the default level and strategy
+	 */
+	Codec DEFLATE = deflate(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+
+	/**
+	 * Deflate compression (zlib format)
+	 *
+	 * @param level    the compression level from 0 to 9, or Deflater.DEFAULT_COMPRESSION
+	 * @param strategy Deflater.DEFAULT_STRATEGY, Deflater.FILTERED or Deflater.HUFFMAN_ONLY
+	 * @return a Deflate codec
+	 */
+	static Codec deflate(final int level, final int strategy) {
+		return new Codecs.DeflateCodec(level, strategy);
+	}
+
+	/**
+	 * @return the id written as the first byte of the stream, between 0 and 255
+	 */
+	int getId();
+
+	/**
+	 * Write the compressed bytes. The stream must not be closed.
+	 *
+	 * @param bytes  the bytes to compress
+	 * @param offset the position of the first byte
+	 * @param length the number of bytes
+	 * @param output the stream to write to
+	 * @throws IOException if the compression fails
+	 */
+	void compress(byte[] bytes, int offset, int length, OutputStream output) throws IOException;
+
+	/**
+	 * Write the uncompressed bytes. The stream must not be closed.
+	 *
+	 * @param bytes  the bytes to uncompress, without the id of the codec
+	 * @param offset the position of the first byte
+	 * @param length the number of bytes
+	 * @param output the stream to write to
+	 * @throws IOException if the bytes cannot be uncompressed
+	 */
+	void uncompress(byte[] bytes, int offset, int length, OutputStream output) throws IOException;
+}
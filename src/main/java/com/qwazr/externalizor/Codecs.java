@@ -0,0 +1,359 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.xerial.snappy.SnappyFramedInputStream;
+import org.xerial.snappy.SnappyFramedOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The built-in codecs and the registry used to find a codec by its id
+ */
+final class Codecs {
+
+	final static int RESERVED_IDS = 32;
+
+	final static int DICTIONARY_ID = 3;
+
+	private final static ConcurrentHashMap<Integer, Codec> codecs = new ConcurrentHashMap<>();
+
+	static {
+		codecs.put(Codec.NONE.getId(), Codec.NONE);
+		codecs.put(Codec.GZIP.getId(), Codec.GZIP);
+		codecs.put(Codec.SNAPPY.getId(), Codec.SNAPPY);
+		codecs.put(Codec.DEFLATE.getId(), Codec.DEFLATE);
+		codecs.put(DICTIONARY_ID, new DictionaryCodec((DeflateCodec) Codec.DEFLATE, null));
+	}
+
+	private Codecs() {
+	}
+
+	static void register(final Codec codec) {
+		final int id = codec.getId();
+		if (id < RESERVED_IDS || id > 255)
+			throw new ExternalizorException("The codec id must be between " + RESERVED_IDS + " and 255: " + id);
+		final Codec previous = codecs.putIfAbsent(id, codec);
+		if (previous != null && previous != codec)
+			throw new ExternalizorException("The codec id " + id + " is already used by " + previous);
+	}
+
+	static Codec get(final int id) {
+		return codecs.get(id);
+	}
+
+	/**
+	 * @return the codec using the dictionary of the class if the codec is a Deflate or GZIP codec and a dictionary
+	 * is registered for the class, the given codec otherwise
+	 */
+	static Codec withDictionary(final Codec codec, final Class<?> clazz) {
+		final DeflateCodec deflateCodec;
+		if (codec instanceof DeflateCodec)
+			deflateCodec = (DeflateCodec) codec;
+		else if (codec instanceof GzipCodec)
+			deflateCodec = (DeflateCodec) Codec.DEFLATE;
+		else
+			return codec;
+		final Dictionary dictionary = Dictionary.of(clazz);
+		return dictionary == null ? codec : new DictionaryCodec(deflateCodec, dictionary);
+	}
+
+	final static class NoneCodec implements Codec {
+
+		NoneCodec() {
+		}
+
+		@Override
+		final public int getId() {
+			return 0;
+		}
+
+		@Override
+		final public void compress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			output.write(bytes, offset, length);
+		}
+
+		@Override
+		final public void uncompress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			output.write(bytes, offset, length);
+		}
+	}
+
+	final static class GzipCodec implements Codec {
+
+		GzipCodec() {
+		}
+
+		@Override
+		final public int getId() {
+			return 0x1f;
+		}
+
+		@Override
+		final public void compress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			Gzip.compress(bytes, offset, length, output);
+		}
+
+		@Override
+		final public void uncompress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			final BytesOutput bytesOutput = BytesOutput.of(output);
+			if (bytesOutput != null) {
+				Gzip.uncompress(bytes, offset, length, bytesOutput);
+				return;
+			}
+			final BytesOutput uncompressed = Pool.OUTPUTS.acquire(0);
+			try {
+				Gzip.uncompress(bytes, offset, length, uncompressed);
+				uncompressed.writeTo(output);
+			} finally {
+				Pool.OUTPUTS.release(uncompressed);
+			}
+		}
+	}
+
+	final static class SnappyCodec implements Codec {
+
+		SnappyCodec() {
+		}
+
+		@Override
+		final public int getId() {
+			return 1;
+		}
+
+		@Override
+		final public void compress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			// The buffers of the stream are allocated for one block, no larger than the bytes to compress
+			final int blockSize = Math.max(1, Math.min(length, SnappyFramedOutputStream.MAX_BLOCK_SIZE));
+			try (final SnappyFramedOutputStream snappy = new SnappyFramedOutputStream(
+					new NotClosingOutputStream(output), blockSize,
+					SnappyFramedOutputStream.DEFAULT_MIN_COMPRESSION_RATIO)) {
+				snappy.write(bytes, offset, length);
+			}
+		}
+
+		@Override
+		final public void uncompress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			try (final SnappyFramedInputStream snappy = new SnappyFramedInputStream(
+					new ByteArrayInputStream(bytes, offset, length))) {
+				snappy.transferTo(output);
+			}
+		}
+	}
+
+	/**
+	 * The zlib format: the header and the Adler-32 trailer are written by the Deflater
+	 */
+	final static class DeflateCodec implements Codec {
+
+		private final int level;
+		private final int strategy;
+
+		DeflateCodec(final int level, final int strategy) {
+			if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+				throw new IllegalArgumentException("Invalid compression level: " + level);
+			if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED &&
+					strategy != Deflater.HUFFMAN_ONLY)
+				throw new IllegalArgumentException("Invalid compression strategy: " + strategy);
+			this.level = level;
+			this.strategy = strategy;
+		}
+
+		@Override
+		final public int getId() {
+			return 2;
+		}
+
+		@Override
+		final public void compress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			compress(bytes, offset, length, null, output);
+		}
+
+		final void compress(final byte[] bytes, final int offset, final int length, final Dictionary dictionary,
+				final OutputStream output) throws IOException {
+			final Deflater deflater = Pool.ZLIB_DEFLATERS.acquire(0);
+			final byte[] chunk = Pool.BUFFERS.acquire(0);
+			try {
+				deflater.setLevel(level);
+				deflater.setStrategy(strategy);
+				if (dictionary != null) {
+					// The parameters are applied by a first call, the reset keeps them and discards any output,
+					// changing the parameters after setting the dictionary would lose the dictionary
+					deflater.deflate(chunk, 0, chunk.length);
+					deflater.reset();
+					deflater.setDictionary(dictionary.bytes);
+				}
+				deflater.setInput(bytes, offset, length);
+				deflater.finish();
+				while (!deflater.finished()) {
+					final int n = deflater.deflate(chunk, 0, chunk.length);
+					output.write(chunk, 0, n);
+				}
+			} finally {
+				Pool.BUFFERS.release(chunk);
+				Pool.ZLIB_DEFLATERS.release(deflater);
+			}
+		}
+
+		@Override
+		final public void uncompress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			uncompress(bytes, offset, length, null, output);
+		}
+
+		static void uncompress(final byte[] bytes, final int offset, final int length, final Dictionary dictionary,
+				final OutputStream output) throws IOException {
+			final Inflater inflater = Pool.ZLIB_INFLATERS.acquire(0);
+			try {
+				inflater.setInput(bytes, offset, length);
+				if (dictionary != null)
+					setDictionary(inflater, dictionary);
+				final BytesOutput bytesOutput = BytesOutput.of(output);
+				if (bytesOutput != null)
+					bytesOutput.inflate(inflater, length << 2);
+				else
+					inflate(inflater, output);
+				if (inflater.getRemaining() != 0)
+					throw new ZipException("Unexpected bytes after the ZLIB stream");
+			} finally {
+				Pool.ZLIB_INFLATERS.release(inflater);
+			}
+		}
+
+		private static void setDictionary(final Inflater inflater, final Dictionary dictionary) throws IOException {
+			try {
+				// Read the zlib header
+				if (inflater.inflate(new byte[1]) != 0 || !inflater.needsDictionary())
+					throw new ZipException("The ZLIB stream does not use a dictionary");
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+			if (inflater.getAdler() != dictionary.adler)
+				throw new ZipException("The dictionary does not match the ZLIB stream");
+			inflater.setDictionary(dictionary.bytes);
+		}
+
+		private static void inflate(final Inflater inflater, final OutputStream output) throws IOException {
+			final byte[] chunk = Pool.BUFFERS.acquire(0);
+			try {
+				while (!inflater.finished()) {
+					final int n = inflater.inflate(chunk, 0, chunk.length);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						throw new EOFException("Unexpected end of ZLIB input stream");
+					output.write(chunk, 0, n);
+				}
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			} finally {
+				Pool.BUFFERS.release(chunk);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Deflate level: " + level + " strategy: " + strategy;
+		}
+	}
+
+	/**
+	 * Deflate with the preset dictionary of a class.
+	 * The id of the dictionary is written first, as a variable length integer.
+	 */
+	final static class DictionaryCodec implements Codec {
+
+		private final DeflateCodec deflateCodec;
+		private final Dictionary dictionary;
+
+		private DictionaryCodec(final DeflateCodec deflateCodec, final Dictionary dictionary) {
+			this.deflateCodec = deflateCodec;
+			this.dictionary = dictionary;
+		}
+
+		@Override
+		final public int getId() {
+			return DICTIONARY_ID;
+		}
+
+		@Override
+		final public void compress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			int value = dictionary.id;
+			while ((value & ~0x7F) != 0) {
+				output.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			output.write(value);
+			deflateCodec.compress(bytes, offset, length, dictionary, output);
+		}
+
+		@Override
+		final public void uncompress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+				throws IOException {
+			final int end = offset + length;
+			int pos = offset;
+			int id = 0;
+			for (int shift = 0; ; shift += 7) {
+				if (pos == end || shift == 35)
+					throw new StreamCorruptedException("Malformed dictionary id");
+				final int b = bytes[pos++];
+				id |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+			}
+			final Dictionary dictionary = Dictionary.get(id);
+			if (dictionary == null)
+				throw new StreamCorruptedException("Unknown dictionary id: " + id);
+			DeflateCodec.uncompress(bytes, pos, end - pos, dictionary, output);
+		}
+	}
+
+	/**
+	 * Keeps the stream of the caller open when the Snappy stream is closed
+	 */
+	private final static class NotClosingOutputStream extends FilterOutputStream {
+
+		private NotClosingOutputStream(final OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
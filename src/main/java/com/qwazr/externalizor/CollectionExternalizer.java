@@ -16,39 +16,46 @@
 package com.qwazr.externalizor;
 
 import org.roaringbitmap.RoaringBitmap;
-import org.xerial.snappy.Snappy;
 
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.lang.reflect.Field;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 
-	static <T, V> CollectionExternalizer<T, V> collection(final Field field, final Class<? extends T> clazz) {
-		if (Map.class.isAssignableFrom(clazz))
-			return (CollectionExternalizer<T, V>) new FieldMapExternalizer(field, clazz);
+	static <T, V> CollectionExternalizer<T, V> collection(final FieldAccessor accessor,
+			final Class<? extends T> clazz) {
+		if (Map.class.isAssignableFrom(clazz)) {
+			if (accessor.isAnnotationPresent(Columnar.class))
+				return (CollectionExternalizer<T, V>) new FieldColumnarMapExternalizer(accessor, clazz);
+			return (CollectionExternalizer<T, V>) new FieldMapExternalizer(accessor, clazz);
+		}
 		if (Collection.class.isAssignableFrom(clazz)) {
-			final Class<?> genericClass = FieldExternalizer.getGenericClass(field, 0);
+			if (accessor.isAnnotationPresent(Columnar.class))
+				return (CollectionExternalizer<T, V>) new FieldColumnarCollectionExternalizer(accessor, clazz);
+			final Class<?> genericClass = accessor.getTypeArgument(0);
 			if (Long.class.isAssignableFrom(genericClass))
-				return (CollectionExternalizer<T, V>) new FieldCollectionLongExternalizer(field, clazz);
+				return (CollectionExternalizer<T, V>) new FieldCollectionLongExternalizer(accessor, clazz);
 			if (Integer.class.isAssignableFrom(genericClass))
-				return (CollectionExternalizer<T, V>) new FieldCollectionIntegerExternalizer(field, clazz);
+				return (CollectionExternalizer<T, V>) new FieldCollectionIntegerExternalizer(accessor, clazz);
 			if (Short.class.isAssignableFrom(genericClass))
-				return (CollectionExternalizer<T, V>) new FieldCollectionShortExternalizer(field, clazz);
+				return (CollectionExternalizer<T, V>) new FieldCollectionShortExternalizer(accessor, clazz);
 			if (Double.class.isAssignableFrom(genericClass))
-				return (CollectionExternalizer<T, V>) new FieldCollectionDoubleExternalizer(field, clazz);
+				return (CollectionExternalizer<T, V>) new FieldCollectionDoubleExternalizer(accessor, clazz);
 			if (Float.class.isAssignableFrom(genericClass))
-				return (CollectionExternalizer<T, V>) new FieldCollectionFloatExternalizer(field, clazz);
+				return (CollectionExternalizer<T, V>) new FieldCollectionFloatExternalizer(accessor, clazz);
 			if (Character.class.isAssignableFrom(genericClass))
-				return (CollectionExternalizer<T, V>) new FieldCollectionCharacterExternalizer(field, clazz);
+				return (CollectionExternalizer<T, V>) new FieldCollectionCharacterExternalizer(accessor, clazz);
 			if (Byte.class.isAssignableFrom(genericClass))
-				return (CollectionExternalizer<T, V>) new FieldCollectionByteExternalizer(field, clazz);
+				return (CollectionExternalizer<T, V>) new FieldCollectionByteExternalizer(accessor, clazz);
 			if (Boolean.class.isAssignableFrom(genericClass))
-				return (CollectionExternalizer<T, V>) new FieldCollectionBooleanExternalizer(field, clazz);
-			return (CollectionExternalizer<T, V>) new FieldCollectionExternalizer(field, clazz);
+				return (CollectionExternalizer<T, V>) new FieldCollectionBooleanExternalizer(accessor, clazz);
+			return (CollectionExternalizer<T, V>) new FieldCollectionExternalizer(accessor, clazz);
 		}
 		// Can't handle this class, we return null
 		return null;
@@ -57,28 +64,61 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 	static Class<?> collectionClass(final Class<?> clazz) {
 		if (!Modifier.isAbstract(clazz.getModifiers()))
 			return clazz;
+		if (SortedSet.class.isAssignableFrom(clazz))
+			return TreeSet.class;
 		if (Set.class.isAssignableFrom(clazz))
 			return LinkedHashSet.class;
 		if (List.class.isAssignableFrom(clazz))
 			return ArrayList.class;
+		if (SortedMap.class.isAssignableFrom(clazz))
+			return TreeMap.class;
 		if (Map.class.isAssignableFrom(clazz))
 			return LinkedHashMap.class;
 		throw new ExternalizorException("Collection not supported: " + clazz);
 	}
 
-	abstract class FieldCollectionSnappyExternalizer<T, V>
-			extends FieldExternalizer.FieldConstructorExternalizer<T, Collection<V>>
-			implements CollectionExternalizer<T, Collection<V>> {
+	/**
+	 * A collection field. The collections whose add is expensive are filled as an ArrayList, then built in one step
+	 * (see {@link BulkCollections}).
+	 */
+	abstract class FieldBulkCollectionExternalizer<T, C extends Collection<?>>
+			extends FieldExternalizer.FieldConstructorExternalizer<T, C> implements CollectionExternalizer<T, C> {
+
+		private final Function<Object[], C> bulk;
+
+		protected FieldBulkCollectionExternalizer(final FieldAccessor accessor, final Class<? extends C> clazz) {
+			super(accessor, clazz);
+			bulk = BulkCollections.collection(clazz);
+		}
+
+		/**
+		 * @param size the number of elements
+		 * @return the collection to fill, passed to {@link #build(Collection)} when it is full
+		 * @throws ReflectiveOperationException if the collection cannot be created
+		 */
+		final protected C newCollection(final int size) throws ReflectiveOperationException {
+			return bulk == null ?
+					instantiator.newInstance(size) :
+					(C) new ArrayList<>(Math.min(size, Instantiator.MAX_CAPACITY));
+		}
+
+		final protected C build(final C collection) {
+			return bulk == null ? collection : bulk.apply(collection.toArray());
+		}
+	}
+
+	abstract class FieldCollectionSnappyExternalizer<T, V> extends FieldBulkCollectionExternalizer<T, Collection<V>> {
 
-		protected FieldCollectionSnappyExternalizer(final Field field, final Class<? extends Collection<V>> clazz) {
-			super(field, (Class<? extends Collection<V>>) collectionClass(clazz));
+		protected FieldCollectionSnappyExternalizer(final FieldAccessor accessor,
+				final Class<? extends Collection<V>> clazz) {
+			super(accessor, (Class<? extends Collection<V>>) collectionClass(clazz));
 		}
 
 		protected interface NullableArray<V> {
 
 			void set(final int i, final V value);
 
-			byte[] compress() throws IOException;
+			void write(final ObjectOutput out) throws IOException;
 		}
 
 		protected abstract NullableArray getNullableArray(final int size);
@@ -97,28 +137,28 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 				i++;
 			}
 			nullBitmap.writeExternal(out);
-			ArrayExternalizer.writeBytes(array.compress(), out);
+			array.write(out);
 		}
 
-		abstract protected void fillCollection(final ObjectInput in, final RoaringBitmap nullBitmap,
-				Collection<V> collection) throws IOException;
+		/**
+		 * Read the primitive array, the collection is created with the capacity for its elements
+		 */
+		abstract protected Collection<V> readCollection(final ObjectInput in, final RoaringBitmap nullBitmap)
+				throws IOException, ReflectiveOperationException;
 
 		@Override
-		final public Collection<V> readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
-			if (!in.readBoolean())
-				return null;
+		final protected Collection<V> readValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
 			final RoaringBitmap nullBitmap = new RoaringBitmap();
 			nullBitmap.readExternal(in);
-			final Collection<V> collection = constructor.newInstance();
-			fillCollection(in, nullBitmap, collection);
-			return collection;
+			return readCollection(in, nullBitmap);
 		}
 	}
 
 	final class FieldCollectionLongExternalizer<T> extends FieldCollectionSnappyExternalizer<T, Long> {
 
-		protected FieldCollectionLongExternalizer(final Field field, final Class<? extends Collection<Long>> clazz) {
-			super(field, clazz);
+		protected FieldCollectionLongExternalizer(final FieldAccessor accessor,
+				final Class<? extends Collection<Long>> clazz) {
+			super(accessor, clazz);
 		}
 
 		final private class LongNullableArray implements NullableArray<Long> {
@@ -135,8 +175,8 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			}
 
 			@Override
-			final public byte[] compress() throws IOException {
-				return Snappy.compress(array);
+			final public void write(final ObjectOutput out) throws IOException {
+				ArrayExternalizer.writeSnappy(array, array.length << 3, out);
 			}
 		}
 
@@ -145,20 +185,22 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			return new LongNullableArray(size);
 		}
 
-		final protected void fillCollection(final ObjectInput in, final RoaringBitmap nullBitmap,
-				final Collection<Long> collection) throws IOException {
-			final long[] array = Snappy.uncompressLongArray(ArrayExternalizer.readBytes(in));
+		final protected Collection<Long> readCollection(final ObjectInput in, final RoaringBitmap nullBitmap)
+				throws IOException, ReflectiveOperationException {
+			final long[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.LONG_ARRAY);
+			final Collection<Long> collection = newCollection(array.length);
 			int i = 0;
 			for (final long value : array)
 				collection.add(nullBitmap.contains(i++) ? null : value);
+			return build(collection);
 		}
 	}
 
 	final class FieldCollectionIntegerExternalizer<T> extends FieldCollectionSnappyExternalizer<T, Integer> {
 
-		protected FieldCollectionIntegerExternalizer(final Field field,
+		protected FieldCollectionIntegerExternalizer(final FieldAccessor accessor,
 				final Class<? extends Collection<Integer>> clazz) {
-			super(field, clazz);
+			super(accessor, clazz);
 		}
 
 		final private class IntegerNullableArray implements NullableArray<Integer> {
@@ -175,8 +217,8 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			}
 
 			@Override
-			final public byte[] compress() throws IOException {
-				return Snappy.compress(array);
+			final public void write(final ObjectOutput out) throws IOException {
+				ArrayExternalizer.writeSnappy(array, array.length << 2, out);
 			}
 		}
 
@@ -185,19 +227,22 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			return new IntegerNullableArray(size);
 		}
 
-		final protected void fillCollection(final ObjectInput in, final RoaringBitmap nullBitmap,
-				final Collection<Integer> collection) throws IOException {
-			final int[] array = Snappy.uncompressIntArray(ArrayExternalizer.readBytes(in));
+		final protected Collection<Integer> readCollection(final ObjectInput in, final RoaringBitmap nullBitmap)
+				throws IOException, ReflectiveOperationException {
+			final int[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.INT_ARRAY);
+			final Collection<Integer> collection = newCollection(array.length);
 			int i = 0;
 			for (final int value : array)
 				collection.add(nullBitmap.contains(i++) ? null : value);
+			return build(collection);
 		}
 	}
 
 	final class FieldCollectionShortExternalizer<T> extends FieldCollectionSnappyExternalizer<T, Short> {
 
-		protected FieldCollectionShortExternalizer(final Field field, final Class<? extends Collection<Short>> clazz) {
-			super(field, clazz);
+		protected FieldCollectionShortExternalizer(final FieldAccessor accessor,
+				final Class<? extends Collection<Short>> clazz) {
+			super(accessor, clazz);
 		}
 
 		final private class ShortNullableArray implements NullableArray<Short> {
@@ -214,8 +259,8 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			}
 
 			@Override
-			final public byte[] compress() throws IOException {
-				return Snappy.compress(array);
+			final public void write(final ObjectOutput out) throws IOException {
+				ArrayExternalizer.writeSnappy(array, array.length << 1, out);
 			}
 		}
 
@@ -224,20 +269,22 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			return new ShortNullableArray(size);
 		}
 
-		final protected void fillCollection(final ObjectInput in, final RoaringBitmap nullBitmap,
-				final Collection<Short> collection) throws IOException {
-			final short[] array = Snappy.uncompressShortArray(ArrayExternalizer.readBytes(in));
+		final protected Collection<Short> readCollection(final ObjectInput in, final RoaringBitmap nullBitmap)
+				throws IOException, ReflectiveOperationException {
+			final short[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.SHORT_ARRAY);
+			final Collection<Short> collection = newCollection(array.length);
 			int i = 0;
 			for (final short value : array)
 				collection.add(nullBitmap.contains(i++) ? null : value);
+			return build(collection);
 		}
 	}
 
 	final class FieldCollectionDoubleExternalizer<T> extends FieldCollectionSnappyExternalizer<T, Double> {
 
-		protected FieldCollectionDoubleExternalizer(final Field field,
+		protected FieldCollectionDoubleExternalizer(final FieldAccessor accessor,
 				final Class<? extends Collection<Double>> clazz) {
-			super(field, clazz);
+			super(accessor, clazz);
 		}
 
 		final private class DoubleNullableArray implements NullableArray<Double> {
@@ -254,8 +301,8 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			}
 
 			@Override
-			final public byte[] compress() throws IOException {
-				return Snappy.compress(array);
+			final public void write(final ObjectOutput out) throws IOException {
+				ArrayExternalizer.writeSnappy(array, array.length << 3, out);
 			}
 		}
 
@@ -264,19 +311,22 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			return new DoubleNullableArray(size);
 		}
 
-		final protected void fillCollection(final ObjectInput in, final RoaringBitmap nullBitmap,
-				final Collection<Double> collection) throws IOException {
-			final double[] array = Snappy.uncompressDoubleArray(ArrayExternalizer.readBytes(in));
+		final protected Collection<Double> readCollection(final ObjectInput in, final RoaringBitmap nullBitmap)
+				throws IOException, ReflectiveOperationException {
+			final double[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.DOUBLE_ARRAY);
+			final Collection<Double> collection = newCollection(array.length);
 			int i = 0;
 			for (final double value : array)
 				collection.add(nullBitmap.contains(i++) ? null : value);
+			return build(collection);
 		}
 	}
 
 	final class FieldCollectionFloatExternalizer<T> extends FieldCollectionSnappyExternalizer<T, Float> {
 
-		protected FieldCollectionFloatExternalizer(final Field field, final Class<? extends Collection<Float>> clazz) {
-			super(field, clazz);
+		protected FieldCollectionFloatExternalizer(final FieldAccessor accessor,
+				final Class<? extends Collection<Float>> clazz) {
+			super(accessor, clazz);
 		}
 
 		final private class FloatNullableArray implements NullableArray<Float> {
@@ -293,8 +343,8 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			}
 
 			@Override
-			final public byte[] compress() throws IOException {
-				return Snappy.compress(array);
+			final public void write(final ObjectOutput out) throws IOException {
+				ArrayExternalizer.writeSnappy(array, array.length << 2, out);
 			}
 		}
 
@@ -303,20 +353,22 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			return new FloatNullableArray(size);
 		}
 
-		final protected void fillCollection(final ObjectInput in, final RoaringBitmap nullBitmap,
-				final Collection<Float> collection) throws IOException {
-			final float[] array = Snappy.uncompressFloatArray(ArrayExternalizer.readBytes(in));
+		final protected Collection<Float> readCollection(final ObjectInput in, final RoaringBitmap nullBitmap)
+				throws IOException, ReflectiveOperationException {
+			final float[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.FLOAT_ARRAY);
+			final Collection<Float> collection = newCollection(array.length);
 			int i = 0;
 			for (final float value : array)
 				collection.add(nullBitmap.contains(i++) ? null : value);
+			return build(collection);
 		}
 	}
 
 	final class FieldCollectionCharacterExternalizer<T> extends FieldCollectionSnappyExternalizer<T, Character> {
 
-		protected FieldCollectionCharacterExternalizer(final Field field,
+		protected FieldCollectionCharacterExternalizer(final FieldAccessor accessor,
 				final Class<? extends Collection<Character>> clazz) {
-			super(field, clazz);
+			super(accessor, clazz);
 		}
 
 		final private class CharacterNullableArray implements NullableArray<Character> {
@@ -333,8 +385,8 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			}
 
 			@Override
-			final public byte[] compress() throws IOException {
-				return Snappy.compress(array);
+			final public void write(final ObjectOutput out) throws IOException {
+				ArrayExternalizer.writeSnappy(array, array.length << 1, out);
 			}
 		}
 
@@ -343,19 +395,22 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			return new CharacterNullableArray(size);
 		}
 
-		final protected void fillCollection(final ObjectInput in, final RoaringBitmap nullBitmap,
-				final Collection<Character> collection) throws IOException {
-			final char[] array = Snappy.uncompressCharArray(ArrayExternalizer.readBytes(in));
+		final protected Collection<Character> readCollection(final ObjectInput in, final RoaringBitmap nullBitmap)
+				throws IOException, ReflectiveOperationException {
+			final char[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.CHAR_ARRAY);
+			final Collection<Character> collection = newCollection(array.length);
 			int i = 0;
 			for (final char value : array)
 				collection.add(nullBitmap.contains(i++) ? null : value);
+			return build(collection);
 		}
 	}
 
 	final class FieldCollectionByteExternalizer<T> extends FieldCollectionSnappyExternalizer<T, Byte> {
 
-		protected FieldCollectionByteExternalizer(final Field field, final Class<? extends Collection<Byte>> clazz) {
-			super(field, clazz);
+		protected FieldCollectionByteExternalizer(final FieldAccessor accessor,
+				final Class<? extends Collection<Byte>> clazz) {
+			super(accessor, clazz);
 		}
 
 		final private class ByteNullableArray implements NullableArray<Byte> {
@@ -372,8 +427,8 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			}
 
 			@Override
-			final public byte[] compress() throws IOException {
-				return Snappy.compress(array);
+			final public void write(final ObjectOutput out) throws IOException {
+				ArrayExternalizer.writeSnappy(array, array.length, out);
 			}
 		}
 
@@ -382,22 +437,22 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 			return new ByteNullableArray(size);
 		}
 
-		final protected void fillCollection(final ObjectInput in, final RoaringBitmap nullBitmap,
-				final Collection<Byte> collection) throws IOException {
-			final byte[] array = Snappy.uncompress(ArrayExternalizer.readBytes(in));
+		final protected Collection<Byte> readCollection(final ObjectInput in, final RoaringBitmap nullBitmap)
+				throws IOException, ReflectiveOperationException {
+			final byte[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.BYTE_ARRAY);
+			final Collection<Byte> collection = newCollection(array.length);
 			int i = 0;
 			for (final byte value : array)
 				collection.add(nullBitmap.contains(i++) ? null : value);
+			return build(collection);
 		}
 	}
 
-	final class FieldCollectionBooleanExternalizer<T>
-			extends FieldExternalizer.FieldConstructorExternalizer<T, Collection<Boolean>>
-			implements CollectionExternalizer<T, Collection<Boolean>> {
+	final class FieldCollectionBooleanExternalizer<T> extends FieldBulkCollectionExternalizer<T, Collection<Boolean>> {
 
-		protected FieldCollectionBooleanExternalizer(final Field field,
+		protected FieldCollectionBooleanExternalizer(final FieldAccessor accessor,
 				final Class<? extends Collection<Boolean>> clazz) {
-			super(field, clazz);
+			super(accessor, clazz);
 		}
 
 		@Override
@@ -414,18 +469,16 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 					nullBitmap.add(i);
 				i++;
 			}
-			out.writeInt(collection.size());
+			VarInts.writeSize(out, collection.size());
 			nullBitmap.writeExternal(out);
 			booleanBitmap.writeExternal(out);
 		}
 
 		@Override
-		final public Collection<Boolean> readObject(final ObjectInput in)
+		final protected Collection<Boolean> readValue(final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			if (!in.readBoolean())
-				return null;
-			final Collection<Boolean> collection = constructor.newInstance();
-			final boolean[] array = new boolean[in.readInt()];
+			final boolean[] array = new boolean[VarInts.readSize(in)];
+			final Collection<Boolean> collection = newCollection(array.length);
 			final RoaringBitmap nullBitmap = new RoaringBitmap();
 			final RoaringBitmap booleanBitmap = new RoaringBitmap();
 			nullBitmap.readExternal(in);
@@ -436,37 +489,134 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 				else
 					collection.add(booleanBitmap.contains(i));
 			}
-			return collection;
+			return build(collection);
 		}
 	}
 
-	final class FieldCollectionExternalizer<T> extends FieldExternalizer.FieldConstructorExternalizer<T, Collection<?>>
-			implements CollectionExternalizer<T, Collection<?>> {
+	final class FieldCollectionExternalizer<T> extends FieldBulkCollectionExternalizer<T, Collection<?>> {
 
 		protected final Externalizer<Object, ?> componentExternalizer;
 
-		protected FieldCollectionExternalizer(final Field field, Class<? extends Collection<?>> clazz) {
-			super(field, (Class<? extends Collection<?>>) collectionClass(clazz));
+		protected FieldCollectionExternalizer(final FieldAccessor accessor, Class<? extends Collection<?>> clazz) {
+			super(accessor, (Class<? extends Collection<?>>) collectionClass(clazz));
 			componentExternalizer = getGeneric(0);
 		}
 
 		@Override
 		final protected void writeValue(final Collection<?> collection, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeInt(collection.size());
+			VarInts.writeSize(out, collection.size());
 			for (Object o : collection)
 				componentExternalizer.writeExternal(o, out);
 		}
 
 		@Override
-		final public Collection readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
-			if (!in.readBoolean())
-				return null;
-			final Collection collection = constructor.newInstance();
-			int size = in.readInt();
+		final protected Collection readValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			int size = VarInts.readSize(in);
+			final Collection collection = newCollection(size);
 			while (size-- > 0)
 				collection.add(componentExternalizer.readObject(in));
-			return collection;
+			return build(collection);
+		}
+	}
+
+	/**
+	 * A {@link Columnar} collection: the size, the null elements as a RoaringBitmap, then one column per field of the
+	 * non null elements (see {@link Columns#field(Externalizer)}).
+	 */
+	final class FieldColumnarCollectionExternalizer<T> extends FieldBulkCollectionExternalizer<T, Collection<?>> {
+
+		private final Class<?> elementClass;
+		private final Instantiator<?> elementInstantiator;
+		private final Columns.FieldColumn[] columns;
+
+		protected FieldColumnarCollectionExternalizer(final FieldAccessor accessor,
+				final Class<? extends Collection<?>> clazz) {
+			super(accessor, (Class<? extends Collection<?>>) collectionClass(clazz));
+			elementClass = accessor.getTypeArgument(0);
+			final ClassExternalizer<?> externalizer = ClassExternalizer.of(elementClass);
+			if (!(externalizer instanceof ClassExternalizer.RootExternalizer) ||
+					elementClass.isAnnotationPresent(Versioned.class))
+				throw new ExternalizorException(
+						"The elements of a columnar collection must be of a concrete and non versioned class: " +
+								accessor);
+			elementInstantiator = ((ClassExternalizer.RootExternalizer<?>) externalizer).instantiator;
+			final Collection<Externalizer> externalizers = new ArrayList<>();
+			ClassExternalizer.detectFields(elementClass, externalizers);
+			columns = new Columns.FieldColumn[externalizers.size()];
+			int i = 0;
+			for (final Externalizer fieldExternalizer : externalizers)
+				columns[i++] = Columns.field(fieldExternalizer);
+		}
+
+		@Override
+		final protected void writeValue(final Collection<?> collection, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final int size = collection.size();
+			final RoaringBitmap nullBitmap = new RoaringBitmap();
+			final Object[] objects = new Object[size];
+			int i = 0;
+			int count = 0;
+			for (final Object object : collection) {
+				if (object == null)
+					nullBitmap.add(i);
+				else if (object.getClass() != elementClass)
+					throw new ExternalizorException(
+							"The elements of a columnar collection must be " + elementClass + ": " + object.getClass());
+				else
+					objects[count++] = object;
+				i++;
+			}
+			VarInts.writeSize(out, size);
+			nullBitmap.writeExternal(out);
+			writeColumns(count == size ? objects : Arrays.copyOf(objects, count), out);
+		}
+
+		private void writeColumns(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			if (!(out instanceof BytesOutput)) {
+				for (final Columns.FieldColumn column : columns)
+					column.write(objects, out);
+				return;
+			}
+			// The null flags of the fields of the elements are not in the null bitmap of the enclosing object
+			final BytesOutput bytesOutput = (BytesOutput) out;
+			final long nulls = bytesOutput.beginNulls(0);
+			for (final Columns.FieldColumn column : columns)
+				column.write(objects, out);
+			bytesOutput.endNulls(nulls);
+		}
+
+		@Override
+		final protected Collection readValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			final int size = VarInts.readSize(in);
+			final RoaringBitmap nullBitmap = new RoaringBitmap();
+			nullBitmap.readExternal(in);
+			if (!nullBitmap.isEmpty() && nullBitmap.last() >= size)
+				throw new StreamCorruptedException("Null element out of the collection: " + nullBitmap.last());
+			final Object[] objects = new Object[size - nullBitmap.getCardinality()];
+			for (int i = 0; i < objects.length; i++)
+				objects[i] = elementInstantiator.newInstance();
+			readColumns(objects, in);
+			final Collection collection = newCollection(size);
+			int count = 0;
+			for (int i = 0; i < size; i++)
+				collection.add(nullBitmap.contains(i) ? null : objects[count++]);
+			return build(collection);
+		}
+
+		private void readColumns(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			if (!(in instanceof BytesInput)) {
+				for (final Columns.FieldColumn column : columns)
+					column.read(objects, in);
+				return;
+			}
+			final BytesInput bytesInput = (BytesInput) in;
+			final long nulls = bytesInput.beginNulls(0);
+			for (final Columns.FieldColumn column : columns)
+				column.read(objects, in);
+			bytesInput.endNulls(nulls);
 		}
 	}
 
@@ -475,17 +625,19 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 
 		private final Externalizer<Object, ?> keyExternalizer;
 		private final Externalizer<Object, ?> valueExternalizer;
+		private final BiFunction<Object[], Object[], Map<?, ?>> bulk;
 
-		private FieldMapExternalizer(final Field field, Class<? extends Map<?, ?>> clazz) {
-			super(field, (Class<? extends Map<?, ?>>) collectionClass(clazz));
+		private FieldMapExternalizer(final FieldAccessor accessor, Class<? extends Map<?, ?>> clazz) {
+			super(accessor, (Class<? extends Map<?, ?>>) collectionClass(clazz));
 			keyExternalizer = getGeneric(0);
 			valueExternalizer = getGeneric(1);
+			bulk = BulkCollections.map(collectionClass(clazz));
 		}
 
 		@Override
 		final protected void writeValue(final Map<?, ?> map, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeInt(map.size());
+			VarInts.writeSize(out, map.size());
 			for (Map.Entry entry : map.entrySet()) {
 				keyExternalizer.writeExternal(entry.getKey(), out);
 				valueExternalizer.writeExternal(entry.getValue(), out);
@@ -493,15 +645,93 @@ interface CollectionExternalizer<T, V> extends Externalizer<T, V> {
 		}
 
 		@Override
-		final public Map<?, ?> readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
-			if (!in.readBoolean())
-				return null;
-			final Map map = constructor.newInstance();
-			int size = in.readInt();
+		final protected Map<?, ?> readValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			int size = VarInts.readSize(in);
+			if (bulk != null) {
+				final List<Object> keys = new ArrayList<>(Math.min(size, Instantiator.MAX_CAPACITY));
+				final List<Object> values = new ArrayList<>(Math.min(size, Instantiator.MAX_CAPACITY));
+				while (size-- > 0) {
+					keys.add(keyExternalizer.readObject(in));
+					values.add(valueExternalizer.readObject(in));
+				}
+				return bulk.apply(keys.toArray(), values.toArray());
+			}
+			final Map map = instantiator.newInstance(size);
 			while (size-- > 0)
 				map.put(keyExternalizer.readObject(in), valueExternalizer.readObject(in));
 			return map;
 		}
 	}
 
+	/**
+	 * A {@link Columnar} map. All the keys are written, then all the values.
+	 * The boxed primitives and the strings are written as one column (see {@link Columns}), the other objects one
+	 * after the other.
+	 */
+	final class FieldColumnarMapExternalizer<T> extends FieldExternalizer.FieldConstructorExternalizer<T, Map<?, ?>>
+			implements CollectionExternalizer<T, Map<?, ?>> {
+
+		private final Columns.Column keyColumn;
+		private final Columns.Column valueColumn;
+		private final Externalizer<Object, ?> keyExternalizer;
+		private final Externalizer<Object, ?> valueExternalizer;
+		private final BiFunction<Object[], Object[], Map<?, ?>> bulk;
+
+		private FieldColumnarMapExternalizer(final FieldAccessor accessor, Class<? extends Map<?, ?>> clazz) {
+			super(accessor, (Class<? extends Map<?, ?>>) collectionClass(clazz));
+			keyColumn = Columns.of(accessor.getTypeArgument(0));
+			valueColumn = Columns.of(accessor.getTypeArgument(1));
+			keyExternalizer = keyColumn == null ? getGeneric(0) : null;
+			valueExternalizer = valueColumn == null ? getGeneric(1) : null;
+			bulk = BulkCollections.map(collectionClass(clazz));
+		}
+
+		@Override
+		final protected void writeValue(final Map<?, ?> map, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final Object[] keys = new Object[map.size()];
+			final Object[] values = new Object[keys.length];
+			int i = 0;
+			for (Map.Entry entry : map.entrySet()) {
+				keys[i] = entry.getKey();
+				values[i++] = entry.getValue();
+			}
+			VarInts.writeSize(out, keys.length);
+			write(keys, keyColumn, keyExternalizer, out);
+			write(values, valueColumn, valueExternalizer, out);
+		}
+
+		private static void write(final Object[] items, final Columns.Column column,
+				final Externalizer<Object, ?> externalizer, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			if (column != null)
+				column.write(items, out);
+			else
+				for (final Object item : items)
+					externalizer.writeExternal(item, out);
+		}
+
+		@Override
+		final protected Map<?, ?> readValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			final int size = VarInts.readSize(in);
+			final Object[] keys = read(in, size, keyColumn, keyExternalizer);
+			final Object[] values = read(in, size, valueColumn, valueExternalizer);
+			if (bulk != null)
+				return bulk.apply(keys, values);
+			final Map map = instantiator.newInstance(size);
+			for (int i = 0; i < size; i++)
+				map.put(keys[i], values[i]);
+			return map;
+		}
+
+		private static Object[] read(final ObjectInput in, final int size, final Columns.Column column,
+				final Externalizer<Object, ?> externalizer) throws IOException, ReflectiveOperationException {
+			if (column != null)
+				return column.read(in, size);
+			final List<Object> items = new ArrayList<>(Math.min(size, Instantiator.MAX_CAPACITY));
+			for (int i = 0; i < size; i++)
+				items.add(externalizer.readObject(in));
+			return items.toArray();
+		}
+	}
 }
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Writes a collection of objects column by column: the values of each field of the elements are gathered and
+ * written together, the primitive and the String fields using the compressed arrays.
+ * The elements must be instances of the declared element class, which must not be {@link Versioned}.
+ * The elements are written by value, they are not tracked as references.
+ * <p>
+ * On a map, all the keys are written then all the values. The boxed primitive and the String keys or values are
+ * written as one compressed column. Worth it for the large maps: a small map is larger than with the default format.
+ * <p>
+ * The annotation is a part of the format of the class: the writer and the reader must both see it.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Columnar {
+}
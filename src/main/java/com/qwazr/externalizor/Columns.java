@@ -0,0 +1,670 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.roaringbitmap.IntConsumer;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The columnar layout of the boxed primitives and the strings: the null flags are written in one RoaringBitmap, then
+ * all the values are packed in one Snappy block (two blocks for the strings: the lengths and the characters).
+ */
+final class Columns {
+
+	private final static Map<Class<?>, Column> COLUMNS = new HashMap<>();
+
+	static {
+		COLUMNS.put(Long.class, new LongColumn());
+		COLUMNS.put(Integer.class, new IntegerColumn());
+		COLUMNS.put(Short.class, new ShortColumn());
+		COLUMNS.put(Double.class, new DoubleColumn());
+		COLUMNS.put(Float.class, new FloatColumn());
+		COLUMNS.put(Character.class, new CharacterColumn());
+		COLUMNS.put(Byte.class, new ByteColumn());
+		COLUMNS.put(Boolean.class, new BooleanColumn());
+		COLUMNS.put(String.class, new StringColumn());
+	}
+
+	private Columns() {
+	}
+
+	/**
+	 * @param clazz the class of the values
+	 * @return the column of the class, or null if the values are not boxed primitives or strings
+	 */
+	static Column of(final Class<?> clazz) {
+		return COLUMNS.get(clazz);
+	}
+
+	/**
+	 * @param externalizer the externalizer of a field of the elements of a collection
+	 * @return the column of the field across the elements: a primitive array or a {@link Column} for the primitives,
+	 * the boxed primitives and the strings, the values one after the other for the other types
+	 */
+	static FieldColumn field(final Externalizer<?, ?> externalizer) {
+		if (externalizer instanceof FieldExternalizer) {
+			final FieldAccessor accessor = ((FieldExternalizer) externalizer).accessor;
+			final Class<?> type = accessor.type;
+			if (Long.TYPE.equals(type))
+				return new LongFieldColumn(accessor);
+			if (Integer.TYPE.equals(type))
+				return new IntegerFieldColumn(accessor);
+			if (Short.TYPE.equals(type))
+				return new ShortFieldColumn(accessor);
+			if (Double.TYPE.equals(type))
+				return new DoubleFieldColumn(accessor);
+			if (Float.TYPE.equals(type))
+				return new FloatFieldColumn(accessor);
+			if (Character.TYPE.equals(type))
+				return new CharacterFieldColumn(accessor);
+			if (Byte.TYPE.equals(type))
+				return new ByteFieldColumn(accessor);
+			if (Boolean.TYPE.equals(type))
+				return new BooleanFieldColumn(accessor);
+			final Column column = of(type);
+			if (column != null)
+				return new ValueFieldColumn(accessor, column);
+		}
+		return new SequenceFieldColumn(externalizer);
+	}
+
+	interface Column {
+
+		void write(final Object[] values, final ObjectOutput out) throws IOException;
+
+		/**
+		 * @param in   the input
+		 * @param size the number of values, written by the caller
+		 * @return the values
+		 * @throws IOException                  if the stream is corrupted or does not contain the given number of
+		 *                                      values
+		 * @throws ReflectiveOperationException if a bitmap cannot be read
+		 */
+		Object[] read(final ObjectInput in, final int size) throws IOException, ReflectiveOperationException;
+	}
+
+	private static abstract class NullableColumn implements Column {
+
+		/**
+		 * Write the values, the null values are written as zero
+		 */
+		protected abstract void writeValues(final Object[] values, final ObjectOutput out) throws IOException;
+
+		protected abstract Object[] readValues(final ObjectInput in, final int size)
+				throws IOException, ReflectiveOperationException;
+
+		@Override
+		final public void write(final Object[] values, final ObjectOutput out) throws IOException {
+			final RoaringBitmap nullBitmap = new RoaringBitmap();
+			for (int i = 0; i < values.length; i++)
+				if (values[i] == null)
+					nullBitmap.add(i);
+			nullBitmap.writeExternal(out);
+			writeValues(values, out);
+		}
+
+		@Override
+		final public Object[] read(final ObjectInput in, final int size)
+				throws IOException, ReflectiveOperationException {
+			final RoaringBitmap nullBitmap = new RoaringBitmap();
+			nullBitmap.readExternal(in);
+			if (!nullBitmap.isEmpty() && nullBitmap.last() >= size)
+				throw new StreamCorruptedException("Null flag out of the column: " + nullBitmap.last());
+			final Object[] values = readValues(in, size);
+			nullBitmap.forEach((IntConsumer) i -> values[i] = null);
+			return values;
+		}
+
+		protected static void checkLength(final int length, final int size) throws StreamCorruptedException {
+			if (length != size)
+				throw new StreamCorruptedException("Wrong column length: " + length + " - expected: " + size);
+		}
+	}
+
+	private final static class LongColumn extends NullableColumn {
+
+		@Override
+		final protected void writeValues(final Object[] values, final ObjectOutput out) throws IOException {
+			final long[] array = new long[values.length];
+			for (int i = 0; i < array.length; i++)
+				if (values[i] != null)
+					array[i] = (Long) values[i];
+			ArrayExternalizer.writeSnappy(array, array.length << 3, out);
+		}
+
+		@Override
+		final protected Object[] readValues(final ObjectInput in, final int size) throws IOException {
+			final long[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.LONG_ARRAY);
+			checkLength(array.length, size);
+			final Object[] values = new Object[size];
+			for (int i = 0; i < size; i++)
+				values[i] = array[i];
+			return values;
+		}
+	}
+
+	private final static class IntegerColumn extends NullableColumn {
+
+		@Override
+		final protected void writeValues(final Object[] values, final ObjectOutput out) throws IOException {
+			final int[] array = new int[values.length];
+			for (int i = 0; i < array.length; i++)
+				if (values[i] != null)
+					array[i] = (Integer) values[i];
+			ArrayExternalizer.writeSnappy(array, array.length << 2, out);
+		}
+
+		@Override
+		final protected Object[] readValues(final ObjectInput in, final int size) throws IOException {
+			final int[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.INT_ARRAY);
+			checkLength(array.length, size);
+			final Object[] values = new Object[size];
+			for (int i = 0; i < size; i++)
+				values[i] = array[i];
+			return values;
+		}
+	}
+
+	private final static class ShortColumn extends NullableColumn {
+
+		@Override
+		final protected void writeValues(final Object[] values, final ObjectOutput out) throws IOException {
+			final short[] array = new short[values.length];
+			for (int i = 0; i < array.length; i++)
+				if (values[i] != null)
+					array[i] = (Short) values[i];
+			ArrayExternalizer.writeSnappy(array, array.length << 1, out);
+		}
+
+		@Override
+		final protected Object[] readValues(final ObjectInput in, final int size) throws IOException {
+			final short[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.SHORT_ARRAY);
+			checkLength(array.length, size);
+			final Object[] values = new Object[size];
+			for (int i = 0; i < size; i++)
+				values[i] = array[i];
+			return values;
+		}
+	}
+
+	private final static class DoubleColumn extends NullableColumn {
+
+		@Override
+		final protected void writeValues(final Object[] values, final ObjectOutput out) throws IOException {
+			final double[] array = new double[values.length];
+			for (int i = 0; i < array.length; i++)
+				if (values[i] != null)
+					array[i] = (Double) values[i];
+			ArrayExternalizer.writeSnappy(array, array.length << 3, out);
+		}
+
+		@Override
+		final protected Object[] readValues(final ObjectInput in, final int size) throws IOException {
+			final double[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.DOUBLE_ARRAY);
+			checkLength(array.length, size);
+			final Object[] values = new Object[size];
+			for (int i = 0; i < size; i++)
+				values[i] = array[i];
+			return values;
+		}
+	}
+
+	private final static class FloatColumn extends NullableColumn {
+
+		@Override
+		final protected void writeValues(final Object[] values, final ObjectOutput out) throws IOException {
+			final float[] array = new float[values.length];
+			for (int i = 0; i < array.length; i++)
+				if (values[i] != null)
+					array[i] = (Float) values[i];
+			ArrayExternalizer.writeSnappy(array, array.length << 2, out);
+		}
+
+		@Override
+		final protected Object[] readValues(final ObjectInput in, final int size) throws IOException {
+			final float[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.FLOAT_ARRAY);
+			checkLength(array.length, size);
+			final Object[] values = new Object[size];
+			for (int i = 0; i < size; i++)
+				values[i] = array[i];
+			return values;
+		}
+	}
+
+	private final static class CharacterColumn extends NullableColumn {
+
+		@Override
+		final protected void writeValues(final Object[] values, final ObjectOutput out) throws IOException {
+			final char[] array = new char[values.length];
+			for (int i = 0; i < array.length; i++)
+				if (values[i] != null)
+					array[i] = (Character) values[i];
+			ArrayExternalizer.writeSnappy(array, array.length << 1, out);
+		}
+
+		@Override
+		final protected Object[] readValues(final ObjectInput in, final int size) throws IOException {
+			final char[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.CHAR_ARRAY);
+			checkLength(array.length, size);
+			final Object[] values = new Object[size];
+			for (int i = 0; i < size; i++)
+				values[i] = array[i];
+			return values;
+		}
+	}
+
+	private final static class ByteColumn extends NullableColumn {
+
+		@Override
+		final protected void writeValues(final Object[] values, final ObjectOutput out) throws IOException {
+			final byte[] array = new byte[values.length];
+			for (int i = 0; i < array.length; i++)
+				if (values[i] != null)
+					array[i] = (Byte) values[i];
+			ArrayExternalizer.writeSnappy(array, array.length, out);
+		}
+
+		@Override
+		final protected Object[] readValues(final ObjectInput in, final int size) throws IOException {
+			final byte[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.BYTE_ARRAY);
+			checkLength(array.length, size);
+			final Object[] values = new Object[size];
+			for (int i = 0; i < size; i++)
+				values[i] = array[i];
+			return values;
+		}
+	}
+
+	/**
+	 * The true values are written in a RoaringBitmap
+	 */
+	private final static class BooleanColumn extends NullableColumn {
+
+		@Override
+		final protected void writeValues(final Object[] values, final ObjectOutput out) throws IOException {
+			final RoaringBitmap booleanBitmap = new RoaringBitmap();
+			for (int i = 0; i < values.length; i++)
+				if (values[i] != null && (Boolean) values[i])
+					booleanBitmap.add(i);
+			booleanBitmap.writeExternal(out);
+		}
+
+		@Override
+		final protected Object[] readValues(final ObjectInput in, final int size)
+				throws IOException, ReflectiveOperationException {
+			final RoaringBitmap booleanBitmap = new RoaringBitmap();
+			booleanBitmap.readExternal(in);
+			if (!booleanBitmap.isEmpty() && booleanBitmap.last() >= size)
+				throw new StreamCorruptedException("Boolean out of the column: " + booleanBitmap.last());
+			final Object[] values = new Object[size];
+			Arrays.fill(values, Boolean.FALSE);
+			booleanBitmap.forEach((IntConsumer) i -> values[i] = Boolean.TRUE);
+			return values;
+		}
+	}
+
+	/**
+	 * The lengths of the strings in one block, then all their characters in another block.
+	 * The characters are written as UTF-16, any string is read back unchanged.
+	 */
+	private final static class StringColumn extends NullableColumn {
+
+		@Override
+		final protected void writeValues(final Object[] values, final ObjectOutput out) throws IOException {
+			final int[] lengths = new int[values.length];
+			long total = 0;
+			for (int i = 0; i < lengths.length; i++) {
+				if (values[i] != null) {
+					lengths[i] = ((String) values[i]).length();
+					total += lengths[i];
+				}
+			}
+			if (total > Integer.MAX_VALUE >> 1)
+				throw new ExternalizorException("The strings are too large for one column: " + total);
+			final char[] chars = new char[(int) total];
+			int pos = 0;
+			for (int i = 0; i < lengths.length; i++) {
+				if (values[i] != null) {
+					((String) values[i]).getChars(0, lengths[i], chars, pos);
+					pos += lengths[i];
+				}
+			}
+			ArrayExternalizer.writeSnappy(lengths, lengths.length << 2, out);
+			ArrayExternalizer.writeSnappy(chars, chars.length << 1, out);
+		}
+
+		@Override
+		final protected Object[] readValues(final ObjectInput in, final int size) throws IOException {
+			final int[] lengths = ArrayExternalizer.readSnappy(in, ArrayExternalizer.INT_ARRAY);
+			checkLength(lengths.length, size);
+			final char[] chars = ArrayExternalizer.readSnappy(in, ArrayExternalizer.CHAR_ARRAY);
+			final Object[] values = new Object[size];
+			int pos = 0;
+			for (int i = 0; i < size; i++) {
+				final int length = lengths[i];
+				if (length < 0 || length > chars.length - pos)
+					throw new StreamCorruptedException("Wrong string length in the column: " + length);
+				values[i] = new String(chars, pos, length);
+				pos += length;
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * One field of the elements of a collection
+	 */
+	interface FieldColumn {
+
+		/**
+		 * @param objects the elements, not null
+		 * @param out     the output
+		 * @throws IOException                  if the column cannot be written
+		 * @throws ReflectiveOperationException if a field cannot be read
+		 */
+		void write(final Object[] objects, final ObjectOutput out) throws IOException, ReflectiveOperationException;
+
+		/**
+		 * @param objects the new elements, whose field is set
+		 * @param in      the input
+		 * @throws IOException                  if the stream is corrupted
+		 * @throws ReflectiveOperationException if a field cannot be set
+		 */
+		void read(final Object[] objects, final ObjectInput in) throws IOException, ReflectiveOperationException;
+	}
+
+	private final static class LongFieldColumn implements FieldColumn {
+
+		private final FieldAccessor accessor;
+
+		private LongFieldColumn(final FieldAccessor accessor) {
+			this.accessor = accessor;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final long[] array = new long[objects.length];
+			for (int i = 0; i < array.length; i++)
+				array[i] = accessor.getLong(objects[i]);
+			ArrayExternalizer.writeSnappy(array, array.length << 3, out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final long[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.LONG_ARRAY);
+			NullableColumn.checkLength(array.length, objects.length);
+			for (int i = 0; i < array.length; i++)
+				accessor.setLong(objects[i], array[i]);
+		}
+	}
+
+	private final static class IntegerFieldColumn implements FieldColumn {
+
+		private final FieldAccessor accessor;
+
+		private IntegerFieldColumn(final FieldAccessor accessor) {
+			this.accessor = accessor;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final int[] array = new int[objects.length];
+			for (int i = 0; i < array.length; i++)
+				array[i] = accessor.getInt(objects[i]);
+			ArrayExternalizer.writeSnappy(array, array.length << 2, out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final int[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.INT_ARRAY);
+			NullableColumn.checkLength(array.length, objects.length);
+			for (int i = 0; i < array.length; i++)
+				accessor.setInt(objects[i], array[i]);
+		}
+	}
+
+	private final static class ShortFieldColumn implements FieldColumn {
+
+		private final FieldAccessor accessor;
+
+		private ShortFieldColumn(final FieldAccessor accessor) {
+			this.accessor = accessor;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final short[] array = new short[objects.length];
+			for (int i = 0; i < array.length; i++)
+				array[i] = accessor.getShort(objects[i]);
+			ArrayExternalizer.writeSnappy(array, array.length << 1, out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final short[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.SHORT_ARRAY);
+			NullableColumn.checkLength(array.length, objects.length);
+			for (int i = 0; i < array.length; i++)
+				accessor.setShort(objects[i], array[i]);
+		}
+	}
+
+	private final static class DoubleFieldColumn implements FieldColumn {
+
+		private final FieldAccessor accessor;
+
+		private DoubleFieldColumn(final FieldAccessor accessor) {
+			this.accessor = accessor;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final double[] array = new double[objects.length];
+			for (int i = 0; i < array.length; i++)
+				array[i] = accessor.getDouble(objects[i]);
+			ArrayExternalizer.writeSnappy(array, array.length << 3, out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final double[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.DOUBLE_ARRAY);
+			NullableColumn.checkLength(array.length, objects.length);
+			for (int i = 0; i < array.length; i++)
+				accessor.setDouble(objects[i], array[i]);
+		}
+	}
+
+	private final static class FloatFieldColumn implements FieldColumn {
+
+		private final FieldAccessor accessor;
+
+		private FloatFieldColumn(final FieldAccessor accessor) {
+			this.accessor = accessor;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final float[] array = new float[objects.length];
+			for (int i = 0; i < array.length; i++)
+				array[i] = accessor.getFloat(objects[i]);
+			ArrayExternalizer.writeSnappy(array, array.length << 2, out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final float[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.FLOAT_ARRAY);
+			NullableColumn.checkLength(array.length, objects.length);
+			for (int i = 0; i < array.length; i++)
+				accessor.setFloat(objects[i], array[i]);
+		}
+	}
+
+	private final static class CharacterFieldColumn implements FieldColumn {
+
+		private final FieldAccessor accessor;
+
+		private CharacterFieldColumn(final FieldAccessor accessor) {
+			this.accessor = accessor;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final char[] array = new char[objects.length];
+			for (int i = 0; i < array.length; i++)
+				array[i] = accessor.getChar(objects[i]);
+			ArrayExternalizer.writeSnappy(array, array.length << 1, out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final char[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.CHAR_ARRAY);
+			NullableColumn.checkLength(array.length, objects.length);
+			for (int i = 0; i < array.length; i++)
+				accessor.setChar(objects[i], array[i]);
+		}
+	}
+
+	private final static class ByteFieldColumn implements FieldColumn {
+
+		private final FieldAccessor accessor;
+
+		private ByteFieldColumn(final FieldAccessor accessor) {
+			this.accessor = accessor;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final byte[] array = new byte[objects.length];
+			for (int i = 0; i < array.length; i++)
+				array[i] = accessor.getByte(objects[i]);
+			ArrayExternalizer.writeSnappy(array, array.length, out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final byte[] array = ArrayExternalizer.readSnappy(in, ArrayExternalizer.BYTE_ARRAY);
+			NullableColumn.checkLength(array.length, objects.length);
+			for (int i = 0; i < array.length; i++)
+				accessor.setByte(objects[i], array[i]);
+		}
+	}
+
+	/**
+	 * The true values are written in a RoaringBitmap
+	 */
+	private final static class BooleanFieldColumn implements FieldColumn {
+
+		private final FieldAccessor accessor;
+
+		private BooleanFieldColumn(final FieldAccessor accessor) {
+			this.accessor = accessor;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final RoaringBitmap booleanBitmap = new RoaringBitmap();
+			for (int i = 0; i < objects.length; i++)
+				if (accessor.getBoolean(objects[i]))
+					booleanBitmap.add(i);
+			booleanBitmap.writeExternal(out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final RoaringBitmap booleanBitmap = new RoaringBitmap();
+			booleanBitmap.readExternal(in);
+			for (int i = 0; i < objects.length; i++)
+				accessor.setBoolean(objects[i], booleanBitmap.contains(i));
+		}
+	}
+
+	private final static class ValueFieldColumn implements FieldColumn {
+
+		private final FieldAccessor accessor;
+		private final Column column;
+
+		private ValueFieldColumn(final FieldAccessor accessor, final Column column) {
+			this.accessor = accessor;
+			this.column = column;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final Object[] values = new Object[objects.length];
+			for (int i = 0; i < values.length; i++)
+				values[i] = accessor.get(objects[i]);
+			column.write(values, out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final Object[] values = column.read(in, objects.length);
+			for (int i = 0; i < values.length; i++)
+				accessor.set(objects[i], values[i]);
+		}
+	}
+
+	/**
+	 * The values written one after the other by the externalizer of the field
+	 */
+	private final static class SequenceFieldColumn implements FieldColumn {
+
+		private final Externalizer<Object, ?> externalizer;
+
+		private SequenceFieldColumn(final Externalizer<?, ?> externalizer) {
+			this.externalizer = (Externalizer<Object, ?>) externalizer;
+		}
+
+		@Override
+		final public void write(final Object[] objects, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			for (final Object object : objects)
+				externalizer.writeExternal(object, out);
+		}
+
+		@Override
+		final public void read(final Object[] objects, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			for (final Object object : objects)
+				externalizer.readExternal(object, in);
+		}
+	}
+}
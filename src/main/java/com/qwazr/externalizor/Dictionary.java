@@ -0,0 +1,87 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+
+/**
+ * A preset dictionary of the Deflate compression, registered for one class.
+ * <p>
+ * The compressed frame carries the id of the dictionary. The dictionary of a class can be replaced,
+ * the previous one is still used to read the frames written with its id.
+ */
+final class Dictionary {
+
+	/**
+	 * The size of the Deflate window, the bytes before are never used
+	 */
+	final static int MAX_SIZE = 32768;
+
+	/**
+	 * The default size of a trained dictionary, setting a larger dictionary costs more than it saves on small objects
+	 */
+	final static int DEFAULT_SIZE = 4096;
+
+	private final static ConcurrentHashMap<Class<?>, Dictionary> byClass = new ConcurrentHashMap<>();
+
+	private final static ConcurrentHashMap<Integer, Dictionary> byId = new ConcurrentHashMap<>();
+
+	final int id;
+	final byte[] bytes;
+	final int adler;
+
+	private Dictionary(final int id, final byte[] bytes) {
+		this.id = id;
+		this.bytes = bytes;
+		final Adler32 adler32 = new Adler32();
+		adler32.update(bytes, 0, bytes.length);
+		this.adler = (int) adler32.getValue();
+	}
+
+	static void register(final Class<?> clazz, final int id, final byte[] bytes) {
+		if (id < 0)
+			throw new ExternalizorException("The dictionary id must be positive: " + id);
+		if (bytes.length == 0 || bytes.length > MAX_SIZE)
+			throw new ExternalizorException("The dictionary size must be between 1 and " + MAX_SIZE + ": " +
+					bytes.length);
+		final Dictionary dictionary = new Dictionary(id, Arrays.copyOf(bytes, bytes.length));
+		final Dictionary previous = byId.putIfAbsent(id, dictionary);
+		if (previous != null && !Arrays.equals(previous.bytes, bytes))
+			throw new ExternalizorException("The dictionary id " + id + " is already used");
+		byClass.put(clazz, previous != null ? previous : dictionary);
+	}
+
+	/**
+	 * @return the dictionary used to compress the instances of the class, or null
+	 */
+	static Dictionary of(final Class<?> clazz) {
+		return byClass.get(clazz);
+	}
+
+	static Dictionary get(final int id) {
+		return byId.get(id);
+	}
+
+	/**
+	 * Forget all the registered dictionaries. Used by the tests, the registry is global.
+	 */
+	static void clear() {
+		byClass.clear();
+		byId.clear();
+	}
+}
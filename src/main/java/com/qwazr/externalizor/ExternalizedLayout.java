@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.util.function.Supplier;
+
+/**
+ * The serialization layout of a class, computed at build time.
+ * <p>
+ * The implementations are generated by the externalizor-processor for the classes annotated with
+ * {@link Externalized}, and found using the {@link java.util.ServiceLoader}.
+ * The externalizer built from a layout writes exactly the same bytes than the one built by reflection.
+ *
+ * @param <T> the described class
+ */
+public interface ExternalizedLayout<T> {
+
+	/**
+	 * @return the described class
+	 */
+	Class<T> getType();
+
+	/**
+	 * @return the names of the serialized fields declared by the class (not static, not transient),
+	 * in declaration order. The fields of the super classes are not included.
+	 */
+	String[] getFieldNames();
+
+	/**
+	 * @return a supplier calling the public empty constructor, or null if the class does not have one
+	 */
+	Supplier<T> getInstantiator();
+
+	/**
+	 * @return the accessors of the serialized fields, in the order of {@link #getFieldNames()}, or null to let the
+	 * fields be found by reflection
+	 */
+	default FieldAccessor[] getFieldAccessors() {
+		return null;
+	}
+}
@@ -18,7 +18,6 @@ package com.qwazr.externalizor;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.lang.reflect.Field;
 
 interface Externalizer<T, V> {
 
@@ -31,21 +30,34 @@ interface Externalizer<T, V> {
 		return (Externalizer<T, V>) ClassExternalizer.of(clazz);
 	}
 
-	static <T, V> Externalizer<T, V> of(final Field field, final Class<? extends T> clazz) {
+	/**
+	 * The externalizer of an element of an array or of a collection, or of a key or a value of a map. The objects are
+	 * tracked like the fields (see {@link ClassExternalizer#field(FieldAccessor, Class)}).
+	 */
+	static <T, V> Externalizer<T, V> component(final Class<? extends T> clazz) {
+		final Externalizer<T, V> externalizer = of(clazz);
+		if (!(externalizer instanceof ClassExternalizer) || clazz.isAnnotationPresent(Acyclic.class))
+			return externalizer;
+		return (Externalizer<T, V>) new FieldExternalizer.ReferenceExternalizer<>((ClassExternalizer<V>) externalizer);
+	}
+
+	static <T, V> Externalizer<T, V> of(final FieldAccessor accessor, final Class<? extends T> clazz) {
 		Externalizer<T, V> externalizer;
+		if (accessor.isAnnotationPresent(VarInt.class))
+			return (Externalizer<T, V>) PrimitiveExternalizer.varInt(accessor, clazz);
 		if (clazz.isPrimitive())
-			if ((externalizer = (Externalizer<T, V>) PrimitiveExternalizer.primitive(field, clazz)) != null)
+			if ((externalizer = (Externalizer<T, V>) PrimitiveExternalizer.primitive(accessor, clazz)) != null)
 				return externalizer;
 		if (clazz.isArray())
-			if ((externalizer = (Externalizer<T, V>) ArrayExternalizer.array(field, clazz)) != null)
+			if ((externalizer = (Externalizer<T, V>) ArrayExternalizer.array(accessor, clazz)) != null)
 				return externalizer;
-		if ((externalizer = (Externalizer<T, V>) CollectionExternalizer.collection(field, clazz)) != null)
+		if ((externalizer = (Externalizer<T, V>) CollectionExternalizer.collection(accessor, clazz)) != null)
 			return externalizer;
-		if ((externalizer = (Externalizer<T, V>) LangExternalizer.lang(field, clazz)) != null)
+		if ((externalizer = (Externalizer<T, V>) LangExternalizer.lang(accessor, clazz)) != null)
 			return externalizer;
-		if ((externalizer = (Externalizer<T, V>) TimeExternalizer.time(field, clazz)) != null)
+		if ((externalizer = (Externalizer<T, V>) TimeExternalizer.time(accessor, clazz)) != null)
 			return externalizer;
-		return new FieldExternalizer.FieldParentExternalizer(field, ClassExternalizer.of(clazz));
+		return (Externalizer<T, V>) ClassExternalizer.field(accessor, clazz);
 	}
 
 	void writeExternal(final T object, final ObjectOutput out) throws IOException, ReflectiveOperationException;
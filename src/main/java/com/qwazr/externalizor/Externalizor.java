@@ -15,22 +15,397 @@
  */
 package com.qwazr.externalizor;
 
-import java.io.*;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ForkJoinPool;
 
 public class Externalizor {
 
+	/**
+	 * The version of the format, in the low bits of the first byte of a serialized object. The high bits are the modes
+	 * of the writer (see {@link BytesOutput#formatFlags()}). The objects written by the versions before the format
+	 * version start with the header of an ObjectOutputStream, they are still read.
+	 */
+	final static int FORMAT_VERSION = 1;
+
+	final static int FORMAT_VERSION_MASK = 0x0F;
+
 	private final static ConcurrentHashMap<Class<?>, Externalizer> externalizerMap = new ConcurrentHashMap();
 
+	private static volatile boolean instantiateWithoutConstructor;
+
+	private static volatile Codec defaultCodec = Codec.GZIP;
+
+	private static volatile int stringTableSize;
+
+	private static volatile boolean referenceTracking;
+
+	private static volatile boolean nullBitmap;
+
+	private static volatile boolean varInts;
+
+	private static volatile boolean enumOrdinals;
+
+	private static volatile int parallelCompression;
+
+	private static volatile ForkJoinPool compressionPool = ForkJoinPool.commonPool();
+
 	public final static <T> Externalizer<T, T> of(final Class<T> clazz) {
 		return externalizerMap.computeIfAbsent(clazz, aClass -> Externalizer.of(aClass));
 	}
 
 	/**
-	 * Serializes an Object to the specified stream using compression.
+	 * Forget the externalizers built so far, they are built again at their next use
+	 */
+	static void clear() {
+		externalizerMap.clear();
+	}
+
+	/**
+	 * Build the externalizers of the classes, including the externalizers of their fields and the generated
+	 * serializer classes, which are otherwise built by the first serialization of each class.
+	 *
+	 * @param classes the classes to prepare
+	 * @throws ExternalizorException if a class is not supported
+	 */
+	public static final void warmup(final Class<?>... classes) {
+		Objects.requireNonNull(classes, "The classes are null");
+		for (final Class<?> clazz : classes)
+			of(Objects.requireNonNull(clazz, "The class is null"));
+	}
+
+	/**
+	 * Build the externalizers of the classes annotated with {@link Externalized}, whose layouts are found using the
+	 * ServiceLoader.
+	 *
+	 * @return the number of classes
+	 * @throws ExternalizorException if a class is not supported
+	 */
+	public static final int warmupLayouts() {
+		final Set<Class<?>> types = ClassExternalizer.Layouts.types();
+		for (final Class<?> clazz : types)
+			of(clazz);
+		return types.size();
+	}
+
+	/**
+	 * Serialize and deserialize the samples several times, raw and with the default codec, to let the JIT compile
+	 * the serialization code before the first real object.
+	 *
+	 * @param samples the sample objects, representative of the objects which will be serialized
+	 * @param rounds  the number of round trips of each sample
+	 * @throws IOException if the serialization fails
+	 */
+	public static final void warmup(final Collection<?> samples, final int rounds)
+			throws IOException, ReflectiveOperationException {
+		Objects.requireNonNull(samples, "The samples are null");
+		if (rounds < 0)
+			throw new IllegalArgumentException("The number of rounds must be positive: " + rounds);
+		for (final Object sample : samples)
+			of(sample.getClass());
+		final BytesOutput compressed = Pool.OUTPUTS.acquire(0);
+		try {
+			for (int i = 0; i < rounds; i++) {
+				for (final Object sample : samples) {
+					final BytesOutput bytes = writeRaw(sample);
+					try {
+						readRaw(of(sample.getClass()), new BytesInput(bytes.buffer(), 0, bytes.size()));
+					} finally {
+						Pool.OUTPUTS.release(bytes);
+					}
+					compressed.reset();
+					serialize(sample, compressed.asOutputStream());
+					deserialize(new ByteArrayInputStream(compressed.buffer(), 0, compressed.size()),
+							sample.getClass());
+				}
+			}
+		} finally {
+			Pool.OUTPUTS.release(compressed);
+		}
+	}
+
+	/**
+	 * Register a class with a compact id. A field declared as a Serializable interface or abstract class, and the
+	 * elements of a collection or the values of a map declared this way, write the id of the class of the value
+	 * followed by the value written by the externalizer of the class. The values of the classes which are not
+	 * registered use the Java serialization.
+	 * <p>
+	 * The class must be registered with the same id to deserialize the objects written with it.
+	 *
+	 * @param clazz the concrete class, must not be null
+	 * @param id    the id of the class, positive and unique
+	 * @throws ExternalizorException if the class is abstract, if the id is already used by another class or if the
+	 *                               class is already registered with another id
+	 */
+	public static final void register(final Class<?> clazz, final int id) {
+		Objects.requireNonNull(clazz, "The class is null");
+		ClassIds.register(clazz, id);
+	}
+
+	/**
+	 * Allows the classes without a public empty constructor to be created without calling any constructor,
+	 * like the Java serialization does, instead of falling back to the Java serialization.
+	 * <p>
+	 * The setting applies to the classes which are not already known, it should be set before any serialization.
+	 *
+	 * @param enabled true to create the instances without calling the constructor
+	 */
+	public static final void setInstantiateWithoutConstructor(final boolean enabled) {
+		instantiateWithoutConstructor = enabled;
+	}
+
+	public static final boolean isInstantiateWithoutConstructor() {
+		return instantiateWithoutConstructor;
+	}
+
+	/**
+	 * Enables the string table: in one serialized object, a repeated string is written once, the next occurrences
+	 * are written as a reference to the first one. The deserialized strings share the same instance.
+	 * <p>
+	 * The table is disabled by default. The objects written with the table are read whatever the setting.
+	 *
+	 * @param maxSize the maximum number of distinct strings kept by each stream, 0 to disable the table
+	 */
+	public static final void setStringTableSize(final int maxSize) {
+		if (maxSize < 0)
+			throw new IllegalArgumentException("The size must be positive: " + maxSize);
+		stringTableSize = maxSize;
+	}
+
+	public static final int getStringTableSize() {
+		return stringTableSize;
+	}
+
+	/**
+	 * Enables the reference tracking: in one serialized object, an object referenced several times by the fields, the
+	 * arrays, the collections or the maps is written once, the next references are written as a handle. The shared
+	 * objects stay shared, and the cyclic graphs can be serialized.
+	 * <p>
+	 * The tracking is disabled by default. The classes annotated with {@link Acyclic} are never tracked.
+	 * The objects written with the tracking are read whatever the setting.
+	 *
+	 * @param enabled true to track the references
+	 */
+	public static final void setReferenceTracking(final boolean enabled) {
+		referenceTracking = enabled;
+	}
+
+	public static final boolean isReferenceTracking() {
+		return referenceTracking;
+	}
+
+	/**
+	 * Enables the null bitmap: the null flags of the fields of an object are written as one bit per field before
+	 * the fields, instead of one byte before each field. The boxed values are then written without their own flag.
+	 * <p>
+	 * The bitmap is disabled by default. The stream tells whether the bitmap has been used, the objects are read
+	 * whatever the setting.
+	 *
+	 * @param enabled true to write the null flags in a bitmap
+	 */
+	public static final void setNullBitmap(final boolean enabled) {
+		nullBitmap = enabled;
+	}
+
+	public static final boolean isNullBitmap() {
+		return nullBitmap;
+	}
+
+	/**
+	 * Enables the variable length encoding: the ints and the longs (the primitive and boxed fields, the epoch and
+	 * nanosecond values of the time types) are written as zigzag variable length integers, the lengths of the arrays
+	 * and the sizes of the collections as variable length integers. The small values use one or two bytes instead of
+	 * four or eight, the large values take up to one or two more bytes.
+	 * <p>
+	 * The encoding is disabled by default. As for the null bitmap, the stream tells whether the encoding has been used,
+	 * the objects are read whatever the setting. A single field can use the encoding whatever the setting with the
+	 * {@link VarInt} annotation.
+	 *
+	 * @param enabled true to write the ints, the longs and the lengths with a variable length
+	 */
+	public static final void setVarInts(final boolean enabled) {
+		varInts = enabled;
+	}
+
+	public static final boolean isVarInts() {
+		return varInts;
+	}
+
+	/**
+	 * Enables the ordinals of the enums: a constant is written as its ordinal, with its name the first time the
+	 * constant is written in the stream. The reader maps the ordinals to its own constants by name, the reordered
+	 * constants are read correctly. Smaller when the same constants are written several times, larger when each
+	 * constant is written once.
+	 * <p>
+	 * The ordinals are disabled by default, the constants are written as their name. The objects written with the
+	 * ordinals are read whatever the setting.
+	 *
+	 * @param enabled true to write the enums as ordinals
+	 */
+	public static final void setEnumOrdinals(final boolean enabled) {
+		enumOrdinals = enabled;
+	}
+
+	public static final boolean isEnumOrdinals() {
+		return enumOrdinals;
+	}
+
+	/**
+	 * Enables the parallel compression of the large primitive arrays (the array fields, the collections of boxed
+	 * primitives, the columns): an array of at least the given size is cut in chunks of 512 KiB, compressed and
+	 * uncompressed in parallel by the compression pool. The temporary memory is one compressed chunk per thread of
+	 * the pool, instead of the compressed size of the whole array.
+	 * <p>
+	 * The parallel compression is disabled by default. The arrays written in chunks are read whatever the setting.
+	 *
+	 * @param minByteLength the size in bytes of the smallest array compressed in chunks, 0 to disable
+	 */
+	public static final void setParallelCompression(final int minByteLength) {
+		if (minByteLength < 0)
+			throw new IllegalArgumentException("The size must be positive: " + minByteLength);
+		parallelCompression = minByteLength;
+	}
+
+	public static final int getParallelCompression() {
+		return parallelCompression;
+	}
+
+	/**
+	 * Set the pool compressing and uncompressing the chunks of the large arrays (see
+	 * {@link #setParallelCompression(int)}). The default pool is {@link ForkJoinPool#commonPool()}.
+	 *
+	 * @param pool the pool, must not be null
+	 */
+	public static final void setCompressionPool(final ForkJoinPool pool) {
+		Objects.requireNonNull(pool, "The pool is null");
+		compressionPool = pool;
+	}
+
+	public static final ForkJoinPool getCompressionPool() {
+		return compressionPool;
+	}
+
+	/**
+	 * The buffers, the Deflater and the Inflater are reused by each thread.
+	 * The number of instances kept per thread and the largest buffer kept can be set with the system properties
+	 * com.qwazr.externalizor.pool.size (default 2) and com.qwazr.externalizor.pool.bufferSize (default 1 MiB).
+	 *
+	 * @return the statistics of the pools
+	 */
+	public static final List<PoolStats> getPoolStats() {
+		return Pool.getAllStats();
+	}
+
+	/**
+	 * Set the codec used by {@link #serialize(Object, OutputStream)}. The default codec is {@link Codec#GZIP}.
+	 *
+	 * @param codec the codec, must not be null
+	 */
+	public static final void setDefaultCodec(final Codec codec) {
+		Objects.requireNonNull(codec, "The codec is null");
+		defaultCodec = codec;
+	}
+
+	public static final Codec getDefaultCodec() {
+		return defaultCodec;
+	}
+
+	/**
+	 * Register a custom codec, its id must be between 32 and 255.
+	 * The codec must be registered before any deserialization of an object compressed with it.
+	 *
+	 * @param codec the codec, must not be null
+	 * @throws ExternalizorException if the id is reserved or already used by another codec
+	 */
+	public static final void registerCodec(final Codec codec) {
+		Objects.requireNonNull(codec, "The codec is null");
+		Codecs.register(codec);
+	}
+
+	/**
+	 * Build a preset dictionary of 4 KiB from samples of the objects of one class.
+	 *
+	 * @param samples the sample objects, must not be empty
+	 * @return the dictionary
+	 * @throws IOException if the serialization fails
+	 * @see #trainDictionary(Collection, int)
+	 */
+	public static final byte[] trainDictionary(final Collection<?> samples)
+			throws IOException, ReflectiveOperationException {
+		return trainDictionary(samples, Dictionary.DEFAULT_SIZE);
+	}
+
+	/**
+	 * Build a preset dictionary from samples of the objects of one class. The dictionary is made of the serialized
+	 * samples, the last ones first, up to the given size.
+	 * <p>
+	 * The samples should be representative of the objects which will be serialized. A larger dictionary may
+	 * compress better, but setting the dictionary costs more for each compressed object.
+	 *
+	 * @param samples the sample objects, must not be empty
+	 * @param maxSize the maximum size of the dictionary, up to the size of the Deflate window (32 KiB)
+	 * @return the dictionary
+	 * @throws IOException if the serialization fails
+	 */
+	public static final byte[] trainDictionary(final Collection<?> samples, final int maxSize)
+			throws IOException, ReflectiveOperationException {
+		Objects.requireNonNull(samples, "The samples are null");
+		if (samples.isEmpty())
+			throw new ExternalizorException("The samples are empty");
+		if (maxSize <= 0 || maxSize > Dictionary.MAX_SIZE)
+			throw new ExternalizorException("The dictionary size must be between 1 and " + Dictionary.MAX_SIZE);
+		final BytesOutput concatenated = Pool.OUTPUTS.acquire(0);
+		try {
+			for (final Object sample : samples) {
+				final BytesOutput bytes = writeRaw(sample);
+				try {
+					concatenated.write(bytes.buffer(), 0, bytes.size());
+				} finally {
+					Pool.OUTPUTS.release(bytes);
+				}
+			}
+			// The last bytes are kept, Deflate finds the closest matches with the shortest distances
+			final int size = Math.min(concatenated.size(), maxSize);
+			return Arrays.copyOfRange(concatenated.buffer(), concatenated.size() - size, concatenated.size());
+		} finally {
+			Pool.OUTPUTS.release(concatenated);
+		}
+	}
+
+	/**
+	 * Register the preset dictionary used by the Deflate and GZIP codecs to compress the instances of the class.
+	 * The objects are then compressed in the zlib format using this dictionary, the stream carries the id of the
+	 * dictionary.
+	 * <p>
+	 * The dictionary of a class can be replaced using a new id. A dictionary must be registered, with the same id, to
+	 * deserialize the objects compressed with it.
+	 *
+	 * @param clazz      the class of the objects
+	 * @param id         the id of the dictionary, positive and unique
+	 * @param dictionary the dictionary, usually built with {@link #trainDictionary(Collection)}
+	 * @throws ExternalizorException if the id is already used by another dictionary or if the size is not valid
+	 */
+	public static final void registerDictionary(final Class<?> clazz, final int id, final byte[] dictionary) {
+		Objects.requireNonNull(clazz, "The class is null");
+		Objects.requireNonNull(dictionary, "The dictionary is null");
+		Dictionary.register(clazz, id, dictionary);
+	}
+
+	/**
+	 * Serializes an Object to the specified stream using the default codec.
 	 * <p>
 	 * The stream passed in is not closed within this method. This is the responsibility of your application.
 	 *
@@ -42,13 +417,36 @@ public class Externalizor {
 	 */
 	public static final void serialize(final Object object, final OutputStream output)
 			throws IOException, ReflectiveOperationException {
+		serialize(object, output, defaultCodec);
+	}
+
+	/**
+	 * Serializes an Object to the specified stream using the given codec.
+	 * The id of the codec is written first, except for GZIP.
+	 * If a dictionary is registered for the class of the object, the Deflate and GZIP codecs use it.
+	 * <p>
+	 * The stream passed in is not closed within this method. This is the responsibility of your application.
+	 *
+	 * @param object the object to serialize to bytes, must not be null
+	 * @param output the stream to write to, must not be null
+	 * @param codec  the compression codec, must not be null
+	 * @throws IOException          if the serialization fails
+	 * @throws NullPointerException if object, output or codec is null
+	 */
+	public static final void serialize(final Object object, final OutputStream output, final Codec codec)
+			throws IOException, ReflectiveOperationException {
 		Objects.requireNonNull(object, "The serializable object is null");
 		Objects.requireNonNull(output, "The output stream is null");
-		final Externalizer externalizer = of(object.getClass());
-		try (final GZIPOutputStream compressed = new GZIPOutputStream(output)) {
-			try (final ObjectOutputStream objected = new ObjectOutputStream(compressed)) {
-				externalizer.writeExternal(object, objected);
-			}
+		Objects.requireNonNull(codec, "The codec is null");
+		final BytesOutput bytes = writeRaw(object);
+		try {
+			final Codec frameCodec = Codecs.withDictionary(codec, object.getClass());
+			if (frameCodec.getId() != Codec.GZIP.getId())
+				output.write(frameCodec.getId());
+			frameCodec.compress(bytes.buffer(), 0, bytes.size(), output);
+			output.flush();
+		} finally {
+			Pool.OUTPUTS.release(bytes);
 		}
 	}
 
@@ -67,14 +465,185 @@ public class Externalizor {
 			throws IOException, ReflectiveOperationException {
 		Objects.requireNonNull(object, "The serializable object is null");
 		Objects.requireNonNull(output, "The output stream is null");
+		final BytesOutput bytes = writeRaw(object);
+		try {
+			bytes.writeTo(output);
+			output.flush();
+		} finally {
+			Pool.OUTPUTS.release(bytes);
+		}
+	}
+
+	/**
+	 * Serializes an Object without compression at the position of the buffer.
+	 * <p>
+	 * If the remaining space is too small, a larger buffer of the same kind (heap or direct) is allocated,
+	 * the content of the given buffer up to its position is copied, and the object is written after it.
+	 *
+	 * @param object the object to serialize to bytes, must not be null
+	 * @param buffer the buffer to write to, must not be null
+	 * @return the buffer containing the serialized object, positioned after it
+	 * @throws IOException          if the serialization fails
+	 * @throws NullPointerException if object or buffer is null
+	 */
+	public static final ByteBuffer serializeRaw(final Object object, final ByteBuffer buffer)
+			throws IOException, ReflectiveOperationException {
+		Objects.requireNonNull(object, "The serializable object is null");
+		Objects.requireNonNull(buffer, "The buffer is null");
+		final BytesOutput bytes = writeRaw(object);
+		try {
+			if (bytes.size() <= buffer.remaining()) {
+				bytes.writeTo(buffer);
+				return buffer;
+			}
+			final int capacity = Math.max(buffer.capacity() << 1, buffer.position() + bytes.size());
+			final ByteBuffer newBuffer =
+					buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			buffer.flip();
+			newBuffer.put(buffer);
+			bytes.writeTo(newBuffer);
+			return newBuffer;
+		} finally {
+			Pool.OUTPUTS.release(bytes);
+		}
+	}
+
+	/**
+	 * Serializes an Object without compression in a new buffer having exactly the size of the serialized object.
+	 *
+	 * @param object the object to serialize to bytes, must not be null
+	 * @param direct true to allocate a direct buffer
+	 * @return the buffer containing the serialized object, ready to be read
+	 * @throws IOException          if the serialization fails
+	 * @throws NullPointerException if object is null
+	 */
+	public static final ByteBuffer serializeRawToBuffer(final Object object, final boolean direct)
+			throws IOException, ReflectiveOperationException {
+		Objects.requireNonNull(object, "The serializable object is null");
+		final BytesOutput bytes = writeRaw(object);
+		try {
+			if (!direct)
+				return ByteBuffer.wrap(bytes.toByteArray());
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.size());
+			bytes.writeTo(buffer);
+			buffer.flip();
+			return buffer;
+		} finally {
+			Pool.OUTPUTS.release(bytes);
+		}
+	}
+
+	/**
+	 * @return a pooled buffer containing the format version and the serialized object, which must be released by the
+	 * caller
+	 */
+	private static BytesOutput writeRaw(final Object object) throws IOException, ReflectiveOperationException {
 		final Externalizer externalizer = of(object.getClass());
-		try (final ObjectOutputStream objected = new ObjectOutputStream(output)) {
-			externalizer.writeExternal(object, objected);
+		final BytesOutput bytes = Pool.OUTPUTS.acquire(0);
+		try {
+			final int flags = BytesOutput.formatFlags();
+			bytes.setFormatFlags(flags);
+			bytes.write(FORMAT_VERSION | flags);
+			externalizer.writeExternal(object, bytes);
+			return bytes;
+		} catch (IOException | ReflectiveOperationException | RuntimeException e) {
+			Pool.OUTPUTS.release(bytes);
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the format version and the object written by {@link #writeRaw(Object)}
+	 */
+	private static <T> T readRaw(final Externalizer<T, T> externalizer, final BytesInput input)
+			throws IOException, ReflectiveOperationException {
+		final int format = input.readUnsignedByte();
+		if ((format & FORMAT_VERSION_MASK) != FORMAT_VERSION)
+			throw new StreamCorruptedException("Unsupported format version: " + (format & FORMAT_VERSION_MASK));
+		input.setFormatFlags(BytesInput.checkFormatFlags(format & ~FORMAT_VERSION_MASK));
+		return externalizer.readObject(input);
+	}
+
+	/**
+	 * @return true if the bytes start with the header of an ObjectOutputStream, used by the previous versions
+	 */
+	private static boolean isLegacy(final byte[] bytes, final int offset, final int length) {
+		return length >= 2 && (short) ((bytes[offset] << 8) | (bytes[offset + 1] & 0xFF)) ==
+				ObjectStreamConstants.STREAM_MAGIC;
+	}
+
+	/**
+	 * Read an object written by the previous versions, using an ObjectInputStream
+	 */
+	private static <T> T readLegacy(final Externalizer<T, T> externalizer, final byte[] bytes, final int offset,
+			final int length) throws IOException, ReflectiveOperationException {
+		try (final ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+			return externalizer.readObject(input);
 		}
 	}
 
+	/**
+	 * Read an object written by {@link #writeRaw(Object)} or by the previous versions
+	 */
+	private static <T> T readRaw(final Externalizer<T, T> externalizer, final byte[] bytes, final int offset,
+			final int length) throws IOException, ReflectiveOperationException {
+		return isLegacy(bytes, offset, length) ?
+				readLegacy(externalizer, bytes, offset, length) :
+				readRaw(externalizer, new BytesInput(bytes, offset, length));
+	}
+
+	/**
+	 * Deserializes an Object written without compression, starting at the position of the buffer.
+	 * The position of the buffer is moved after the object, several objects can be read from the same buffer.
+	 * <p>
+	 * The content of a heap buffer is read in place, a direct buffer is copied once.
+	 *
+	 * @param buffer the buffer to read from, must not be null
+	 * @param <T>    the object type to be deserialized
+	 * @return
+	 * @throws IOException                  if the deserialization fails
+	 * @throws ReflectiveOperationException if the class instantiation fails
+	 * @throws NullPointerException         if buffer or clazz is null
+	 */
+	public static final <T> T deserializeRaw(final ByteBuffer buffer, final Class<T> clazz)
+			throws IOException, ReflectiveOperationException {
+		Objects.requireNonNull(buffer, "The buffer is null");
+		Objects.requireNonNull(clazz, "The class is null");
+		final Externalizer<T, T> externalizer = of(clazz);
+		if (buffer.hasArray()) {
+			final int offset = buffer.arrayOffset() + buffer.position();
+			return readRaw(externalizer, buffer, buffer.array(), offset, buffer.remaining());
+		}
+		final int length = buffer.remaining();
+		final byte[] bytes = Pool.BUFFERS.acquire(length);
+		try {
+			buffer.duplicate().get(bytes, 0, length);
+			return readRaw(externalizer, buffer, bytes, 0, length);
+		} finally {
+			Pool.BUFFERS.release(bytes);
+		}
+	}
+
+	/**
+	 * Read an object from the bytes of the buffer, and move the position of the buffer after the object.
+	 * An object written by the previous versions takes the remaining bytes of the buffer.
+	 */
+	private static <T> T readRaw(final Externalizer<T, T> externalizer, final ByteBuffer buffer, final byte[] bytes,
+			final int offset, final int length) throws IOException, ReflectiveOperationException {
+		if (isLegacy(bytes, offset, length)) {
+			final T object = readLegacy(externalizer, bytes, offset, length);
+			buffer.position(buffer.limit());
+			return object;
+		}
+		final BytesInput input = new BytesInput(bytes, offset, length);
+		final T object = readRaw(externalizer, input);
+		buffer.position(buffer.position() + input.position() - offset);
+		return object;
+	}
+
 	/**
 	 * Deserializes an Object from the specified stream.
+	 * The codec is found using the first byte, the streams written by the previous versions are read as GZIP.
 	 * <p>
 	 * The stream passed in is not closed within this method. This is the responsibility of your application.
 	 *
@@ -90,10 +659,27 @@ public class Externalizor {
 		Objects.requireNonNull(input, "The input stream is null");
 		Objects.requireNonNull(input, "The class is null");
 		final Externalizer<T, T> externalizer = of(clazz);
-		try (final GZIPInputStream compressed = new GZIPInputStream(input)) {
-			try (final ObjectInputStream objected = new ObjectInputStream(compressed)) {
-				return externalizer.readObject(objected);
+		final BytesOutput compressed = Pool.OUTPUTS.acquire(0);
+		final BytesOutput uncompressed = Pool.OUTPUTS.acquire(0);
+		try {
+			compressed.readFrom(input);
+			final byte[] bytes = compressed.buffer();
+			final int length = compressed.size();
+			if (Gzip.isGzip(bytes, 0, length))
+				Gzip.uncompress(bytes, 0, length, uncompressed);
+			else {
+				if (length == 0)
+					throw new EOFException("The stream is empty");
+				final int id = bytes[0] & 0xFF;
+				final Codec codec = Codecs.get(id);
+				if (codec == null)
+					throw new StreamCorruptedException("Unknown codec id: " + id);
+				codec.uncompress(bytes, 1, length - 1, uncompressed.asOutputStream());
 			}
+			return readRaw(externalizer, uncompressed.buffer(), 0, uncompressed.size());
+		} finally {
+			Pool.OUTPUTS.release(uncompressed);
+			Pool.OUTPUTS.release(compressed);
 		}
 	}
 
@@ -115,9 +701,12 @@ public class Externalizor {
 		Objects.requireNonNull(input, "The input stream is null");
 		Objects.requireNonNull(input, "The class is null");
 		final Externalizer<T, T> externalizer = of(clazz);
-		try (final ObjectInputStream objected = new ObjectInputStream(input)) {
-			return externalizer.readObject(objected);
-
+		final BytesOutput bytes = Pool.OUTPUTS.acquire(0);
+		try {
+			bytes.readFrom(input);
+			return readRaw(externalizer, bytes.buffer(), 0, bytes.size());
+		} finally {
+			Pool.OUTPUTS.release(bytes);
 		}
 	}
 }
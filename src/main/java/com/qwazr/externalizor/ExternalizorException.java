@@ -21,4 +21,8 @@ public class ExternalizorException extends RuntimeException {
 		super(message);
 	}
 
+	ExternalizorException(final String message, final Throwable cause) {
+		super(message, cause);
+	}
+
 }
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the sequence of objects written by {@link ExternalizorWriter}.
+ * <p>
+ * This class is not thread safe.
+ */
+public class ExternalizorReader implements Closeable, Iterable<Object> {
+
+	private final static int BUFFER_SIZE = 65536;
+
+	private final DataInputStream input;
+	private final List<Externalizer> externalizers;
+	private final ClassLoader classLoader;
+	private final int flags;
+	private byte[] buffer;
+
+	/**
+	 * Create a reader for a compressed stream
+	 *
+	 * @param input the stream to read from, closed when the reader is closed
+	 * @throws IOException if the header cannot be read
+	 */
+	public ExternalizorReader(final InputStream input) throws IOException {
+		this(input, true);
+	}
+
+	/**
+	 * @param input      the stream to read from, closed when the reader is closed
+	 * @param compressed true if the stream was written with compression
+	 * @throws IOException if the header cannot be read
+	 */
+	public ExternalizorReader(final InputStream input, final boolean compressed) throws IOException {
+		Objects.requireNonNull(input, "The input stream is null");
+		this.input = new DataInputStream(
+				compressed ? new GZIPInputStream(input, BUFFER_SIZE) : new BufferedInputStream(input, BUFFER_SIZE));
+		final int version = this.input.read();
+		if (version == -1 || (version & Externalizor.FORMAT_VERSION_MASK) != ExternalizorWriter.VERSION)
+			throw new StreamCorruptedException("Unsupported stream version: " + version);
+		this.flags = BytesInput.checkFormatFlags(version & ~Externalizor.FORMAT_VERSION_MASK);
+		this.externalizers = new ArrayList<>();
+		final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+		this.classLoader = contextClassLoader != null ? contextClassLoader : ExternalizorReader.class.getClassLoader();
+		this.buffer = new byte[1024];
+	}
+
+	/**
+	 * @return the next object, or null if the end of the stream is reached
+	 * @throws IOException                  if the deserialization fails
+	 * @throws ReflectiveOperationException if the class cannot be found or instantiated
+	 */
+	public Object read() throws IOException, ReflectiveOperationException {
+		final int first = input.read();
+		if (first == -1)
+			return null;
+		final int classId = readVarInt(first);
+		final Externalizer externalizer;
+		if (classId == 0) {
+			externalizer = Externalizor.of(Class.forName(input.readUTF(), false, classLoader));
+			externalizers.add(externalizer);
+		} else if (classId <= externalizers.size())
+			externalizer = externalizers.get(classId - 1);
+		else
+			throw new StreamCorruptedException("Unknown class id: " + classId);
+		final int length = readVarInt(input.readUnsignedByte());
+		if (length > buffer.length)
+			buffer = new byte[Math.max(length, buffer.length << 1)];
+		input.readFully(buffer, 0, length);
+		final BytesInput record = new BytesInput(buffer, 0, length);
+		record.setFormatFlags(flags);
+		return externalizer.readObject(record);
+	}
+
+	/**
+	 * Read a class id or a length, which are never negative.
+	 */
+	private int readVarInt(int b) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0)
+					throw new StreamCorruptedException("Negative variable length integer: " + value);
+				return value;
+			}
+			b = input.read();
+			if (b == -1)
+				throw new EOFException();
+		}
+		throw new StreamCorruptedException("Malformed variable length integer");
+	}
+
+	/**
+	 * The IOException and ReflectiveOperationException are thrown by the iterator as UncheckedIOException and
+	 * ExternalizorException.
+	 *
+	 * @return an iterator over the remaining objects
+	 */
+	@Override
+	public Iterator<Object> iterator() {
+		return new Iterator<Object>() {
+
+			private Object next;
+
+			@Override
+			public boolean hasNext() {
+				if (next != null)
+					return true;
+				try {
+					next = read();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} catch (ReflectiveOperationException e) {
+					throw new ExternalizorException(e.getMessage(), e);
+				}
+				return next != null;
+			}
+
+			@Override
+			public Object next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				final Object object = next;
+				next = null;
+				return object;
+			}
+		};
+	}
+
+	/**
+	 * @return a sequential stream of the remaining objects
+	 */
+	public Stream<Object> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED |
+				Spliterator.NONNULL), false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a sequence of objects in one stream, read back by {@link ExternalizorReader}.
+ * <p>
+ * The stream starts with a version byte, whose high bits are the modes of the writer read from the settings when the
+ * writer is created (see {@link Externalizor#setNullBitmap(boolean)} and {@link Externalizor#setVarInts(boolean)}),
+ * followed by one record per object:
+ * <ul>
+ * <li>the class id as a variable length integer: 0 for a class not written yet, followed by its name, the id
+ * of this class is then the number of classes already written plus one,</li>
+ * <li>the length of the serialized object as a variable length integer,</li>
+ * <li>the object, serialized like {@link Externalizor#serializeRaw(Object, OutputStream)}.</li>
+ * </ul>
+ * When compressed, the whole sequence is one GZIP stream, the compression benefits from the redundancy between
+ * the records.
+ * <p>
+ * This class is not thread safe.
+ */
+public class ExternalizorWriter implements Closeable, Flushable {
+
+	final static int VERSION = 1;
+
+	private final static int BLOCK_SIZE = 65536;
+
+	private final OutputStream output;
+	private final Map<Class<?>, Integer> classIds;
+	private final BytesOutput record;
+	private final BytesOutput block;
+	private final int flags;
+
+	/**
+	 * Create a compressed writer
+	 *
+	 * @param output the stream to write to, closed when the writer is closed
+	 * @throws IOException if the header cannot be written
+	 */
+	public ExternalizorWriter(final OutputStream output) throws IOException {
+		this(output, true);
+	}
+
+	/**
+	 * @param output   the stream to write to, closed when the writer is closed
+	 * @param compress true to compress the stream using GZIP
+	 * @throws IOException if the header cannot be written
+	 */
+	public ExternalizorWriter(final OutputStream output, final boolean compress) throws IOException {
+		Objects.requireNonNull(output, "The output stream is null");
+		this.output = compress ? new GZIPOutputStream(output, BLOCK_SIZE, true) : output;
+		this.classIds = new HashMap<>();
+		this.record = new BytesOutput();
+		this.block = new BytesOutput(BLOCK_SIZE);
+		// The modes of the records are fixed by the header
+		this.flags = BytesOutput.formatFlags();
+		block.writeByte(VERSION | flags);
+	}
+
+	/**
+	 * Append an object to the stream
+	 *
+	 * @param object the object to serialize, must not be null
+	 * @throws IOException          if the serialization fails
+	 * @throws NullPointerException if object is null
+	 */
+	public void write(final Object object) throws IOException, ReflectiveOperationException {
+		Objects.requireNonNull(object, "The serializable object is null");
+		final Class<?> clazz = object.getClass();
+		final Externalizer externalizer = Externalizor.of(clazz);
+		record.reset();
+		record.setFormatFlags(flags);
+		externalizer.writeExternal(object, record);
+		final Integer classId = classIds.get(clazz);
+		if (classId != null)
+			block.writeVarInt(classId);
+		else {
+			block.writeVarInt(0);
+			block.writeUTF(clazz.getName());
+			classIds.put(clazz, classIds.size() + 1);
+		}
+		block.writeVarInt(record.size());
+		block.write(record.buffer(), 0, record.size());
+		if (block.size() >= BLOCK_SIZE)
+			writeBlock();
+	}
+
+	private void writeBlock() throws IOException {
+		block.writeTo(output);
+		block.reset();
+	}
+
+	/**
+	 * Write the pending records to the underlying stream.
+	 * A compressed stream is flushed, the records written so far can be read.
+	 *
+	 * @throws IOException if the stream cannot be written
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeBlock();
+		output.flush();
+	}
+
+	/**
+	 * Write the pending records, the end of the compressed stream, and close the underlying stream
+	 *
+	 * @throws IOException if the stream cannot be written
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			writeBlock();
+		} finally {
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,398 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+/**
+ * Read and write access to a field, with the description of the field used to choose its externalizer.
+ * <p>
+ * The accessors of the classes annotated with {@link Externalized} are generated at build time by the
+ * externalizor-processor (see {@link ExternalizedLayout#getFieldAccessors()}): they read and write the fields
+ * directly, the field is not looked up by reflection. The other fields are accessed using method handles resolved
+ * once per field. Called through this class, the handles are instance fields which the JIT does not constant-fold,
+ * they are not faster than the java.lang.reflect.Field methods. The generated field sequences (see
+ * {@link GeneratedExternalizer}) keep the handles in static final fields, where they are folded into a plain field
+ * access.
+ * <p>
+ * A generated accessor overrides the getter and the setter of the type of its field: get and set for the objects,
+ * getInt and setInt for an int, and so on.
+ */
+public abstract class FieldAccessor {
+
+	private final static MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	final Class<?> declaringClass;
+	final String name;
+	final Class<?> type;
+	final String typeName;
+	private final Class<?>[] typeArguments;
+	private final Class<?>[] annotations;
+
+	/**
+	 * @param declaringClass the class declaring the field
+	 * @param name           the name of the field
+	 * @param type           the type of the field
+	 * @param typeName       the generic type of the field, as returned by {@link Type#getTypeName()}
+	 * @param typeArguments  the type arguments of the field, null for the arguments which are not a class
+	 * @param annotations    the types of the annotations of the field
+	 */
+	protected FieldAccessor(final Class<?> declaringClass, final String name, final Class<?> type,
+			final String typeName, final Class<?>[] typeArguments, final Class<?>... annotations) {
+		this.declaringClass = declaringClass;
+		this.name = name;
+		this.type = type;
+		this.typeName = typeName;
+		this.typeArguments = typeArguments;
+		this.annotations = annotations;
+	}
+
+	/**
+	 * @param clazz the class declaring the field
+	 * @param name  the name of the field
+	 * @return an accessor using method handles, for the fields which cannot be accessed by the generated code
+	 */
+	public static FieldAccessor of(final Class<?> clazz, final String name) {
+		try {
+			return of(clazz.getDeclaredField(name));
+		} catch (NoSuchFieldException e) {
+			throw new ExternalizorException("The layout does not match the class " + clazz, e);
+		}
+	}
+
+	static FieldAccessor of(final Field field) {
+		try {
+			return new HandleAccessor(field);
+		} catch (IllegalAccessException e) {
+			throw new ExternalizorException("Cannot access the field " + field, e);
+		}
+	}
+
+	/**
+	 * @param pos the position of the type argument
+	 * @return the class of the type argument of the field
+	 * @throws ExternalizorException if the field has no such argument, or if the argument is not a class
+	 */
+	final Class<?> getTypeArgument(final int pos) {
+		if (pos >= typeArguments.length || typeArguments[pos] == null)
+			throw new ExternalizorException("The type argument " + pos + " is not a class: " + this);
+		return typeArguments[pos];
+	}
+
+	final boolean isAnnotationPresent(final Class<? extends Annotation> annotationType) {
+		for (final Class<?> annotation : annotations)
+			if (annotation == annotationType)
+				return true;
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return typeName + ' ' + declaringClass.getName() + '.' + name;
+	}
+
+	private ExternalizorException wrongType(final String accessType) {
+		return new ExternalizorException("No " + accessType + " access to the field " + this);
+	}
+
+	protected Object get(final Object object) throws ReflectiveOperationException {
+		throw wrongType("Object");
+	}
+
+	protected void set(final Object object, final Object value) throws ReflectiveOperationException {
+		throw wrongType("Object");
+	}
+
+	protected int getInt(final Object object) throws ReflectiveOperationException {
+		throw wrongType("int");
+	}
+
+	protected void setInt(final Object object, final int value) throws ReflectiveOperationException {
+		throw wrongType("int");
+	}
+
+	protected long getLong(final Object object) throws ReflectiveOperationException {
+		throw wrongType("long");
+	}
+
+	protected void setLong(final Object object, final long value) throws ReflectiveOperationException {
+		throw wrongType("long");
+	}
+
+	protected short getShort(final Object object) throws ReflectiveOperationException {
+		throw wrongType("short");
+	}
+
+	protected void setShort(final Object object, final short value) throws ReflectiveOperationException {
+		throw wrongType("short");
+	}
+
+	protected float getFloat(final Object object) throws ReflectiveOperationException {
+		throw wrongType("float");
+	}
+
+	protected void setFloat(final Object object, final float value) throws ReflectiveOperationException {
+		throw wrongType("float");
+	}
+
+	protected double getDouble(final Object object) throws ReflectiveOperationException {
+		throw wrongType("double");
+	}
+
+	protected void setDouble(final Object object, final double value) throws ReflectiveOperationException {
+		throw wrongType("double");
+	}
+
+	protected byte getByte(final Object object) throws ReflectiveOperationException {
+		throw wrongType("byte");
+	}
+
+	protected void setByte(final Object object, final byte value) throws ReflectiveOperationException {
+		throw wrongType("byte");
+	}
+
+	protected char getChar(final Object object) throws ReflectiveOperationException {
+		throw wrongType("char");
+	}
+
+	protected void setChar(final Object object, final char value) throws ReflectiveOperationException {
+		throw wrongType("char");
+	}
+
+	protected boolean getBoolean(final Object object) throws ReflectiveOperationException {
+		throw wrongType("boolean");
+	}
+
+	protected void setBoolean(final Object object, final boolean value) throws ReflectiveOperationException {
+		throw wrongType("boolean");
+	}
+
+	/**
+	 * The accessor of a field found by reflection, using method handles. The getter and the setter are also the
+	 * constants of the generated field sequences.
+	 */
+	final static class HandleAccessor extends FieldAccessor {
+
+		final MethodHandle getter;
+		final MethodHandle setter;
+
+		private HandleAccessor(final Field field) throws IllegalAccessException {
+			super(field.getDeclaringClass(), field.getName(), field.getType(), field.getGenericType().getTypeName(),
+					typeArguments(field), annotations(field));
+			field.setAccessible(true);
+			final Class<?> type = field.getType().isPrimitive() ? field.getType() : Object.class;
+			getter = LOOKUP.unreflectGetter(field).asType(MethodType.methodType(type, Object.class));
+			setter = LOOKUP.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, type));
+		}
+
+		private static Class<?>[] typeArguments(final Field field) {
+			final Type genericType = field.getGenericType();
+			if (!(genericType instanceof ParameterizedType))
+				return new Class<?>[0];
+			final Type[] arguments = ((ParameterizedType) genericType).getActualTypeArguments();
+			final Class<?>[] classes = new Class<?>[arguments.length];
+			for (int i = 0; i < arguments.length; i++)
+				if (arguments[i] instanceof Class)
+					classes[i] = (Class<?>) arguments[i];
+			return classes;
+		}
+
+		private static Class<?>[] annotations(final Field field) {
+			final Annotation[] annotations = field.getAnnotations();
+			final Class<?>[] types = new Class<?>[annotations.length];
+			for (int i = 0; i < annotations.length; i++)
+				types[i] = annotations[i].annotationType();
+			return types;
+		}
+
+		private static ReflectiveOperationException rethrow(final Throwable t) {
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			if (t instanceof Error)
+				throw (Error) t;
+			return new InvocationTargetException(t);
+		}
+
+		@Override
+		final protected Object get(final Object object) throws ReflectiveOperationException {
+			try {
+				return (Object) getter.invokeExact(object);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected void set(final Object object, final Object value) throws ReflectiveOperationException {
+			try {
+				setter.invokeExact(object, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected int getInt(final Object object) throws ReflectiveOperationException {
+			try {
+				return (int) getter.invokeExact(object);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected void setInt(final Object object, final int value) throws ReflectiveOperationException {
+			try {
+				setter.invokeExact(object, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected long getLong(final Object object) throws ReflectiveOperationException {
+			try {
+				return (long) getter.invokeExact(object);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected void setLong(final Object object, final long value) throws ReflectiveOperationException {
+			try {
+				setter.invokeExact(object, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected short getShort(final Object object) throws ReflectiveOperationException {
+			try {
+				return (short) getter.invokeExact(object);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected void setShort(final Object object, final short value) throws ReflectiveOperationException {
+			try {
+				setter.invokeExact(object, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected float getFloat(final Object object) throws ReflectiveOperationException {
+			try {
+				return (float) getter.invokeExact(object);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected void setFloat(final Object object, final float value) throws ReflectiveOperationException {
+			try {
+				setter.invokeExact(object, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected double getDouble(final Object object) throws ReflectiveOperationException {
+			try {
+				return (double) getter.invokeExact(object);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected void setDouble(final Object object, final double value) throws ReflectiveOperationException {
+			try {
+				setter.invokeExact(object, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected byte getByte(final Object object) throws ReflectiveOperationException {
+			try {
+				return (byte) getter.invokeExact(object);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected void setByte(final Object object, final byte value) throws ReflectiveOperationException {
+			try {
+				setter.invokeExact(object, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected char getChar(final Object object) throws ReflectiveOperationException {
+			try {
+				return (char) getter.invokeExact(object);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected void setChar(final Object object, final char value) throws ReflectiveOperationException {
+			try {
+				setter.invokeExact(object, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected boolean getBoolean(final Object object) throws ReflectiveOperationException {
+			try {
+				return (boolean) getter.invokeExact(object);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		final protected void setBoolean(final Object object, final boolean value) throws ReflectiveOperationException {
+			try {
+				setter.invokeExact(object, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+	}
+}
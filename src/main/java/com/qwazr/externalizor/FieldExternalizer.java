@@ -18,42 +18,74 @@ package com.qwazr.externalizor;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.ParameterizedType;
+import java.io.StreamCorruptedException;
 
 abstract class FieldExternalizer<T, V> implements Externalizer<T, V> {
 
-	protected final Field field;
+	protected final FieldAccessor accessor;
 
-	protected FieldExternalizer(final Field field) {
-		this.field = field;
-	}
-
-	final static Class<?> getGenericClass(final Field field, final int pos) {
-		final ParameterizedType paramTypes = (ParameterizedType) field.getGenericType();
-		return (Class<?>) paramTypes.getActualTypeArguments()[pos];
+	protected FieldExternalizer(final FieldAccessor accessor) {
+		this.accessor = accessor;
 	}
 
+	/**
+	 * A field whose value can be null. The null flag is a bit of the null bitmap of the object when it is enabled
+	 * (see {@link Externalizor#setNullBitmap(boolean)}), a boolean written before the value otherwise.
+	 */
 	static abstract class FieldObjectExternalizer<T, V> extends FieldExternalizer<T, V> {
 
-		protected FieldObjectExternalizer(final Field field) {
-			super(field);
+		protected FieldObjectExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		protected abstract void writeValue(final V value, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException;
 
+		protected abstract V readValue(final ObjectInput in) throws IOException, ReflectiveOperationException;
+
+		/**
+		 * Write a value whose null flag is in the null bitmap of the object
+		 */
+		protected void writeBitmapValue(final V value, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			writeValue(value, out);
+		}
+
+		protected V readBitmapValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			return readValue(in);
+		}
+
 		@Override
 		final public void readExternal(final T object, final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			field.set(object, readObject(in));
+			accessor.set(object, readObject(in));
+		}
+
+		@Override
+		final public V readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			if (in instanceof BytesInput) {
+				final int nullBit = ((BytesInput) in).readNullBit();
+				if (nullBit != BytesInput.NO_NULL_BITMAP)
+					return nullBit == 0 ? readBitmapValue(in) : null;
+			}
+			return in.readBoolean() ? readValue(in) : null;
 		}
 
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			final V value = (V) field.get(object);
+			writeField((V) accessor.get(object), out);
+		}
+
+		/**
+		 * Write the value of the field with its null flag
+		 */
+		final void writeField(final V value, final ObjectOutput out) throws IOException, ReflectiveOperationException {
+			if (out instanceof BytesOutput && ((BytesOutput) out).writeNullBit(value == null)) {
+				if (value != null)
+					writeBitmapValue(value, out);
+				return;
+			}
 			if (value == null) {
 				out.writeBoolean(false);
 				return;
@@ -66,15 +98,18 @@ abstract class FieldExternalizer<T, V> implements Externalizer<T, V> {
 	static class FieldParentExternalizer<T, V> extends FieldObjectExternalizer<T, V> {
 
 		private final Externalizer<V, V> externalizer;
+		private final ValueExternalizer<V> valueExternalizer;
 
-		protected FieldParentExternalizer(final Field field, final Externalizer<V, V> externalizer) {
-			super(field);
+		protected FieldParentExternalizer(final FieldAccessor accessor, final Externalizer<V, V> externalizer) {
+			super(accessor);
 			this.externalizer = externalizer;
+			this.valueExternalizer =
+					externalizer instanceof ValueExternalizer ? (ValueExternalizer<V>) externalizer : null;
 		}
 
 		@Override
-		final public V readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
-			return in.readBoolean() ? externalizer.readObject(in) : null;
+		final protected V readValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			return externalizer.readObject(in);
 		}
 
 		@Override
@@ -82,23 +117,169 @@ abstract class FieldExternalizer<T, V> implements Externalizer<T, V> {
 				throws IOException, ReflectiveOperationException {
 			externalizer.writeExternal(value, out);
 		}
+
+		/**
+		 * The value is written without the boolean of its externalizer, the null flag is already in the bitmap
+		 */
+		@Override
+		final protected void writeBitmapValue(final V value, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			if (valueExternalizer != null)
+				valueExternalizer.writeValue(value, out);
+			else
+				externalizer.writeExternal(value, out);
+		}
+
+		@Override
+		final protected V readBitmapValue(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			return valueExternalizer != null ? valueExternalizer.readValue(in) : externalizer.readObject(in);
+		}
+	}
+
+	/**
+	 * A field referencing an object. When the reference tracking is enabled, the object is added to the reference
+	 * table of the stream, an object already written is written as its handle.
+	 * <p>
+	 * NULL and OBJECT are the boolean written by {@link FieldParentExternalizer}. When the null flag is in the null
+	 * bitmap of the object, the tag of a null value is not written.
+	 */
+	static final class FieldReferenceExternalizer<T, V> extends FieldExternalizer<T, V> {
+
+		final static int NULL = 0;
+		final static int OBJECT = 1;
+		final static int TRACKED_OBJECT = 2;
+		final static int REFERENCE = 3;
+
+		private final ClassExternalizer<V> externalizer;
+
+		FieldReferenceExternalizer(final FieldAccessor accessor, final ClassExternalizer<V> externalizer) {
+			super(accessor);
+			this.externalizer = externalizer;
+		}
+
+		@Override
+		final public void writeExternal(final T object, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			writeField((V) accessor.get(object), out);
+		}
+
+		final void writeField(final V value, final ObjectOutput out) throws IOException, ReflectiveOperationException {
+			if (out instanceof BytesOutput) {
+				final BytesOutput bytesOutput = (BytesOutput) out;
+				if (bytesOutput.writeNullBit(value == null) && value == null)
+					return;
+				write(externalizer, value, bytesOutput);
+			} else if (value == null)
+				out.writeByte(NULL);
+			else {
+				out.writeByte(OBJECT);
+				externalizer.writeExternal(value, out);
+			}
+		}
+
+		/**
+		 * Write the tag and the object, or the handle of the object if it is already in the reference table
+		 */
+		static <V> void write(final ClassExternalizer<V> externalizer, final V value, final BytesOutput out)
+				throws IOException, ReflectiveOperationException {
+			if (value == null) {
+				out.writeByte(NULL);
+				return;
+			}
+			final int handle = out.reference(value);
+			if (handle >= 0) {
+				out.writeByte(REFERENCE);
+				out.writeVarInt(handle);
+				return;
+			}
+			out.writeByte(handle == BytesOutput.REFERENCE_ADDED ? TRACKED_OBJECT : OBJECT);
+			externalizer.writeExternal(value, out);
+		}
+
+		@Override
+		final public void readExternal(final T object, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			accessor.set(object, readObject(in));
+		}
+
+		@Override
+		final public V readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			if (in instanceof BytesInput && ((BytesInput) in).readNullBit() == 1)
+				return null;
+			return read(externalizer, in);
+		}
+
+		/**
+		 * Read the tag and the object written by {@link #write(ClassExternalizer, Object, BytesOutput)}
+		 */
+		static <V> V read(final ClassExternalizer<V> externalizer, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final int tag = in.readUnsignedByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case OBJECT:
+				return externalizer.readObject(in);
+			case TRACKED_OBJECT:
+				return externalizer.readReference(BytesInput.of(in));
+			case REFERENCE: {
+				final BytesInput bytesInput = BytesInput.of(in);
+				return (V) bytesInput.getReference(bytesInput.readVarInt());
+			}
+			default:
+				throw new StreamCorruptedException("Unknown reference tag: " + tag);
+			}
+		}
+	}
+
+	/**
+	 * An object which is not a field: an element of an array or of a collection, a key or a value of a map. In the
+	 * bytes format it is written with the tag of {@link FieldReferenceExternalizer}, the references are tracked. The
+	 * other object streams keep the layout of the previous versions, the object is written without a tag.
+	 */
+	static final class ReferenceExternalizer<V> implements Externalizer<Object, V> {
+
+		private final ClassExternalizer<V> externalizer;
+
+		ReferenceExternalizer(final ClassExternalizer<V> externalizer) {
+			this.externalizer = externalizer;
+		}
+
+		@Override
+		final public void writeExternal(final Object value, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			if (out instanceof BytesOutput)
+				FieldReferenceExternalizer.write(externalizer, (V) value, (BytesOutput) out);
+			else
+				externalizer.writeExternal((V) value, out);
+		}
+
+		@Override
+		final public void readExternal(final Object object, final ObjectInput in) {
+			throw new ExternalizorException("Not available");
+		}
+
+		@Override
+		final public V readObject(final ObjectInput in) throws IOException, ReflectiveOperationException {
+			return in instanceof BytesInput ?
+					FieldReferenceExternalizer.read(externalizer, in) :
+					externalizer.readObject(in);
+		}
 	}
 
 	static abstract class FieldConstructorExternalizer<T, C> extends FieldObjectExternalizer<T, C> {
 
-		protected final Constructor<? extends C> constructor;
+		protected final Instantiator<? extends C> instantiator;
 
-		protected FieldConstructorExternalizer(final Field field, final Class<? extends C> clazz) {
-			super(field);
-			try {
-				constructor = clazz.getConstructor();
-			} catch (NoSuchMethodException e) {
+		protected FieldConstructorExternalizer(final FieldAccessor accessor, final Class<? extends C> clazz) {
+			super(accessor);
+			instantiator = Instantiator.sized(clazz);
+			if (instantiator == null)
 				throw new ExternalizorException("Not empty public constructor for the type " + clazz);
-			}
 		}
 
 		final protected Externalizer<Object, ?> getGeneric(final int pos) {
-			return Externalizer.of(getGenericClass(field, pos));
+			return Externalizer.component(accessor.getTypeArgument(pos));
 		}
 	}
 
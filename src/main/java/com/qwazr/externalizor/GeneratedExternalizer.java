@@ -0,0 +1,710 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class of the field sequences generated at runtime.
+ * <p>
+ * For each root class, a concrete subclass is generated. The field externalizers, and the method handles or the
+ * accessors of the fields, are static final fields of the generated class: the JIT treats them as constants. The
+ * generated code reads each field through its constant handle, and passes the value to the externalizer of the
+ * field. The primitive block (see {@link PrimitiveExternalizer#block}) is written field by field straight into the
+ * buffer. Each call site is monomorphic, the JIT can inline the whole object instead of doing one megamorphic
+ * interface call and one non constant method handle call per field.
+ * <p>
+ * The generation can be disabled with the system property: com.qwazr.externalizor.bytecode=false
+ *
+ * @param <T>
+ */
+abstract class GeneratedExternalizer<T> implements Externalizer<T, T> {
+
+	static volatile boolean enabled =
+			Boolean.parseBoolean(System.getProperty("com.qwazr.externalizor.bytecode", Boolean.TRUE.toString()));
+
+	private final static int MAX_FIELDS = 4096;
+
+	private final static String PACKAGE = "com/qwazr/externalizor/";
+
+	private final static AtomicInteger COUNTER = new AtomicInteger();
+
+	/**
+	 * The constants of the classes being generated, read by their static initializer
+	 */
+	private final static ConcurrentHashMap<String, Object[]> CONSTANTS = new ConcurrentHashMap<>();
+
+	private final static String OBJECT = "Ljava/lang/Object;";
+	private final static String WRITE_DESCRIPTOR = "(Ljava/lang/Object;Ljava/io/ObjectOutput;)V";
+	private final static String READ_DESCRIPTOR = "(Ljava/lang/Object;Ljava/io/ObjectInput;)V";
+
+	@Override
+	final public T readObject(final ObjectInput in) {
+		throw new ExternalizorException("Not available");
+	}
+
+	/**
+	 * Called by the static initializer of the generated class
+	 */
+	static Object[] constants(final String className) {
+		return CONSTANTS.remove(className);
+	}
+
+	final void writeBlock(final T object, final ObjectOutput out,
+			final PrimitiveExternalizer.PrimitiveBlockExternalizer block)
+			throws IOException, ReflectiveOperationException {
+		final BytesOutput bytes = (BytesOutput) out;
+		if (bytes.isVarInts()) {
+			writeVarIntsBlock(object, bytes);
+			return;
+		}
+		final int position = bytes.reserve(block.size);
+		putBlock(object, bytes.buffer(), position);
+	}
+
+	final void readBlock(final T object, final ObjectInput in,
+			final PrimitiveExternalizer.PrimitiveBlockExternalizer block)
+			throws IOException, ReflectiveOperationException {
+		final BytesInput bytes = (BytesInput) in;
+		if (bytes.isVarInts()) {
+			readVarIntsBlock(object, bytes);
+			return;
+		}
+		final int position = bytes.consume(block.size);
+		getBlock(object, bytes.buffer(), position);
+	}
+
+	protected void putBlock(final T object, final byte[] bytes, final int position)
+			throws ReflectiveOperationException {
+		throw new ExternalizorException("No primitive block");
+	}
+
+	protected void getBlock(final T object, final byte[] bytes, final int position)
+			throws ReflectiveOperationException {
+		throw new ExternalizorException("No primitive block");
+	}
+
+	protected void writeVarIntsBlock(final T object, final BytesOutput out)
+			throws IOException, ReflectiveOperationException {
+		throw new ExternalizorException("No primitive block");
+	}
+
+	protected void readVarIntsBlock(final T object, final BytesInput in)
+			throws IOException, ReflectiveOperationException {
+		throw new ExternalizorException("No primitive block");
+	}
+
+	/**
+	 * Generate the field sequence of a class.
+	 *
+	 * @param clazz         the root class
+	 * @param externalizers the externalizers of the fields, in serialization order
+	 * @param <T>           the type of the root class
+	 * @return a generated externalizer, or null if the generation is disabled or not possible
+	 */
+	static <T> Externalizer<T, T> of(final Class<T> clazz, final Externalizer[] externalizers) {
+		if (!enabled || externalizers.length > MAX_FIELDS)
+			return null;
+		final ClassLoader classLoader = GeneratedExternalizer.class.getClassLoader();
+		for (final Externalizer externalizer : externalizers) {
+			final Class<?> type = externalizer.getClass();
+			// The generated class must be able to link every externalizer class
+			if (type.getClassLoader() != classLoader || !type.getName().startsWith(PACKAGE.replace('/', '.')))
+				return null;
+		}
+		final String className =
+				PACKAGE + "GeneratedExternalizer$" + clazz.getSimpleName() + '$' + COUNTER.incrementAndGet();
+		try {
+			final Generator generator = new Generator(className);
+			final byte[] bytes = generator.generate(externalizers);
+			CONSTANTS.put(className, generator.constants.toArray());
+			final Class<?> generatedClass = define(className.replace('/', '.'), bytes);
+			return (Externalizer<T, T>) generatedClass.getConstructor().newInstance();
+		} catch (IOException | ReflectiveOperationException | RuntimeException | LinkageError e) {
+			// The generation is not possible on this JVM, the caller uses the interpreted sequence
+			return null;
+		} finally {
+			CONSTANTS.remove(className);
+		}
+	}
+
+	private static Class<?> define(final String className, final byte[] bytes) throws ReflectiveOperationException {
+		try {
+			// Java 9 and later
+			final Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+			return (Class<?>) defineClass.invoke(MethodHandles.lookup(), bytes);
+		} catch (NoSuchMethodException e) {
+			// Java 8
+			final Method defineClass =
+					ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class,
+							int.class);
+			defineClass.setAccessible(true);
+			return (Class<?>) defineClass.invoke(GeneratedExternalizer.class.getClassLoader(), className, bytes, 0,
+					bytes.length);
+		}
+	}
+
+	private static String internalName(final Class<?> clazz) {
+		return clazz.getName().replace('.', '/');
+	}
+
+	private static String descriptor(final Class<?> clazz) {
+		if (clazz == Integer.TYPE)
+			return "I";
+		if (clazz == Long.TYPE)
+			return "J";
+		if (clazz == Short.TYPE)
+			return "S";
+		if (clazz == Float.TYPE)
+			return "F";
+		if (clazz == Double.TYPE)
+			return "D";
+		if (clazz == Boolean.TYPE)
+			return "Z";
+		if (clazz == Byte.TYPE)
+			return "B";
+		if (clazz == Character.TYPE)
+			return "C";
+		if (clazz == Void.TYPE)
+			return "V";
+		if (clazz.isArray())
+			return internalName(clazz);
+		return 'L' + internalName(clazz) + ';';
+	}
+
+	private static String descriptor(final Method method) {
+		final StringBuilder sb = new StringBuilder("(");
+		for (final Class<?> parameter : method.getParameterTypes())
+			sb.append(descriptor(parameter));
+		return sb.append(')').append(descriptor(method.getReturnType())).toString();
+	}
+
+	/**
+	 * @return the name of the typed methods of FieldAccessor: Int for getInt and setInt, empty for get and set
+	 */
+	private static String accessType(final Class<?> type) {
+		if (!type.isPrimitive())
+			return "";
+		final String name = type.getName();
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	/**
+	 * The bytecode of one generated class
+	 */
+	private final static class Generator {
+
+		private final String className;
+		private final String superName = internalName(GeneratedExternalizer.class);
+		private final ClassBuilder builder = new ClassBuilder();
+		private final List<Object> constants = new ArrayList<>();
+		private final List<String> constantDescriptors = new ArrayList<>();
+		private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+
+		private Generator(final String className) {
+			this.className = className;
+		}
+
+		/**
+		 * @return the static final field holding the value
+		 */
+		private int constant(final Object value, final String descriptor) {
+			Integer index = constantIndexes.get(value);
+			if (index == null) {
+				index = constants.size();
+				constants.add(value);
+				constantDescriptors.add(descriptor);
+				constantIndexes.put(value, index);
+			}
+			return index;
+		}
+
+		private void getConstant(final Code code, final int index) throws IOException {
+			code.op(GETSTATIC).u2(builder.fieldRef(className, "c" + index, constantDescriptors.get(index)));
+		}
+
+		private void getConstant(final Code code, final Object value, final String descriptor) throws IOException {
+			getConstant(code, constant(value, descriptor));
+		}
+
+		private void invoke(final Code code, final int opcode, final Method method) throws IOException {
+			code.op(opcode)
+					.u2(builder.methodRef(internalName(method.getDeclaringClass()), method.getName(),
+							descriptor(method)));
+		}
+
+		private void invoke(final Code code, final int opcode, final Class<?> owner, final String name,
+				final Class<?>... parameterTypes) throws IOException, NoSuchMethodException {
+			final Method method = owner.getDeclaredMethod(name, parameterTypes);
+			code.op(opcode).u2(builder.methodRef(internalName(owner), name, descriptor(method)));
+		}
+
+		/**
+		 * Push the value of the field of the object (local 1)
+		 */
+		private void load(final Code code, final FieldAccessor accessor) throws IOException {
+			final String type = accessor.type.isPrimitive() ? descriptor(accessor.type) : OBJECT;
+			if (accessor instanceof FieldAccessor.HandleAccessor) {
+				getConstant(code, ((FieldAccessor.HandleAccessor) accessor).getter, "Ljava/lang/invoke/MethodHandle;");
+				code.op(ALOAD_1);
+				code.op(INVOKEVIRTUAL)
+						.u2(builder.methodRef(internalName(MethodHandle.class), "invokeExact",
+								"(" + OBJECT + ")" + type));
+			} else {
+				getConstant(code, accessor, descriptor(FieldAccessor.class));
+				code.op(ALOAD_1);
+				code.op(INVOKEVIRTUAL)
+						.u2(builder.methodRef(internalName(FieldAccessor.class), "get" + accessType(accessor.type),
+								"(" + OBJECT + ")" + type));
+			}
+		}
+
+		/**
+		 * Push the target of the store: the setter and the object (local 1)
+		 */
+		private void beginStore(final Code code, final FieldAccessor accessor) throws IOException {
+			if (accessor instanceof FieldAccessor.HandleAccessor)
+				getConstant(code, ((FieldAccessor.HandleAccessor) accessor).setter, "Ljava/lang/invoke/MethodHandle;");
+			else
+				getConstant(code, accessor, descriptor(FieldAccessor.class));
+			code.op(ALOAD_1);
+		}
+
+		/**
+		 * Store the value on the stack in the field
+		 */
+		private void endStore(final Code code, final FieldAccessor accessor) throws IOException {
+			final String type = accessor.type.isPrimitive() ? descriptor(accessor.type) : OBJECT;
+			if (accessor instanceof FieldAccessor.HandleAccessor)
+				code.op(INVOKEVIRTUAL)
+						.u2(builder.methodRef(internalName(MethodHandle.class), "invokeExact",
+								"(" + OBJECT + type + ")V"));
+			else
+				code.op(INVOKEVIRTUAL)
+						.u2(builder.methodRef(internalName(FieldAccessor.class), "set" + accessType(accessor.type),
+								"(" + OBJECT + type + ")V"));
+		}
+
+		private byte[] generate(final Externalizer[] externalizers) throws IOException, NoSuchMethodException {
+
+			final Code write = new Code();
+			final Code read = new Code();
+			PrimitiveExternalizer.PrimitiveBlockExternalizer block = null;
+
+			for (final Externalizer externalizer : externalizers) {
+				final Class<?> type = externalizer.getClass();
+				final String typeDescriptor = descriptor(type);
+				if (externalizer instanceof PrimitiveExternalizer.FieldPrimitiveExternalizer) {
+					final FieldAccessor accessor = ((FieldExternalizer) externalizer).accessor;
+					getConstant(write, externalizer, typeDescriptor);
+					load(write, accessor);
+					write.op(ALOAD_2);
+					invoke(write, INVOKEVIRTUAL, type, "writeField", accessor.type, ObjectOutput.class);
+					beginStore(read, accessor);
+					getConstant(read, externalizer, typeDescriptor);
+					read.op(ALOAD_2);
+					invoke(read, INVOKEVIRTUAL, type, "readField", ObjectInput.class);
+					endStore(read, accessor);
+				} else if (externalizer instanceof FieldExternalizer.FieldObjectExternalizer ||
+						externalizer instanceof FieldExternalizer.FieldReferenceExternalizer) {
+					final FieldAccessor accessor = ((FieldExternalizer) externalizer).accessor;
+					final Class<?> owner = externalizer instanceof FieldExternalizer.FieldObjectExternalizer ?
+							FieldExternalizer.FieldObjectExternalizer.class :
+							FieldExternalizer.FieldReferenceExternalizer.class;
+					getConstant(write, externalizer, typeDescriptor);
+					load(write, accessor);
+					write.op(ALOAD_2);
+					write.op(INVOKEVIRTUAL)
+							.u2(builder.methodRef(internalName(type), "writeField",
+									descriptor(owner.getDeclaredMethod("writeField", Object.class,
+											ObjectOutput.class))));
+					beginStore(read, accessor);
+					getConstant(read, externalizer, typeDescriptor);
+					read.op(ALOAD_2);
+					read.op(INVOKEVIRTUAL).u2(builder.methodRef(internalName(type), "readObject",
+							"(Ljava/io/ObjectInput;)" + OBJECT));
+					endStore(read, accessor);
+				} else if (externalizer instanceof PrimitiveExternalizer.PrimitiveBlockExternalizer && block == null) {
+					block = (PrimitiveExternalizer.PrimitiveBlockExternalizer) externalizer;
+					write.op(ALOAD_0).op(ALOAD_1).op(ALOAD_2);
+					getConstant(write, externalizer, typeDescriptor);
+					invoke(write, INVOKEVIRTUAL, GeneratedExternalizer.class, "writeBlock", Object.class,
+							ObjectOutput.class, PrimitiveExternalizer.PrimitiveBlockExternalizer.class);
+					read.op(ALOAD_0).op(ALOAD_1).op(ALOAD_2);
+					getConstant(read, externalizer, typeDescriptor);
+					invoke(read, INVOKEVIRTUAL, GeneratedExternalizer.class, "readBlock", Object.class,
+							ObjectInput.class, PrimitiveExternalizer.PrimitiveBlockExternalizer.class);
+				} else {
+					getConstant(write, externalizer, typeDescriptor);
+					write.op(ALOAD_1).op(ALOAD_2);
+					write.op(INVOKEVIRTUAL)
+							.u2(builder.methodRef(internalName(type), "writeExternal", WRITE_DESCRIPTOR));
+					getConstant(read, externalizer, typeDescriptor);
+					read.op(ALOAD_1).op(ALOAD_2);
+					read.op(INVOKEVIRTUAL)
+							.u2(builder.methodRef(internalName(type), "readExternal", READ_DESCRIPTOR));
+				}
+			}
+			write.op(RETURN);
+			read.op(RETURN);
+
+			builder.method(ACC_PUBLIC, "writeExternal", WRITE_DESCRIPTOR, MAX_STACK, 3, write);
+			builder.method(ACC_PUBLIC, "readExternal", READ_DESCRIPTOR, MAX_STACK, 3, read);
+			if (block != null)
+				block(block);
+
+			// Constructor
+			final Code init = new Code();
+			init.op(ALOAD_0).op(INVOKESPECIAL).u2(builder.methodRef(superName, "<init>", "()V"));
+			init.op(RETURN);
+			builder.method(ACC_PUBLIC, "<init>", "()V", 1, 1, init);
+
+			// Static initializer: the constants are fetched from GeneratedExternalizer#constants
+			final Code clinit = new Code();
+			clinit.op(LDC_W).u2(builder.string(className));
+			invoke(clinit, INVOKESTATIC, GeneratedExternalizer.class, "constants", String.class);
+			clinit.op(ASTORE_0);
+			for (int i = 0; i < constants.size(); i++) {
+				final String descriptor = constantDescriptors.get(i);
+				builder.field(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "c" + i, descriptor);
+				clinit.op(ALOAD_0).push(i).op(AALOAD);
+				clinit.op(CHECKCAST).u2(builder.classRef(descriptor.substring(1, descriptor.length() - 1)));
+				clinit.op(PUTSTATIC).u2(builder.fieldRef(className, "c" + i, descriptor));
+			}
+			clinit.op(RETURN);
+			builder.method(ACC_STATIC, "<clinit>", "()V", 3, 1, clinit);
+
+			return builder.toByteArray(className, superName);
+		}
+
+		/**
+		 * The primitive block: written into the buffer (putBlock, getBlock) or with the variable length encoding
+		 * (writeVarIntsBlock, readVarIntsBlock).
+		 */
+		private void block(final PrimitiveExternalizer.PrimitiveBlockExternalizer block)
+				throws IOException, NoSuchMethodException {
+			final Class<?> blockClass = PrimitiveExternalizer.PrimitiveBlockExternalizer.class;
+			final Code put = new Code();
+			final Code get = new Code();
+			final Code writeVarInts = new Code();
+			final Code readVarInts = new Code();
+			for (int i = 0; i < block.types.length; i++) {
+				final FieldAccessor accessor = block.accessors[i];
+				final Class<?> type = accessor.type;
+
+				// putBlock(object, bytes, position): position = put(bytes, position, value)
+				put.op(ALOAD_2).op(ILOAD_3);
+				load(put, accessor);
+				if (type == Float.TYPE)
+					invoke(put, INVOKESTATIC, Float.class, "floatToIntBits", float.class);
+				else if (type == Double.TYPE)
+					invoke(put, INVOKESTATIC, Double.class, "doubleToLongBits", double.class);
+				final String putName;
+				final Class<?> putType;
+				switch (block.types[i]) {
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.LONG:
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.DOUBLE:
+					putName = "putLong";
+					putType = long.class;
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.INT:
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.FLOAT:
+					putName = "putInt";
+					putType = int.class;
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.SHORT:
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.CHAR:
+					putName = "putShort";
+					putType = int.class;
+					break;
+				default:
+					putName = "putByte";
+					putType = int.class;
+					break;
+				}
+				invoke(put, INVOKESTATIC, blockClass, putName, byte[].class, int.class, putType);
+				put.op(ISTORE_3);
+
+				// getBlock(object, bytes, position): set(get(bytes, position)), position += size
+				beginStore(get, accessor);
+				get.op(ALOAD_2).op(ILOAD_3);
+				switch (block.types[i]) {
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.INT:
+					invoke(get, INVOKESTATIC, blockClass, "getInt", byte[].class, int.class);
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.LONG:
+					invoke(get, INVOKESTATIC, blockClass, "getLong", byte[].class, int.class);
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.SHORT:
+					invoke(get, INVOKESTATIC, blockClass, "getShort", byte[].class, int.class);
+					get.op(I2S);
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.FLOAT:
+					invoke(get, INVOKESTATIC, blockClass, "getInt", byte[].class, int.class);
+					invoke(get, INVOKESTATIC, Float.class, "intBitsToFloat", int.class);
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.DOUBLE:
+					invoke(get, INVOKESTATIC, blockClass, "getLong", byte[].class, int.class);
+					invoke(get, INVOKESTATIC, Double.class, "longBitsToDouble", long.class);
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.BOOLEAN:
+					invoke(get, INVOKESTATIC, blockClass, "getBoolean", byte[].class, int.class);
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.BYTE:
+					get.op(BALOAD);
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.CHAR:
+					invoke(get, INVOKESTATIC, blockClass, "getShort", byte[].class, int.class);
+					get.op(I2C);
+					break;
+				}
+				endStore(get, accessor);
+				get.op(IINC).op(3).op(PrimitiveExternalizer.PrimitiveBlockExternalizer.SIZES[block.types[i]]);
+
+				// writeVarIntsBlock(object, out)
+				writeVarInts.op(ALOAD_2);
+				load(writeVarInts, accessor);
+				switch (block.types[i]) {
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.INT:
+					invoke(writeVarInts, INVOKEVIRTUAL, BytesOutput.class, "writeCompactInt", int.class);
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.LONG:
+					invoke(writeVarInts, INVOKEVIRTUAL, BytesOutput.class, "writeCompactLong", long.class);
+					break;
+				default:
+					invoke(writeVarInts, INVOKEVIRTUAL, BytesOutput.class, "write" + accessType(type),
+							type == Float.TYPE || type == Double.TYPE || type == Boolean.TYPE ? type : int.class);
+					break;
+				}
+
+				// readVarIntsBlock(object, in)
+				beginStore(readVarInts, accessor);
+				readVarInts.op(ALOAD_2);
+				switch (block.types[i]) {
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.INT:
+					invoke(readVarInts, INVOKEVIRTUAL, BytesInput.class, "readCompactInt");
+					break;
+				case PrimitiveExternalizer.PrimitiveBlockExternalizer.LONG:
+					invoke(readVarInts, INVOKEVIRTUAL, BytesInput.class, "readCompactLong");
+					break;
+				default:
+					invoke(readVarInts, INVOKEVIRTUAL, BytesInput.class, "read" + accessType(type));
+					break;
+				}
+				endStore(readVarInts, accessor);
+			}
+			put.op(RETURN);
+			get.op(RETURN);
+			writeVarInts.op(RETURN);
+			readVarInts.op(RETURN);
+			builder.method(ACC_PUBLIC, "putBlock", "(" + OBJECT + "[BI)V", MAX_STACK, 4, put);
+			builder.method(ACC_PUBLIC, "getBlock", "(" + OBJECT + "[BI)V", MAX_STACK, 4, get);
+			builder.method(ACC_PUBLIC, "writeVarIntsBlock", "(" + OBJECT + descriptor(BytesOutput.class) + ")V",
+					MAX_STACK, 3, writeVarInts);
+			builder.method(ACC_PUBLIC, "readVarIntsBlock", "(" + OBJECT + descriptor(BytesInput.class) + ")V",
+					MAX_STACK, 3, readVarInts);
+		}
+	}
+
+	private final static int ACC_PUBLIC = 0x0001;
+	private final static int ACC_PRIVATE = 0x0002;
+	private final static int ACC_FINAL = 0x0010;
+	private final static int ACC_STATIC = 0x0008;
+	private final static int ACC_SUPER = 0x0020;
+	private final static int ACC_SYNTHETIC = 0x1000;
+
+	private final static int MAX_STACK = 8;
+
+	private final static int ICONST_0 = 0x03;
+	private final static int BIPUSH = 0x10;
+	private final static int SIPUSH = 0x11;
+	private final static int LDC_W = 0x13;
+	private final static int ILOAD_3 = 0x1d;
+	private final static int ALOAD_0 = 0x2a;
+	private final static int ALOAD_1 = 0x2b;
+	private final static int ALOAD_2 = 0x2c;
+	private final static int AALOAD = 0x32;
+	private final static int BALOAD = 0x33;
+	private final static int ISTORE_3 = 0x3e;
+	private final static int ASTORE_0 = 0x4b;
+	private final static int IINC = 0x84;
+	private final static int I2C = 0x92;
+	private final static int I2S = 0x93;
+	private final static int RETURN = 0xb1;
+	private final static int GETSTATIC = 0xb2;
+	private final static int PUTSTATIC = 0xb3;
+	private final static int INVOKEVIRTUAL = 0xb6;
+	private final static int INVOKESPECIAL = 0xb7;
+	private final static int INVOKESTATIC = 0xb8;
+	private final static int CHECKCAST = 0xc0;
+
+	/**
+	 * The bytecode of one method.
+	 * Only straight-line code is generated, no stack map frame is required.
+	 */
+	private final static class Code {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		private Code op(final int opcode) {
+			bytes.write(opcode);
+			return this;
+		}
+
+		private Code u2(final int value) {
+			bytes.write(value >>> 8);
+			bytes.write(value);
+			return this;
+		}
+
+		private Code push(final int value) {
+			if (value <= 5)
+				return op(ICONST_0 + value);
+			if (value <= Byte.MAX_VALUE)
+				return op(BIPUSH).op(value);
+			return op(SIPUSH).u2(value);
+		}
+	}
+
+	/**
+	 * Minimal class file writer: one constant pool, fields and methods without attributes other than Code.
+	 */
+	private final static class ClassBuilder {
+
+		private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+		private final DataOutputStream pool = new DataOutputStream(poolBytes);
+		private final Map<String, Integer> constants = new HashMap<>();
+		private int poolCount = 1;
+
+		private final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+		private final DataOutputStream fields = new DataOutputStream(fieldBytes);
+		private int fieldCount;
+
+		private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+		private final DataOutputStream methods = new DataOutputStream(methodBytes);
+		private int methodCount;
+
+		private int utf8(final String value) throws IOException {
+			final String key = "U" + value;
+			Integer index = constants.get(key);
+			if (index != null)
+				return index;
+			pool.writeByte(1);
+			pool.writeUTF(value);
+			constants.put(key, index = poolCount++);
+			return index;
+		}
+
+		private int constant(final String key, final int tag, final int first, final int second)
+				throws IOException {
+			Integer index = constants.get(key);
+			if (index != null)
+				return index;
+			pool.writeByte(tag);
+			pool.writeShort(first);
+			if (second >= 0)
+				pool.writeShort(second);
+			constants.put(key, index = poolCount++);
+			return index;
+		}
+
+		private int string(final String value) throws IOException {
+			return constant("S" + value, 8, utf8(value), -1);
+		}
+
+		private int classRef(final String internalName) throws IOException {
+			return constant("C" + internalName, 7, utf8(internalName), -1);
+		}
+
+		private int nameAndType(final String name, final String descriptor) throws IOException {
+			return constant("N" + name + ' ' + descriptor, 12, utf8(name), utf8(descriptor));
+		}
+
+		private int fieldRef(final String owner, final String name, final String descriptor) throws IOException {
+			return constant("F" + owner + '.' + name + ' ' + descriptor, 9, classRef(owner),
+					nameAndType(name, descriptor));
+		}
+
+		private int methodRef(final String owner, final String name, final String descriptor) throws IOException {
+			return constant("M" + owner + '.' + name + descriptor, 10, classRef(owner),
+					nameAndType(name, descriptor));
+		}
+
+		private void field(final int access, final String name, final String descriptor) throws IOException {
+			fields.writeShort(access);
+			fields.writeShort(utf8(name));
+			fields.writeShort(utf8(descriptor));
+			fields.writeShort(0);
+			fieldCount++;
+		}
+
+		private void method(final int access, final String name, final String descriptor, final int maxStack,
+				final int maxLocals, final Code code) throws IOException {
+			final byte[] bytes = code.bytes.toByteArray();
+			methods.writeShort(access);
+			methods.writeShort(utf8(name));
+			methods.writeShort(utf8(descriptor));
+			methods.writeShort(1);
+			methods.writeShort(utf8("Code"));
+			methods.writeInt(12 + bytes.length);
+			methods.writeShort(maxStack);
+			methods.writeShort(maxLocals);
+			methods.writeInt(bytes.length);
+			methods.write(bytes);
+			methods.writeShort(0); // Exception table
+			methods.writeShort(0); // Attributes
+			methodCount++;
+		}
+
+		private byte[] toByteArray(final String className, final String superName) throws IOException {
+			final int thisClass = classRef(className);
+			final int superClass = classRef(superName);
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream output = new DataOutputStream(bytes);
+			output.writeInt(0xCAFEBABE);
+			output.writeShort(0); // Minor version
+			output.writeShort(52); // Java 8
+			output.writeShort(poolCount);
+			poolBytes.writeTo(output);
+			output.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+			output.writeShort(thisClass);
+			output.writeShort(superClass);
+			output.writeShort(0); // Interfaces
+			output.writeShort(fieldCount);
+			fieldBytes.writeTo(output);
+			output.writeShort(methodCount);
+			methodBytes.writeTo(output);
+			output.writeShort(0); // Attributes
+			output.flush();
+			return bytes.toByteArray();
+		}
+	}
+
+}
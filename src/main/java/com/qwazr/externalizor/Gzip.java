@@ -0,0 +1,158 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The GZIP format (RFC 1952) written and read with the pooled Deflater and Inflater.
+ * The output is the same than GZIPOutputStream, any GZIP stream (several members, optional header fields) can be
+ * read like with GZIPInputStream.
+ */
+final class Gzip {
+
+	private final static int MAGIC_1 = 0x1f;
+	private final static int MAGIC_2 = 0x8b;
+	private final static int DEFLATED = 8;
+
+	private final static int FHCRC = 2;
+	private final static int FEXTRA = 4;
+	private final static int FNAME = 8;
+	private final static int FCOMMENT = 16;
+
+	private final static byte[] HEADER = { (byte) MAGIC_1, (byte) MAGIC_2, DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final static int TRAILER_SIZE = 8;
+
+	private Gzip() {
+	}
+
+	static boolean isGzip(final byte[] bytes, final int offset, final int length) {
+		return length >= 2 && (bytes[offset] & 0xFF) == MAGIC_1 && (bytes[offset + 1] & 0xFF) == MAGIC_2;
+	}
+
+	/**
+	 * Compress the bytes as one GZIP member
+	 */
+	static void compress(final byte[] bytes, final int offset, final int length, final OutputStream output)
+			throws IOException {
+		final Deflater deflater = Pool.DEFLATERS.acquire(0);
+		final byte[] chunk = Pool.BUFFERS.acquire(0);
+		try {
+			output.write(HEADER);
+			deflater.setInput(bytes, offset, length);
+			deflater.finish();
+			while (!deflater.finished()) {
+				final int n = deflater.deflate(chunk, 0, chunk.length);
+				output.write(chunk, 0, n);
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(bytes, offset, length);
+			writeIntLE(chunk, 0, (int) crc.getValue());
+			writeIntLE(chunk, 4, length);
+			output.write(chunk, 0, TRAILER_SIZE);
+		} finally {
+			Pool.BUFFERS.release(chunk);
+			Pool.DEFLATERS.release(deflater);
+		}
+	}
+
+	/**
+	 * Uncompress every GZIP member
+	 *
+	 * @param bytes  the compressed bytes
+	 * @param offset the position of the first compressed byte
+	 * @param length the number of compressed bytes
+	 * @param output receives the uncompressed bytes
+	 * @throws IOException if the bytes are not a valid GZIP stream
+	 */
+	static void uncompress(final byte[] bytes, final int offset, final int length, final BytesOutput output)
+			throws IOException {
+		final Inflater inflater = Pool.INFLATERS.acquire(0);
+		final int end = offset + length;
+		try {
+			int pos = offset;
+			do {
+				pos = readHeader(bytes, pos, end);
+				final int start = output.size();
+				// The size of the last member is a good hint for a single member stream
+				final int sizeHint = end - pos >= TRAILER_SIZE ? readIntLE(bytes, end - 4) : 0;
+				inflater.reset();
+				inflater.setInput(bytes, pos, end - pos);
+				output.inflate(inflater, sizeHint < 0 ? 0 : (int) Math.min(sizeHint, (long) length << 6));
+				pos = end - inflater.getRemaining();
+				if (end - pos < TRAILER_SIZE)
+					throw new EOFException("Unexpected end of GZIP stream");
+				final int size = output.size() - start;
+				final CRC32 crc = new CRC32();
+				crc.update(output.buffer(), start, size);
+				if (readIntLE(bytes, pos) != (int) crc.getValue() || readIntLE(bytes, pos + 4) != size)
+					throw new ZipException("Corrupt GZIP trailer");
+				pos += TRAILER_SIZE;
+			} while (isGzip(bytes, pos, end - pos));
+		} finally {
+			Pool.INFLATERS.release(inflater);
+		}
+	}
+
+	private static int readHeader(final byte[] bytes, int pos, final int length) throws IOException {
+		if (length - pos < HEADER.length || !isGzip(bytes, pos, length - pos))
+			throw new ZipException("Not in GZIP format");
+		if (bytes[pos + 2] != DEFLATED)
+			throw new ZipException("Unsupported compression method");
+		final int flags = bytes[pos + 3] & 0xFF;
+		pos += HEADER.length;
+		if ((flags & FEXTRA) != 0) {
+			if (length - pos < 2)
+				throw new EOFException("Unexpected end of GZIP header");
+			pos += 2 + ((bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8));
+		}
+		if ((flags & FNAME) != 0)
+			pos = skipZeroTerminated(bytes, pos, length);
+		if ((flags & FCOMMENT) != 0)
+			pos = skipZeroTerminated(bytes, pos, length);
+		if ((flags & FHCRC) != 0)
+			pos += 2;
+		if (pos > length)
+			throw new EOFException("Unexpected end of GZIP header");
+		return pos;
+	}
+
+	private static int skipZeroTerminated(final byte[] bytes, int pos, final int length) throws EOFException {
+		while (pos < length)
+			if (bytes[pos++] == 0)
+				return pos;
+		throw new EOFException("Unexpected end of GZIP header");
+	}
+
+	private static void writeIntLE(final byte[] bytes, final int pos, final int value) {
+		bytes[pos] = (byte) value;
+		bytes[pos + 1] = (byte) (value >>> 8);
+		bytes[pos + 2] = (byte) (value >>> 16);
+		bytes[pos + 3] = (byte) (value >>> 24);
+	}
+
+	private static int readIntLE(final byte[] bytes, final int pos) {
+		return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8) | ((bytes[pos + 2] & 0xFF) << 16) |
+				((bytes[pos + 3] & 0xFF) << 24);
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.util.Arrays;
+
+/**
+ * An identity hash table giving an int handle to each object, in the order of insertion.
+ * Open addressing with linear probing, the keys are compared by identity.
+ */
+final class IdentityTable {
+
+	private final static int INITIAL_CAPACITY = 32;
+
+	private Object[] keys;
+	private int[] handles;
+	private int size;
+
+	IdentityTable() {
+		keys = new Object[INITIAL_CAPACITY];
+		handles = new int[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	private static int slot(final Object key, final int mask) {
+		final int h = System.identityHashCode(key);
+		// Spread the bits, the identity hash codes are not uniformly distributed in the low bits
+		return (h ^ (h >>> 16)) * 0x9E3779B9 & mask;
+	}
+
+	/**
+	 * Find the object, or add it with the next handle
+	 *
+	 * @param key the object
+	 * @return the handle of the object if it was already in the table, -1 if it has been added
+	 */
+	final int putIfAbsent(final Object key) {
+		final int mask = keys.length - 1;
+		int i = slot(key, mask);
+		Object k;
+		while ((k = keys[i]) != null) {
+			if (k == key)
+				return handles[i];
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		handles[i] = size++;
+		if (size << 1 > keys.length)
+			resize();
+		return -1;
+	}
+
+	final int size() {
+		return size;
+	}
+
+	private void resize() {
+		final Object[] oldKeys = keys;
+		final int[] oldHandles = handles;
+		keys = new Object[oldKeys.length << 1];
+		handles = new int[oldKeys.length << 1];
+		final int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			final Object key = oldKeys[j];
+			if (key == null)
+				continue;
+			int i = slot(key, mask);
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = key;
+			handles[i] = oldHandles[j];
+		}
+	}
+
+	/**
+	 * Remove every object, the capacity is kept
+	 */
+	final void clear() {
+		if (size == 0)
+			return;
+		Arrays.fill(keys, null);
+		size = 0;
+	}
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Creates the instances on the deserialization path.
+ * The constructor is bound once, the instances are not created using Constructor.newInstance.
+ *
+ * @param <T>
+ */
+interface Instantiator<T> {
+
+	/**
+	 * The largest capacity given to a new instance. The size is read from the stream: a corrupted or a hostile size
+	 * must not allocate more than the elements really read, the collections grow past this capacity.
+	 */
+	int MAX_CAPACITY = 1 << 16;
+
+	T newInstance() throws ReflectiveOperationException;
+
+	/**
+	 * @param size the number of elements which will be added to the new instance
+	 * @return a new instance, with a capacity for the elements (up to {@link #MAX_CAPACITY}) if the instantiator
+	 * supports it
+	 * @throws ReflectiveOperationException if the instance cannot be created
+	 */
+	default T newInstance(final int size) throws ReflectiveOperationException {
+		return newInstance();
+	}
+
+	/**
+	 * @param clazz the class to instantiate
+	 * @param <T>   the type of the class
+	 * @return an instantiator calling the public empty constructor, or null if the class does not have one
+	 */
+	static <T> Instantiator<T> of(final Class<T> clazz) {
+		final Constructor<T> constructor;
+		try {
+			constructor = clazz.getConstructor();
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+		if (Modifier.isAbstract(clazz.getModifiers()))
+			return new ConstructorInstantiator<>(constructor);
+		final Supplier<T> supplier = SupplierInstantiator.lambda(clazz, constructor);
+		if (supplier != null)
+			return new SupplierInstantiator<>(supplier);
+		return HandleInstantiator.of(constructor);
+	}
+
+	/**
+	 * The collections and the maps of the JDK with a capacity constructor are created with the capacity for their
+	 * elements, they are filled without being resized or rehashed.
+	 *
+	 * @param clazz the class of the collection or the map
+	 * @param <T>   the type of the class
+	 * @return an instantiator calling the capacity constructor for {@link #newInstance(int)}, the public empty
+	 * constructor otherwise, or null if the class does not have one
+	 */
+	static <T> Instantiator<T> sized(final Class<T> clazz) {
+		final Instantiator<T> instantiator = of(clazz);
+		if (instantiator == null)
+			return null;
+		final IntFunction<T> capacity = SizedInstantiator.capacity(clazz);
+		return capacity == null ? instantiator : new SizedInstantiator<>(instantiator, capacity);
+	}
+
+	/**
+	 * @param supplier a supplier returning a new instance
+	 * @param <T>      the type of the instances
+	 * @return an instantiator using the supplier, or null if the supplier is null
+	 */
+	static <T> Instantiator<T> of(final Supplier<T> supplier) {
+		return supplier == null ? null : new SupplierInstantiator<>(supplier);
+	}
+
+	/**
+	 * Creates the instances without calling any constructor of the class, like the Java serialization does.
+	 *
+	 * @param clazz the class to instantiate
+	 * @param <T>   the type of the class
+	 * @return the instantiator, or null if the class or the JVM does not support it
+	 */
+	static <T> Instantiator<T> withoutConstructor(final Class<T> clazz) {
+		if (clazz.isInterface() || clazz.isArray() || clazz.isPrimitive() ||
+				Modifier.isAbstract(clazz.getModifiers()))
+			return null;
+		try {
+			final Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+			final Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+			final Method newConstructor =
+					factoryClass.getMethod("newConstructorForSerialization", Class.class, Constructor.class);
+			final Constructor<T> constructor =
+					(Constructor<T>) newConstructor.invoke(factory, clazz, Object.class.getDeclaredConstructor());
+			if (constructor == null)
+				return null;
+			constructor.setAccessible(true);
+			return new ConstructorInstantiator<>(constructor);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	final class SizedInstantiator<T> implements Instantiator<T> {
+
+		private final static Map<Class<?>, IntFunction<?>> CAPACITIES = new HashMap<>();
+
+		static {
+			// The capacity is the number of elements
+			CAPACITIES.put(ArrayList.class, (IntFunction<?>) ArrayList::new);
+			CAPACITIES.put(Vector.class, (IntFunction<?>) Vector::new);
+			CAPACITIES.put(ArrayDeque.class, (IntFunction<?>) ArrayDeque::new);
+			CAPACITIES.put(PriorityQueue.class, (IntFunction<?>) size -> new PriorityQueue<>(Math.max(1, size)));
+			CAPACITIES.put(IdentityHashMap.class, (IntFunction<?>) IdentityHashMap::new);
+			CAPACITIES.put(ConcurrentHashMap.class, (IntFunction<?>) ConcurrentHashMap::new);
+			// The capacity is the size of the hash table, resized when the load factor is reached
+			CAPACITIES.put(HashMap.class, (IntFunction<?>) size -> new HashMap<>(hashCapacity(size)));
+			CAPACITIES.put(LinkedHashMap.class, (IntFunction<?>) size -> new LinkedHashMap<>(hashCapacity(size)));
+			CAPACITIES.put(HashSet.class, (IntFunction<?>) size -> new HashSet<>(hashCapacity(size)));
+			CAPACITIES.put(LinkedHashSet.class, (IntFunction<?>) size -> new LinkedHashSet<>(hashCapacity(size)));
+			CAPACITIES.put(Hashtable.class, (IntFunction<?>) size -> new Hashtable<>(hashCapacity(size)));
+			CAPACITIES.put(WeakHashMap.class, (IntFunction<?>) size -> new WeakHashMap<>(hashCapacity(size)));
+		}
+
+		private final Instantiator<T> instantiator;
+		private final IntFunction<T> capacity;
+
+		private SizedInstantiator(final Instantiator<T> instantiator, final IntFunction<T> capacity) {
+			this.instantiator = instantiator;
+			this.capacity = capacity;
+		}
+
+		/**
+		 * @return the capacity constructor of a JDK class, or null. A subclass may not use the capacity the same way.
+		 */
+		private static <T> IntFunction<T> capacity(final Class<T> clazz) {
+			return (IntFunction<T>) CAPACITIES.get(clazz);
+		}
+
+		/**
+		 * @return the smallest table capacity holding the elements under the default load factor (0.75)
+		 */
+		private static int hashCapacity(final int size) {
+			return (int) Math.min((long) size * 4 / 3 + 1, 1 << 30);
+		}
+
+		@Override
+		final public T newInstance() throws ReflectiveOperationException {
+			return instantiator.newInstance();
+		}
+
+		@Override
+		final public T newInstance(final int size) {
+			return capacity.apply(Math.min(size, MAX_CAPACITY));
+		}
+	}
+
+	final class SupplierInstantiator<T> implements Instantiator<T> {
+
+		private final Supplier<T> supplier;
+
+		private SupplierInstantiator(final Supplier<T> supplier) {
+			this.supplier = supplier;
+		}
+
+		@Override
+		final public T newInstance() {
+			return supplier.get();
+		}
+
+		/**
+		 * Build a Supplier using the LambdaMetafactory.
+		 * The generated class must be able to link the class, which must then be public and visible from our
+		 * class loader.
+		 */
+		private static <T> Supplier<T> lambda(final Class<T> clazz, final Constructor<T> constructor) {
+			if (!Modifier.isPublic(clazz.getModifiers()))
+				return null;
+			try {
+				if (Class.forName(clazz.getName(), false, Instantiator.class.getClassLoader()) != clazz)
+					return null;
+				final MethodHandles.Lookup lookup = MethodHandles.lookup();
+				final CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+						MethodType.methodType(Supplier.class), MethodType.methodType(Object.class),
+						lookup.unreflectConstructor(constructor), MethodType.methodType(clazz));
+				return (Supplier<T>) site.getTarget().invoke();
+			} catch (Throwable t) {
+				return null;
+			}
+		}
+	}
+
+	final class HandleInstantiator<T> implements Instantiator<T> {
+
+		private final MethodHandle handle;
+
+		private HandleInstantiator(final MethodHandle handle) {
+			this.handle = handle;
+		}
+
+		private static <T> Instantiator<T> of(final Constructor<T> constructor) {
+			try {
+				constructor.setAccessible(true);
+				return new HandleInstantiator<>(MethodHandles.lookup()
+						.unreflectConstructor(constructor)
+						.asType(MethodType.methodType(Object.class)));
+			} catch (IllegalAccessException | RuntimeException e) {
+				return new ConstructorInstantiator<>(constructor);
+			}
+		}
+
+		@Override
+		final public T newInstance() throws ReflectiveOperationException {
+			try {
+				return (T) (Object) handle.invokeExact();
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new InvocationTargetException(t);
+			}
+		}
+	}
+
+	final class ConstructorInstantiator<T> implements Instantiator<T> {
+
+		private final Constructor<T> constructor;
+
+		private ConstructorInstantiator(final Constructor<T> constructor) {
+			this.constructor = constructor;
+		}
+
+		@Override
+		final public T newInstance() throws ReflectiveOperationException {
+			return constructor.newInstance();
+		}
+	}
+}
@@ -18,7 +18,8 @@ package com.qwazr.externalizor;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.lang.reflect.Field;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -54,36 +55,36 @@ interface LangExternalizer<T, V> extends Externalizer<T, V> {
 		return null;
 	}
 
-	static <T, V> FieldExternalizer<T, V> lang(final Field field, final Class<? extends T> clazz) {
+	static <T, V> FieldExternalizer<T, V> lang(final FieldAccessor accessor, final Class<? extends T> clazz) {
 		if (String.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer<>(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer<>(accessor,
 					StringExternalizer.INSTANCE);
 		if (Long.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					LongExternalizer.INSTANCE);
 		if (Integer.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					IntegerExternalizer.INSTANCE);
 		if (Short.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					ShortExternalizer.INSTANCE);
 		if (Double.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					DoubleExternalizer.INSTANCE);
 		if (Float.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					FloatExternalizer.INSTANCE);
 		if (Character.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					CharExternalizer.INSTANCE);
 		if (Byte.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					ByteExternalizer.INSTANCE);
 		if (Boolean.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					BooleanExternalizer.INSTANCE);
 		if (Enum.class.isAssignableFrom(clazz))
-			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (FieldExternalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					EnumExternalizer.get((Class<? extends Enum<?>>) clazz));
 		// Can't handle this class, we return null
 		return null;
@@ -94,177 +95,252 @@ interface LangExternalizer<T, V> extends Externalizer<T, V> {
 		throw new ExternalizorException("Not available");
 	}
 
+	/**
+	 * The string is preceded by a tag byte, which gives the encoding: Latin-1 (one byte per char) when every char is
+	 * below 256, UTF-8 otherwise. The bytes are preceded by their number as a variable length integer, there is no
+	 * length limit.
+	 * <p>
+	 * The string table of the stream (see {@link Externalizor#setStringTableSize(int)}) writes the repeated strings as
+	 * a reference to the first occurrence, the reader returns the same instance.
+	 * <p>
+	 * The strings written by the previous versions with writeUTF (INLINE and INLINE_ADDED) are still read.
+	 */
 	final class StringExternalizer implements LangExternalizer<String, String> {
 
 		static final StringExternalizer INSTANCE = new StringExternalizer();
 
+		final static int NULL = 0;
+		final static int INLINE = 1;
+		final static int INLINE_ADDED = 2;
+		final static int REFERENCE = 3;
+		final static int LATIN1 = 4;
+		final static int UTF8 = 5;
+		final static int LATIN1_ADDED = 6;
+		final static int UTF8_ADDED = 7;
+
 		@Override
 		final public void writeExternal(final String object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeUTF(object);
-			} else
-				out.writeBoolean(false);
+			if (object == null) {
+				out.writeByte(NULL);
+				return;
+			}
+			final boolean latin1 = isLatin1(object);
+			if (out instanceof BytesOutput) {
+				final BytesOutput bytesOutput = (BytesOutput) out;
+				final int index = bytesOutput.stringIndex(object);
+				if (index >= 0) {
+					bytesOutput.writeByte(REFERENCE);
+					bytesOutput.writeVarInt(index);
+					return;
+				}
+				final boolean added = index == BytesOutput.STRING_ADDED;
+				if (latin1) {
+					bytesOutput.writeByte(added ? LATIN1_ADDED : LATIN1);
+					bytesOutput.writeLatin1(object);
+				} else {
+					bytesOutput.writeByte(added ? UTF8_ADDED : UTF8);
+					bytesOutput.writeUtf8(object);
+				}
+				return;
+			}
+			out.writeByte(latin1 ? LATIN1 : UTF8);
+			final byte[] bytes = object.getBytes(latin1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+			int length = bytes.length;
+			while ((length & ~0x7F) != 0) {
+				out.writeByte((length & 0x7F) | 0x80);
+				length >>>= 7;
+			}
+			out.writeByte(length);
+			out.write(bytes);
+		}
+
+		private static boolean isLatin1(final String value) {
+			final int length = value.length();
+			for (int i = 0; i < length; i++)
+				if (value.charAt(i) > 0xFF)
+					return false;
+			return true;
 		}
 
 		@Override
 		final public String readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? in.readUTF() : null;
+			final int tag = in.readUnsignedByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case LATIN1:
+				return in instanceof BytesInput ? ((BytesInput) in).readLatin1() :
+						new String(readBytes(in), StandardCharsets.ISO_8859_1);
+			case UTF8:
+				return in instanceof BytesInput ? ((BytesInput) in).readUtf8() :
+						new String(readBytes(in), StandardCharsets.UTF_8);
+			case LATIN1_ADDED: {
+				final BytesInput bytesInput = BytesInput.of(in);
+				return bytesInput.addString(bytesInput.readLatin1());
+			}
+			case UTF8_ADDED: {
+				final BytesInput bytesInput = BytesInput.of(in);
+				return bytesInput.addString(bytesInput.readUtf8());
+			}
+			case REFERENCE: {
+				final BytesInput bytesInput = BytesInput.of(in);
+				return bytesInput.getString(bytesInput.readVarInt());
+			}
+			case INLINE:
+				return in.readUTF();
+			case INLINE_ADDED:
+				return BytesInput.of(in).addString(in.readUTF());
+			default:
+				throw new StreamCorruptedException("Unknown string tag: " + tag);
+			}
+		}
+
+		private static byte[] readBytes(final ObjectInput in) throws IOException {
+			int length = 0;
+			for (int shift = 0; ; shift += 7) {
+				if (shift == 35)
+					throw new StreamCorruptedException("Malformed variable length integer");
+				final int b = in.readUnsignedByte();
+				length |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+			}
+			if (length < 0)
+				throw new StreamCorruptedException("Negative length: " + length);
+			final byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return bytes;
 		}
 	}
 
-	final class LongExternalizer implements LangExternalizer<Long, Long> {
+	final class LongExternalizer implements LangExternalizer<Long, Long>, ValueExternalizer<Long> {
 
 		static final LongExternalizer INSTANCE = new LongExternalizer();
 
 		@Override
-		final public void writeExternal(final Long object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeLong(object);
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Long object, final ObjectOutput out) throws IOException {
+			VarInts.writeLong(out, object);
 		}
 
 		@Override
-		final public Long readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? in.readLong() : null;
+		final public Long readValue(final ObjectInput in) throws IOException {
+			return VarInts.readLong(in);
 		}
 	}
 
-	final class IntegerExternalizer implements LangExternalizer<Integer, Integer> {
+	final class IntegerExternalizer implements LangExternalizer<Integer, Integer>, ValueExternalizer<Integer> {
 
 		static final IntegerExternalizer INSTANCE = new IntegerExternalizer();
 
 		@Override
-		final public void writeExternal(final Integer object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeInt(object);
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Integer object, final ObjectOutput out) throws IOException {
+			VarInts.writeInt(out, object);
 		}
 
 		@Override
-		final public Integer readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? in.readInt() : null;
+		final public Integer readValue(final ObjectInput in) throws IOException {
+			return VarInts.readInt(in);
 		}
 	}
 
-	final class ShortExternalizer implements LangExternalizer<Short, Short> {
+	final class ShortExternalizer implements LangExternalizer<Short, Short>, ValueExternalizer<Short> {
 
 		static final ShortExternalizer INSTANCE = new ShortExternalizer();
 
 		@Override
-		final public void writeExternal(final Short object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeShort(object);
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Short object, final ObjectOutput out) throws IOException {
+			out.writeShort(object);
 		}
 
 		@Override
-		final public Short readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? in.readShort() : null;
+		final public Short readValue(final ObjectInput in) throws IOException {
+			return in.readShort();
 		}
 	}
 
-	final class DoubleExternalizer implements LangExternalizer<Double, Double> {
+	final class DoubleExternalizer implements LangExternalizer<Double, Double>, ValueExternalizer<Double> {
 
 		static final DoubleExternalizer INSTANCE = new DoubleExternalizer();
 
 		@Override
-		final public void writeExternal(final Double object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeDouble(object);
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Double object, final ObjectOutput out) throws IOException {
+			out.writeDouble(object);
 		}
 
 		@Override
-		final public Double readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? in.readDouble() : null;
+		final public Double readValue(final ObjectInput in) throws IOException {
+			return in.readDouble();
 		}
 	}
 
-	final class FloatExternalizer implements LangExternalizer<Float, Float> {
+	final class FloatExternalizer implements LangExternalizer<Float, Float>, ValueExternalizer<Float> {
 
 		static final FloatExternalizer INSTANCE = new FloatExternalizer();
 
 		@Override
-		final public void writeExternal(final Float object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeFloat(object);
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Float object, final ObjectOutput out) throws IOException {
+			out.writeFloat(object);
 		}
 
 		@Override
-		final public Float readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? in.readFloat() : null;
+		final public Float readValue(final ObjectInput in) throws IOException {
+			return in.readFloat();
 		}
 	}
 
-	final class ByteExternalizer implements LangExternalizer<Byte, Byte> {
+	final class ByteExternalizer implements LangExternalizer<Byte, Byte>, ValueExternalizer<Byte> {
 
 		static final ByteExternalizer INSTANCE = new ByteExternalizer();
 
 		@Override
-		final public void writeExternal(final Byte object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeByte(object);
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Byte object, final ObjectOutput out) throws IOException {
+			out.writeByte(object);
 		}
 
 		@Override
-		final public Byte readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? in.readByte() : null;
+		final public Byte readValue(final ObjectInput in) throws IOException {
+			return in.readByte();
 		}
 	}
 
-	final class CharExternalizer implements LangExternalizer<Character, Character> {
+	final class CharExternalizer implements LangExternalizer<Character, Character>, ValueExternalizer<Character> {
 
 		static final CharExternalizer INSTANCE = new CharExternalizer();
 
 		@Override
-		final public void writeExternal(final Character object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeChar(object);
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Character object, final ObjectOutput out) throws IOException {
+			out.writeChar(object);
 		}
 
 		@Override
-		final public Character readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? in.readChar() : null;
+		final public Character readValue(final ObjectInput in) throws IOException {
+			return in.readChar();
 		}
 	}
 
-	final class BooleanExternalizer implements LangExternalizer<Boolean, Boolean> {
+	final class BooleanExternalizer implements LangExternalizer<Boolean, Boolean>, ValueExternalizer<Boolean> {
 
 		static final BooleanExternalizer INSTANCE = new BooleanExternalizer();
 
 		@Override
-		final public void writeExternal(final Boolean object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeBoolean(object);
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Boolean object, final ObjectOutput out) throws IOException {
+			out.writeBoolean(object);
 		}
 
 		@Override
-		final public Boolean readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? in.readBoolean() : null;
+		final public Boolean readValue(final ObjectInput in) throws IOException {
+			return in.readBoolean();
 		}
 	}
 
+	/**
+	 * The constants are written as their name (NAME). With the ordinals (see
+	 * {@link Externalizor#setEnumOrdinals(boolean)}) the constants are written as their ordinal: the first time a
+	 * constant is written in a stream, its name is written with its ordinal, the reader maps the ordinals of the
+	 * writer to its own constants by name, the reordered constants are read correctly.
+	 * <p>
+	 * Both forms are read whatever the setting.
+	 */
 	final class EnumExternalizer implements LangExternalizer<Enum<?>, Enum<?>> {
 
 		private final static ConcurrentHashMap<Class<? extends Enum<?>>, EnumExternalizer> externalizers =
@@ -274,24 +350,73 @@ interface LangExternalizer<T, V> extends Externalizer<T, V> {
 			return externalizers.computeIfAbsent(enumType, EnumExternalizer::new);
 		}
 
+		final static int NULL = 0;
+		final static int NAME = 1;
+		final static int NAMED_ORDINAL = 2;
+		final static int ORDINAL = 3;
+
 		private final Class<? extends Enum> enumType;
+		private final Enum<?>[] constants;
 
 		private EnumExternalizer(final Class<? extends Enum<?>> enumType) {
 			this.enumType = enumType;
+			this.constants = enumType.getEnumConstants();
 		}
 
 		@Override
 		final public void writeExternal(final Enum<?> object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeUTF(object.name());
-			} else
-				out.writeBoolean(false);
+			if (object == null) {
+				out.writeByte(NULL);
+				return;
+			}
+			if (out instanceof BytesOutput) {
+				final BytesOutput bytesOutput = (BytesOutput) out;
+				final int ordinal = object.ordinal();
+				final boolean[] named = bytesOutput.enumNames(enumType, constants.length);
+				if (named != null) {
+					if (named[ordinal]) {
+						bytesOutput.writeVarInt(ORDINAL + ordinal);
+						return;
+					}
+					named[ordinal] = true;
+					bytesOutput.writeByte(NAMED_ORDINAL);
+					bytesOutput.writeVarInt(ordinal);
+					bytesOutput.writeUtf8(object.name());
+					return;
+				}
+			}
+			out.writeByte(NAME);
+			out.writeUTF(object.name());
 		}
 
 		@Override
 		final public Enum<?> readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? Enum.valueOf(enumType, in.readUTF()) : null;
+			final int tag = in instanceof BytesInput ? ((BytesInput) in).readVarInt() : in.readUnsignedByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case NAME:
+				return Enum.valueOf(enumType, in.readUTF());
+			case NAMED_ORDINAL: {
+				final BytesInput bytesInput = BytesInput.of(in);
+				final int ordinal = bytesInput.readVarInt();
+				if (ordinal < 0)
+					throw new StreamCorruptedException("Negative ordinal: " + ordinal);
+				final String name = bytesInput.readUtf8();
+				final Enum<?> constant = ordinal < constants.length && constants[ordinal].name().equals(name) ?
+						constants[ordinal] :
+						Enum.valueOf(enumType, name);
+				bytesInput.enumConstants(enumType, ordinal + 1)[ordinal] = constant;
+				return constant;
+			}
+			default: {
+				final int ordinal = tag - ORDINAL;
+				final Enum<?>[] table = BytesInput.of(in).enumConstants(enumType, 0);
+				if (ordinal < 0 || ordinal >= table.length || table[ordinal] == null)
+					throw new StreamCorruptedException("Unknown ordinal of " + enumType.getName() + ": " + ordinal);
+				return table[ordinal];
+			}
+			}
 		}
 	}
 
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A thread-local pool of reusable instances.
+ * Each thread keeps at most {@link #MAX_SIZE} idle instances, and the buffers larger than
+ * {@link #MAX_BUFFER_SIZE} bytes are not kept.
+ * <p>
+ * The limits can be changed with the system properties:
+ * com.qwazr.externalizor.pool.size and com.qwazr.externalizor.pool.bufferSize
+ *
+ * @param <T>
+ */
+abstract class Pool<T> {
+
+	final static int MAX_SIZE = Integer.getInteger("com.qwazr.externalizor.pool.size", 2);
+
+	final static int MAX_BUFFER_SIZE = Integer.getInteger("com.qwazr.externalizor.pool.bufferSize", 1024 * 1024);
+
+	final static OutputPool OUTPUTS = new OutputPool();
+
+	final static BufferPool BUFFERS = new BufferPool();
+
+	final static DeflaterPool DEFLATERS = new DeflaterPool("deflater", true);
+
+	final static InflaterPool INFLATERS = new InflaterPool("inflater", true);
+
+	final static DeflaterPool ZLIB_DEFLATERS = new DeflaterPool("zlib deflater", false);
+
+	final static InflaterPool ZLIB_INFLATERS = new InflaterPool("zlib inflater", false);
+
+	private final String name;
+	private final ThreadLocal<ArrayDeque<T>> idle;
+
+	private final LongAdder created;
+	private final LongAdder reused;
+	private final LongAdder discarded;
+
+	private Pool(final String name) {
+		this.name = name;
+		this.idle = ThreadLocal.withInitial(() -> new ArrayDeque<>(MAX_SIZE));
+		this.created = new LongAdder();
+		this.reused = new LongAdder();
+		this.discarded = new LongAdder();
+	}
+
+	protected abstract T create(final int size);
+
+	/**
+	 * @return true if the instance can be used for the requested size
+	 */
+	protected boolean fits(final T item, final int size) {
+		return true;
+	}
+
+	/**
+	 * Prepare the instance for the next use
+	 *
+	 * @return false if the instance should not be kept
+	 */
+	protected abstract boolean recycle(final T item);
+
+	protected void dispose(final T item) {
+	}
+
+	/**
+	 * @param size the minimal size required
+	 * @return an idle instance of the current thread, or a new one
+	 */
+	final T acquire(final int size) {
+		final T item = idle.get().pollLast();
+		if (item != null) {
+			if (fits(item, size)) {
+				reused.increment();
+				return item;
+			}
+			discard(item);
+		}
+		created.increment();
+		return create(size);
+	}
+
+	/**
+	 * Give back an instance which must not be used anymore by the caller
+	 */
+	final void release(final T item) {
+		if (item == null)
+			return;
+		final ArrayDeque<T> items = idle.get();
+		if (items.size() >= MAX_SIZE || !recycle(item)) {
+			discard(item);
+			return;
+		}
+		items.addLast(item);
+	}
+
+	private void discard(final T item) {
+		discarded.increment();
+		dispose(item);
+	}
+
+	final PoolStats getStats() {
+		return new PoolStats(name, created.sum(), reused.sum(), discarded.sum());
+	}
+
+	static List<PoolStats> getAllStats() {
+		return Arrays.asList(OUTPUTS.getStats(), BUFFERS.getStats(), DEFLATERS.getStats(), INFLATERS.getStats(),
+				ZLIB_DEFLATERS.getStats(), ZLIB_INFLATERS.getStats());
+	}
+
+	/**
+	 * The growable buffers used to write or read a whole object
+	 */
+	final static class OutputPool extends Pool<BytesOutput> {
+
+		private OutputPool() {
+			super("output");
+		}
+
+		@Override
+		protected BytesOutput create(final int size) {
+			return size > 0 ? new BytesOutput(size) : new BytesOutput();
+		}
+
+		@Override
+		protected boolean recycle(final BytesOutput output) {
+			if (output.buffer().length > MAX_BUFFER_SIZE)
+				return false;
+			output.reset();
+			return true;
+		}
+	}
+
+	/**
+	 * The scratch byte arrays
+	 */
+	final static class BufferPool extends Pool<byte[]> {
+
+		private final static int MIN_SIZE = 8192;
+
+		private BufferPool() {
+			super("buffer");
+		}
+
+		@Override
+		protected byte[] create(final int size) {
+			return new byte[Math.max(size, MIN_SIZE)];
+		}
+
+		@Override
+		protected boolean fits(final byte[] buffer, final int size) {
+			return buffer.length >= size;
+		}
+
+		@Override
+		protected boolean recycle(final byte[] buffer) {
+			return buffer.length <= MAX_BUFFER_SIZE;
+		}
+	}
+
+	/**
+	 * Raw deflate (the GZIP framing is written by {@link Gzip}) or zlib format
+	 */
+	final static class DeflaterPool extends Pool<Deflater> {
+
+		private final boolean nowrap;
+
+		private DeflaterPool(final String name, final boolean nowrap) {
+			super(name);
+			this.nowrap = nowrap;
+		}
+
+		@Override
+		protected Deflater create(final int size) {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+		}
+
+		@Override
+		protected boolean recycle(final Deflater deflater) {
+			deflater.reset();
+			return true;
+		}
+
+		@Override
+		protected void dispose(final Deflater deflater) {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Raw inflate (the GZIP framing is read by {@link Gzip}) or zlib format
+	 */
+	final static class InflaterPool extends Pool<Inflater> {
+
+		private final boolean nowrap;
+
+		private InflaterPool(final String name, final boolean nowrap) {
+			super(name);
+			this.nowrap = nowrap;
+		}
+
+		@Override
+		protected Inflater create(final int size) {
+			return new Inflater(nowrap);
+		}
+
+		@Override
+		protected boolean recycle(final Inflater inflater) {
+			inflater.reset();
+			return true;
+		}
+
+		@Override
+		protected void dispose(final Inflater inflater) {
+			inflater.end();
+		}
+	}
+}
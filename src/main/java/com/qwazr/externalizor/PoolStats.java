@@ -0,0 +1,68 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+/**
+ * A snapshot of the statistics of one of the pools used by the serialization.
+ * The counters are cumulated over every thread since the start of the JVM.
+ */
+public final class PoolStats {
+
+	private final String name;
+	private final long created;
+	private final long reused;
+	private final long discarded;
+
+	PoolStats(final String name, final long created, final long reused, final long discarded) {
+		this.name = name;
+		this.created = created;
+		this.reused = reused;
+		this.discarded = discarded;
+	}
+
+	/**
+	 * @return the name of the pool
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of instances created because the pool was empty or its instance was too small
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return the number of instances taken from the pool
+	 */
+	public long getReused() {
+		return reused;
+	}
+
+	/**
+	 * @return the number of instances released but not kept because the pool was full or the instance too large
+	 */
+	public long getDiscarded() {
+		return discarded;
+	}
+
+	@Override
+	public String toString() {
+		return name + " - created: " + created + " - reused: " + reused + " - discarded: " + discarded;
+	}
+}
@@ -18,35 +18,75 @@ package com.qwazr.externalizor;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 interface PrimitiveExternalizer<T, V> extends Externalizer<T, V> {
 
-	static <T, V> PrimitiveExternalizer<T, V> primitive(final Field field, final Class<T> clazz) {
+	static <T, V> PrimitiveExternalizer<T, V> primitive(final FieldAccessor accessor, final Class<T> clazz) {
 		if (Integer.TYPE.equals(clazz))
-			return (PrimitiveExternalizer<T, V>) new FieldIntegerExternalizer(field);
+			return (PrimitiveExternalizer<T, V>) new FieldIntegerExternalizer(accessor);
 		if (Short.TYPE.equals(clazz))
-			return (PrimitiveExternalizer<T, V>) new FieldShortExternalizer(field);
+			return (PrimitiveExternalizer<T, V>) new FieldShortExternalizer(accessor);
 		if (Long.TYPE.equals(clazz))
-			return (PrimitiveExternalizer<T, V>) new FieldLongExternalizer(field);
+			return (PrimitiveExternalizer<T, V>) new FieldLongExternalizer(accessor);
 		if (Float.TYPE.equals(clazz))
-			return (PrimitiveExternalizer<T, V>) new FieldFloatExternalizer(field);
+			return (PrimitiveExternalizer<T, V>) new FieldFloatExternalizer(accessor);
 		if (Double.TYPE.equals(clazz))
-			return (PrimitiveExternalizer<T, V>) new FieldDoubleExternalizer(field);
+			return (PrimitiveExternalizer<T, V>) new FieldDoubleExternalizer(accessor);
 		if (Boolean.TYPE.equals(clazz))
-			return (PrimitiveExternalizer<T, V>) new FieldBooleanExternalizer(field);
+			return (PrimitiveExternalizer<T, V>) new FieldBooleanExternalizer(accessor);
 		if (Byte.TYPE.equals(clazz))
-			return (PrimitiveExternalizer<T, V>) new FieldByteExternalizer(field);
+			return (PrimitiveExternalizer<T, V>) new FieldByteExternalizer(accessor);
 		if (Character.TYPE.equals(clazz))
-			return (PrimitiveExternalizer<T, V>) new FieldCharExternalizer(field);
+			return (PrimitiveExternalizer<T, V>) new FieldCharExternalizer(accessor);
 		return null;
 	}
 
+	/**
+	 * @return the externalizer of a field annotated with {@link VarInt}
+	 * @throws ExternalizorException if the field is not an int or a long
+	 */
+	static <T, V> PrimitiveExternalizer<T, V> varInt(final FieldAccessor accessor, final Class<T> clazz) {
+		if (Integer.TYPE.equals(clazz))
+			return (PrimitiveExternalizer<T, V>) new FieldVarIntegerExternalizer(accessor);
+		if (Long.TYPE.equals(clazz))
+			return (PrimitiveExternalizer<T, V>) new FieldVarLongExternalizer(accessor);
+		throw new ExternalizorException("The VarInt annotation only applies to int and long fields: " + accessor);
+	}
+
+	/**
+	 * Group the fixed length primitive fields in one block, written before the other fields. The block changes the
+	 * order of the fields, it is only used by the bytes format: the other object streams keep the declaration order.
+	 *
+	 * @param externalizers the externalizers of the fields of a class, in declaration order
+	 * @return the externalizers starting with the block, or the given externalizers if there are less than two
+	 * primitive fields
+	 */
+	static Collection<Externalizer> block(final Collection<Externalizer> externalizers) {
+		final List<FieldAccessor> primitives = new ArrayList<>();
+		final List<Externalizer> others = new ArrayList<>();
+		others.add(null);
+		for (final Externalizer externalizer : externalizers) {
+			if (externalizer instanceof FieldPrimitiveExternalizer &&
+					!(externalizer instanceof FieldVarIntegerExternalizer) &&
+					!(externalizer instanceof FieldVarLongExternalizer))
+				primitives.add(((FieldPrimitiveExternalizer) externalizer).accessor);
+			else
+				others.add(externalizer);
+		}
+		if (primitives.size() < 2)
+			return externalizers;
+		others.set(0, new PrimitiveBlockExternalizer<>(primitives));
+		return others;
+	}
+
 	abstract class FieldPrimitiveExternalizer<T, V> extends FieldExternalizer<T, V>
 			implements PrimitiveExternalizer<T, V> {
 
-		protected FieldPrimitiveExternalizer(final Field field) {
-			super(field);
+		protected FieldPrimitiveExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
@@ -57,162 +97,530 @@ interface PrimitiveExternalizer<T, V> extends Externalizer<T, V> {
 
 	final class FieldIntegerExternalizer<T> extends FieldPrimitiveExternalizer<T, Integer> {
 
-		private FieldIntegerExternalizer(final Field field) {
-			super(field);
+		private FieldIntegerExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeInt(field.getInt(object));
+			writeField(accessor.getInt(object), out);
 		}
 
 		@Override
 		final public void readExternal(final T object, final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			field.setInt(object, in.readInt());
+			accessor.setInt(object, readField(in));
 		}
 
+		final void writeField(final int value, final ObjectOutput out) throws IOException {
+			VarInts.writeInt(out, value);
+		}
+
+		final int readField(final ObjectInput in) throws IOException {
+			return VarInts.readInt(in);
+		}
 	}
 
 	final class FieldLongExternalizer<T> extends FieldPrimitiveExternalizer<T, Long> {
 
-		private FieldLongExternalizer(final Field field) {
-			super(field);
+		private FieldLongExternalizer(final FieldAccessor accessor) {
+			super(accessor);
+		}
+
+		@Override
+		final public void writeExternal(final T object, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			writeField(accessor.getLong(object), out);
+		}
+
+		@Override
+		final public void readExternal(final T object, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			accessor.setLong(object, readField(in));
+		}
+
+		final void writeField(final long value, final ObjectOutput out) throws IOException {
+			VarInts.writeLong(out, value);
+		}
+
+		final long readField(final ObjectInput in) throws IOException {
+			return VarInts.readLong(in);
+		}
+	}
+
+	final class FieldVarIntegerExternalizer<T> extends FieldPrimitiveExternalizer<T, Integer> {
+
+		private FieldVarIntegerExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeLong(field.getLong(object));
+			writeField(accessor.getInt(object), out);
 		}
 
 		@Override
 		final public void readExternal(final T object, final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			field.setLong(object, in.readLong());
+			accessor.setInt(object, readField(in));
 		}
 
+		final void writeField(final int value, final ObjectOutput out) throws IOException {
+			VarInts.writeZigZag(out, value);
+		}
+
+		final int readField(final ObjectInput in) throws IOException {
+			return VarInts.readZigZagInt(in);
+		}
+	}
+
+	final class FieldVarLongExternalizer<T> extends FieldPrimitiveExternalizer<T, Long> {
+
+		private FieldVarLongExternalizer(final FieldAccessor accessor) {
+			super(accessor);
+		}
+
+		@Override
+		final public void writeExternal(final T object, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			writeField(accessor.getLong(object), out);
+		}
+
+		@Override
+		final public void readExternal(final T object, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			accessor.setLong(object, readField(in));
+		}
+
+		final void writeField(final long value, final ObjectOutput out) throws IOException {
+			VarInts.writeZigZag(out, value);
+		}
+
+		final long readField(final ObjectInput in) throws IOException {
+			return VarInts.readZigZagLong(in);
+		}
 	}
 
 	final class FieldShortExternalizer<T> extends FieldPrimitiveExternalizer<T, Short> {
 
-		private FieldShortExternalizer(final Field field) {
-			super(field);
+		private FieldShortExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeShort(field.getShort(object));
+			writeField(accessor.getShort(object), out);
 		}
 
 		@Override
 		final public void readExternal(final T object, final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			field.setShort(object, in.readShort());
+			accessor.setShort(object, readField(in));
+		}
+
+		final void writeField(final short value, final ObjectOutput out) throws IOException {
+			out.writeShort(value);
+		}
+
+		final short readField(final ObjectInput in) throws IOException {
+			return in.readShort();
 		}
 
 	}
 
 	final class FieldFloatExternalizer<T> extends FieldPrimitiveExternalizer<T, Float> {
 
-		private FieldFloatExternalizer(final Field field) {
-			super(field);
+		private FieldFloatExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeFloat(field.getFloat(object));
+			writeField(accessor.getFloat(object), out);
 		}
 
 		@Override
 		final public void readExternal(final T object, final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			field.setFloat(object, in.readFloat());
+			accessor.setFloat(object, readField(in));
+		}
+
+		final void writeField(final float value, final ObjectOutput out) throws IOException {
+			out.writeFloat(value);
+		}
+
+		final float readField(final ObjectInput in) throws IOException {
+			return in.readFloat();
 		}
 
 	}
 
 	final class FieldDoubleExternalizer<T> extends FieldPrimitiveExternalizer<T, Double> {
 
-		private FieldDoubleExternalizer(final Field field) {
-			super(field);
+		private FieldDoubleExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeDouble(field.getDouble(object));
+			writeField(accessor.getDouble(object), out);
 		}
 
 		@Override
 		final public void readExternal(final T object, final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			field.setDouble(object, in.readDouble());
+			accessor.setDouble(object, readField(in));
+		}
+
+		final void writeField(final double value, final ObjectOutput out) throws IOException {
+			out.writeDouble(value);
+		}
+
+		final double readField(final ObjectInput in) throws IOException {
+			return in.readDouble();
 		}
 
 	}
 
 	final class FieldByteExternalizer<T> extends FieldPrimitiveExternalizer<T, Byte> {
 
-		private FieldByteExternalizer(final Field field) {
-			super(field);
+		private FieldByteExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeByte(field.getByte(object));
+			writeField(accessor.getByte(object), out);
 		}
 
 		@Override
 		final public void readExternal(final T object, final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			field.setByte(object, in.readByte());
+			accessor.setByte(object, readField(in));
+		}
+
+		final void writeField(final byte value, final ObjectOutput out) throws IOException {
+			out.writeByte(value);
+		}
+
+		final byte readField(final ObjectInput in) throws IOException {
+			return in.readByte();
 		}
 
 	}
 
 	final class FieldCharExternalizer<T> extends FieldPrimitiveExternalizer<T, Character> {
 
-		private FieldCharExternalizer(final Field field) {
-			super(field);
+		private FieldCharExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeChar(field.getChar(object));
+			writeField(accessor.getChar(object), out);
 		}
 
 		@Override
 		final public void readExternal(final T object, final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			field.setChar(object, in.readChar());
+			accessor.setChar(object, readField(in));
+		}
+
+		final void writeField(final char value, final ObjectOutput out) throws IOException {
+			out.writeChar(value);
+		}
+
+		final char readField(final ObjectInput in) throws IOException {
+			return in.readChar();
 		}
 
 	}
 
 	final class FieldBooleanExternalizer<T> extends FieldPrimitiveExternalizer<T, Boolean> {
 
-		private FieldBooleanExternalizer(final Field field) {
-			super(field);
+		private FieldBooleanExternalizer(final FieldAccessor accessor) {
+			super(accessor);
 		}
 
 		@Override
 		final public void writeExternal(final T object, final ObjectOutput out)
 				throws IOException, ReflectiveOperationException {
-			out.writeBoolean(field.getBoolean(object));
+			writeField(accessor.getBoolean(object), out);
 		}
 
 		@Override
 		final public void readExternal(final T object, final ObjectInput in)
 				throws IOException, ReflectiveOperationException {
-			field.setBoolean(object, in.readBoolean());
+			accessor.setBoolean(object, readField(in));
+		}
+
+		final void writeField(final boolean value, final ObjectOutput out) throws IOException {
+			out.writeBoolean(value);
+		}
+
+		final boolean readField(final ObjectInput in) throws IOException {
+			return in.readBoolean();
 		}
 
 	}
 
+	/**
+	 * The primitive fields of a class, written as one block of fixed size. The block is filled in one pass straight
+	 * into the buffer of a {@link BytesOutput}. Only written to a {@link BytesOutput}, read from a {@link BytesInput}.
+	 * <p>
+	 * The bytes are the same than writing the fields one after the other. With the variable length encoding
+	 * (see {@link Externalizor#setVarInts(boolean)}) the block has no fixed size, the fields are written one by one.
+	 *
+	 * @param <T>
+	 */
+	final class PrimitiveBlockExternalizer<T> implements PrimitiveExternalizer<T, T> {
+
+		final static byte INT = 0;
+		final static byte LONG = 1;
+		final static byte SHORT = 2;
+		final static byte FLOAT = 3;
+		final static byte DOUBLE = 4;
+		final static byte BOOLEAN = 5;
+		final static byte BYTE = 6;
+		final static byte CHAR = 7;
+
+		final static int[] SIZES = { 4, 8, 2, 4, 8, 1, 1, 2 };
+
+		final FieldAccessor[] accessors;
+		final byte[] types;
+		final int size;
+
+		private PrimitiveBlockExternalizer(final List<FieldAccessor> accessors) {
+			this.accessors = accessors.toArray(new FieldAccessor[accessors.size()]);
+			types = new byte[this.accessors.length];
+			int s = 0;
+			for (int i = 0; i < types.length; i++) {
+				types[i] = type(this.accessors[i].type);
+				s += SIZES[types[i]];
+			}
+			size = s;
+		}
+
+		private static byte type(final Class<?> clazz) {
+			if (Integer.TYPE.equals(clazz))
+				return INT;
+			if (Long.TYPE.equals(clazz))
+				return LONG;
+			if (Short.TYPE.equals(clazz))
+				return SHORT;
+			if (Float.TYPE.equals(clazz))
+				return FLOAT;
+			if (Double.TYPE.equals(clazz))
+				return DOUBLE;
+			if (Boolean.TYPE.equals(clazz))
+				return BOOLEAN;
+			if (Byte.TYPE.equals(clazz))
+				return BYTE;
+			if (Character.TYPE.equals(clazz))
+				return CHAR;
+			throw new ExternalizorException("Not a primitive type: " + clazz);
+		}
+
+		@Override
+		final public void writeExternal(final T object, final ObjectOutput out)
+				throws IOException, ReflectiveOperationException {
+			final BytesOutput bytes = (BytesOutput) out;
+			if (!bytes.isVarInts()) {
+				final int position = bytes.reserve(size);
+				put(object, bytes.buffer(), position);
+				return;
+			}
+			for (int i = 0; i < types.length; i++) {
+				final FieldAccessor accessor = accessors[i];
+				switch (types[i]) {
+				case INT:
+					bytes.writeCompactInt(accessor.getInt(object));
+					break;
+				case LONG:
+					bytes.writeCompactLong(accessor.getLong(object));
+					break;
+				case SHORT:
+					bytes.writeShort(accessor.getShort(object));
+					break;
+				case FLOAT:
+					bytes.writeFloat(accessor.getFloat(object));
+					break;
+				case DOUBLE:
+					bytes.writeDouble(accessor.getDouble(object));
+					break;
+				case BOOLEAN:
+					bytes.writeBoolean(accessor.getBoolean(object));
+					break;
+				case BYTE:
+					bytes.writeByte(accessor.getByte(object));
+					break;
+				case CHAR:
+					bytes.writeChar(accessor.getChar(object));
+					break;
+				}
+			}
+		}
+
+		@Override
+		final public void readExternal(final T object, final ObjectInput in)
+				throws IOException, ReflectiveOperationException {
+			final BytesInput bytes = (BytesInput) in;
+			if (!bytes.isVarInts()) {
+				final int position = bytes.consume(size);
+				get(object, bytes.buffer(), position);
+				return;
+			}
+			for (int i = 0; i < types.length; i++) {
+				final FieldAccessor accessor = accessors[i];
+				switch (types[i]) {
+				case INT:
+					accessor.setInt(object, bytes.readCompactInt());
+					break;
+				case LONG:
+					accessor.setLong(object, bytes.readCompactLong());
+					break;
+				case SHORT:
+					accessor.setShort(object, bytes.readShort());
+					break;
+				case FLOAT:
+					accessor.setFloat(object, bytes.readFloat());
+					break;
+				case DOUBLE:
+					accessor.setDouble(object, bytes.readDouble());
+					break;
+				case BOOLEAN:
+					accessor.setBoolean(object, bytes.readBoolean());
+					break;
+				case BYTE:
+					accessor.setByte(object, bytes.readByte());
+					break;
+				case CHAR:
+					accessor.setChar(object, bytes.readChar());
+					break;
+				}
+			}
+		}
+
+		@Override
+		final public T readObject(final ObjectInput in) {
+			throw new ExternalizorException("Not available for primitive types");
+		}
+
+		private void put(final T object, final byte[] b, int p) throws ReflectiveOperationException {
+			for (int i = 0; i < types.length; i++) {
+				final FieldAccessor accessor = accessors[i];
+				switch (types[i]) {
+				case INT:
+					p = putInt(b, p, accessor.getInt(object));
+					break;
+				case LONG:
+					p = putLong(b, p, accessor.getLong(object));
+					break;
+				case SHORT:
+					p = putShort(b, p, accessor.getShort(object));
+					break;
+				case FLOAT:
+					p = putInt(b, p, Float.floatToIntBits(accessor.getFloat(object)));
+					break;
+				case DOUBLE:
+					p = putLong(b, p, Double.doubleToLongBits(accessor.getDouble(object)));
+					break;
+				case BOOLEAN:
+					p = putByte(b, p, accessor.getBoolean(object) ? 1 : 0);
+					break;
+				case BYTE:
+					p = putByte(b, p, accessor.getByte(object));
+					break;
+				case CHAR:
+					p = putShort(b, p, accessor.getChar(object));
+					break;
+				}
+			}
+		}
+
+		private void get(final T object, final byte[] b, int p) throws ReflectiveOperationException {
+			for (int i = 0; i < types.length; i++) {
+				final FieldAccessor accessor = accessors[i];
+				switch (types[i]) {
+				case INT:
+					accessor.setInt(object, getInt(b, p));
+					p += 4;
+					break;
+				case LONG:
+					accessor.setLong(object, getLong(b, p));
+					p += 8;
+					break;
+				case SHORT:
+					accessor.setShort(object, (short) getShort(b, p));
+					p += 2;
+					break;
+				case FLOAT:
+					accessor.setFloat(object, Float.intBitsToFloat(getInt(b, p)));
+					p += 4;
+					break;
+				case DOUBLE:
+					accessor.setDouble(object, Double.longBitsToDouble(getLong(b, p)));
+					p += 8;
+					break;
+				case BOOLEAN:
+					accessor.setBoolean(object, getBoolean(b, p++));
+					break;
+				case BYTE:
+					accessor.setByte(object, b[p++]);
+					break;
+				case CHAR:
+					accessor.setChar(object, (char) getShort(b, p));
+					p += 2;
+					break;
+				}
+			}
+		}
+
+		static int putByte(final byte[] b, final int p, final int v) {
+			b[p] = (byte) v;
+			return p + 1;
+		}
+
+		static int putShort(final byte[] b, final int p, final int v) {
+			b[p] = (byte) (v >>> 8);
+			b[p + 1] = (byte) v;
+			return p + 2;
+		}
+
+		static int putInt(final byte[] b, final int p, final int v) {
+			b[p] = (byte) (v >>> 24);
+			b[p + 1] = (byte) (v >>> 16);
+			b[p + 2] = (byte) (v >>> 8);
+			b[p + 3] = (byte) v;
+			return p + 4;
+		}
+
+		static int putLong(final byte[] b, final int p, final long v) {
+			putInt(b, p, (int) (v >>> 32));
+			return putInt(b, p + 4, (int) v);
+		}
+
+		static boolean getBoolean(final byte[] b, final int p) {
+			return b[p] != 0;
+		}
+
+		static int getShort(final byte[] b, final int p) {
+			return ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+		}
+
+		static int getInt(final byte[] b, final int p) {
+			return ((b[p] & 0xFF) << 24) | ((b[p + 1] & 0xFF) << 16) | ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+		}
+
+		static long getLong(final byte[] b, final int p) {
+			return ((long) getInt(b, p) << 32) | (getInt(b, p + 4) & 0xFFFFFFFFL);
+		}
+	}
 }
@@ -18,7 +18,6 @@ package com.qwazr.externalizor;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.lang.reflect.Field;
 import java.time.*;
 import java.time.temporal.ChronoField;
 import java.util.Calendar;
@@ -57,35 +56,37 @@ interface TimeExternalizer<T, V> extends Externalizer<T, V> {
 		return null;
 	}
 
-	static <T, V> Externalizer<T, V> time(final Field field, final Class<? extends T> clazz) {
+	static <T, V> Externalizer<T, V> time(final FieldAccessor accessor, final Class<? extends T> clazz) {
 		if (Calendar.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer<>(field,
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer<>(accessor,
 					CalendarExternalizer.INSTANCE);
 		if (Date.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field, DateExternalizer.INSTANCE);
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
+					DateExternalizer.INSTANCE);
 		if (Duration.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					DurationExternalizer.INSTANCE);
 		if (Instant.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					InstantExternalizer.INSTANCE);
 		if (LocalDate.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					LocalDateExternalizer.INSTANCE);
 		if (LocalDateTime.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					LocalDateTimeExternalizer.INSTANCE);
 		if (LocalTime.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					LocalTimeExternalizer.INSTANCE);
 		if (MonthDay.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					MonthDayExternalizer.INSTANCE);
 		if (Period.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field,
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
 					PeriodExternalizer.INSTANCE);
 		if (Year.class.isAssignableFrom(clazz))
-			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(field, YearExternalizer.INSTANCE);
+			return (Externalizer<T, V>) new FieldExternalizer.FieldParentExternalizer(accessor,
+					YearExternalizer.INSTANCE);
 		// Can't handle this class, we return null
 		return null;
 	}
@@ -95,205 +96,163 @@ interface TimeExternalizer<T, V> extends Externalizer<T, V> {
 		throw new ExternalizorException("Not available");
 	}
 
-	final class DateExternalizer implements TimeExternalizer<Date, Date> {
+	final class DateExternalizer implements TimeExternalizer<Date, Date>, ValueExternalizer<Date> {
 
 		final static DateExternalizer INSTANCE = new DateExternalizer();
 
 		@Override
-		final public void writeExternal(final Date object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeLong(object.getTime());
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Date object, final ObjectOutput out) throws IOException {
+			VarInts.writeLong(out, object.getTime());
 		}
 
 		@Override
-		final public Date readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? new Date(in.readLong()) : null;
+		final public Date readValue(final ObjectInput in) throws IOException {
+			return new Date(VarInts.readLong(in));
 		}
 	}
 
-	final class CalendarExternalizer implements TimeExternalizer<Calendar, Calendar> {
+	final class CalendarExternalizer implements TimeExternalizer<Calendar, Calendar>, ValueExternalizer<Calendar> {
 
 		final static CalendarExternalizer INSTANCE = new CalendarExternalizer();
 
 		@Override
-		final public void writeExternal(final Calendar object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeLong(object.getTimeInMillis());
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Calendar object, final ObjectOutput out) throws IOException {
+			VarInts.writeLong(out, object.getTimeInMillis());
 		}
 
 		@Override
-		final public Calendar readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			if (!in.readBoolean())
-				return null;
+		final public Calendar readValue(final ObjectInput in) throws IOException {
 			final Calendar cal = Calendar.getInstance();
-			cal.setTimeInMillis(in.readLong());
+			cal.setTimeInMillis(VarInts.readLong(in));
 			return cal;
 		}
 	}
 
-	final class DurationExternalizer implements TimeExternalizer<Duration, Duration> {
+	final class DurationExternalizer implements TimeExternalizer<Duration, Duration>, ValueExternalizer<Duration> {
 
 		final static DurationExternalizer INSTANCE = new DurationExternalizer();
 
 		@Override
-		final public void writeExternal(final Duration object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeLong(object.getSeconds());
-				out.writeInt(object.getNano());
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Duration object, final ObjectOutput out) throws IOException {
+			VarInts.writeLong(out, object.getSeconds());
+			VarInts.writeInt(out, object.getNano());
 		}
 
 		@Override
-		final public Duration readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? Duration.ofSeconds(in.readLong(), in.readInt()) : null;
+		final public Duration readValue(final ObjectInput in) throws IOException {
+			return Duration.ofSeconds(VarInts.readLong(in), VarInts.readInt(in));
 		}
 	}
 
-	final class InstantExternalizer implements TimeExternalizer<Instant, Instant> {
+	final class InstantExternalizer implements TimeExternalizer<Instant, Instant>, ValueExternalizer<Instant> {
 
 		final static InstantExternalizer INSTANCE = new InstantExternalizer();
 
 		@Override
-		final public void writeExternal(final Instant object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeLong(object.getEpochSecond());
-				out.writeInt(object.getNano());
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Instant object, final ObjectOutput out) throws IOException {
+			VarInts.writeLong(out, object.getEpochSecond());
+			VarInts.writeInt(out, object.getNano());
 		}
 
 		@Override
-		final public Instant readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? Instant.ofEpochSecond(in.readLong(), in.readInt()) : null;
+		final public Instant readValue(final ObjectInput in) throws IOException {
+			return Instant.ofEpochSecond(VarInts.readLong(in), VarInts.readInt(in));
 		}
 	}
 
-	final class LocalDateExternalizer implements TimeExternalizer<LocalDate, LocalDate> {
+	final class LocalDateExternalizer implements TimeExternalizer<LocalDate, LocalDate>, ValueExternalizer<LocalDate> {
 
 		final static LocalDateExternalizer INSTANCE = new LocalDateExternalizer();
 
 		@Override
-		final public void writeExternal(final LocalDate object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeLong(object.getLong(ChronoField.EPOCH_DAY));
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final LocalDate object, final ObjectOutput out) throws IOException {
+			VarInts.writeLong(out, object.getLong(ChronoField.EPOCH_DAY));
 		}
 
 		@Override
-		final public LocalDate readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? LocalDate.ofEpochDay(in.readLong()) : null;
+		final public LocalDate readValue(final ObjectInput in) throws IOException {
+			return LocalDate.ofEpochDay(VarInts.readLong(in));
 		}
 	}
 
-	final class LocalDateTimeExternalizer implements TimeExternalizer<LocalDateTime, LocalDateTime> {
+	final class LocalDateTimeExternalizer implements TimeExternalizer<LocalDateTime, LocalDateTime>,
+			ValueExternalizer<LocalDateTime> {
 
 		final static LocalDateTimeExternalizer INSTANCE = new LocalDateTimeExternalizer();
 
 		@Override
-		final public void writeExternal(final LocalDateTime object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeLong(object.toLocalDate().getLong(ChronoField.EPOCH_DAY));
-				out.writeLong(object.toLocalTime().toNanoOfDay());
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final LocalDateTime object, final ObjectOutput out) throws IOException {
+			VarInts.writeLong(out, object.toLocalDate().getLong(ChronoField.EPOCH_DAY));
+			VarInts.writeLong(out, object.toLocalTime().toNanoOfDay());
 		}
 
 		@Override
-		final public LocalDateTime readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ?
-					LocalDateTime.of(LocalDate.ofEpochDay(in.readLong()), LocalTime.ofNanoOfDay(in.readLong())) :
-					null;
+		final public LocalDateTime readValue(final ObjectInput in) throws IOException {
+			return LocalDateTime.of(LocalDate.ofEpochDay(VarInts.readLong(in)),
+					LocalTime.ofNanoOfDay(VarInts.readLong(in)));
 		}
 	}
 
-	final class LocalTimeExternalizer implements TimeExternalizer<LocalTime, LocalTime> {
+	final class LocalTimeExternalizer implements TimeExternalizer<LocalTime, LocalTime>, ValueExternalizer<LocalTime> {
 
 		final static LocalTimeExternalizer INSTANCE = new LocalTimeExternalizer();
 
 		@Override
-		final public void writeExternal(final LocalTime object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeLong(object.toNanoOfDay());
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final LocalTime object, final ObjectOutput out) throws IOException {
+			VarInts.writeLong(out, object.toNanoOfDay());
 		}
 
 		@Override
-		final public LocalTime readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? LocalTime.ofNanoOfDay(in.readLong()) : null;
+		final public LocalTime readValue(final ObjectInput in) throws IOException {
+			return LocalTime.ofNanoOfDay(VarInts.readLong(in));
 		}
 	}
 
-	final class MonthDayExternalizer implements TimeExternalizer<MonthDay, MonthDay> {
+	final class MonthDayExternalizer implements TimeExternalizer<MonthDay, MonthDay>, ValueExternalizer<MonthDay> {
 
 		final static MonthDayExternalizer INSTANCE = new MonthDayExternalizer();
 
 		@Override
-		final public void writeExternal(final MonthDay object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeByte(object.getMonthValue());
-				out.writeByte(object.getDayOfMonth());
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final MonthDay object, final ObjectOutput out) throws IOException {
+			out.writeByte(object.getMonthValue());
+			out.writeByte(object.getDayOfMonth());
 		}
 
 		@Override
-		final public MonthDay readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? MonthDay.of(in.readByte(), in.readByte()) : null;
+		final public MonthDay readValue(final ObjectInput in) throws IOException {
+			return MonthDay.of(in.readByte(), in.readByte());
 		}
 	}
 
-	final class PeriodExternalizer implements TimeExternalizer<Period, Period> {
+	final class PeriodExternalizer implements TimeExternalizer<Period, Period>, ValueExternalizer<Period> {
 
 		final static PeriodExternalizer INSTANCE = new PeriodExternalizer();
 
 		@Override
-		final public void writeExternal(final Period object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeInt(object.getYears());
-				out.writeInt(object.getMonths());
-				out.writeInt(object.getDays());
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Period object, final ObjectOutput out) throws IOException {
+			VarInts.writeInt(out, object.getYears());
+			VarInts.writeInt(out, object.getMonths());
+			VarInts.writeInt(out, object.getDays());
 		}
 
 		@Override
-		final public Period readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? Period.of(in.readInt(), in.readInt(), in.readInt()) : null;
+		final public Period readValue(final ObjectInput in) throws IOException {
+			return Period.of(VarInts.readInt(in), VarInts.readInt(in), VarInts.readInt(in));
 		}
 	}
 
-	final class YearExternalizer implements TimeExternalizer<Year, Year> {
+	final class YearExternalizer implements TimeExternalizer<Year, Year>, ValueExternalizer<Year> {
 
 		final static YearExternalizer INSTANCE = new YearExternalizer();
 
 		@Override
-		final public void writeExternal(final Year object, final ObjectOutput out) throws IOException {
-			if (object != null) {
-				out.writeBoolean(true);
-				out.writeInt(object.getValue());
-			} else
-				out.writeBoolean(false);
+		final public void writeValue(final Year object, final ObjectOutput out) throws IOException {
+			VarInts.writeInt(out, object.getValue());
 		}
 
 		@Override
-		final public Year readObject(final ObjectInput in) throws IOException, ClassNotFoundException {
-			return in.readBoolean() ? Year.of(in.readInt()) : null;
+		final public Year readValue(final ObjectInput in) throws IOException {
+			return Year.of(VarInts.readInt(in));
 		}
 	}
 
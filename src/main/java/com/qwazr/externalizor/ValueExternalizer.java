@@ -0,0 +1,47 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * An externalizer writing a boolean before the value, false for null.
+ * The value alone is written when the null flag is already in the null bitmap of the object.
+ *
+ * @param <V> the type of the value
+ */
+interface ValueExternalizer<V> extends Externalizer<V, V> {
+
+	void writeValue(final V value, final ObjectOutput out) throws IOException;
+
+	V readValue(final ObjectInput in) throws IOException;
+
+	@Override
+	default void writeExternal(final V object, final ObjectOutput out) throws IOException {
+		if (object != null) {
+			out.writeBoolean(true);
+			writeValue(object, out);
+		} else
+			out.writeBoolean(false);
+	}
+
+	@Override
+	default V readObject(final ObjectInput in) throws IOException {
+		return in.readBoolean() ? readValue(in) : null;
+	}
+}
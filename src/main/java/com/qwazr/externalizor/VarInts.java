@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+
+/**
+ * The ints, the longs and the lengths written by the externalizers.
+ * <p>
+ * On a {@link BytesOutput}, the values are written with a fixed or a variable length depending on
+ * {@link Externalizor#setVarInts(boolean)}. On any other output, they are written with a fixed length, as DataOutput.
+ * The variable length integers are 7 bits per byte, least significant group first. The signed values are zigzag
+ * encoded: the small negative values are short too.
+ */
+final class VarInts {
+
+	private VarInts() {
+	}
+
+	static void writeInt(final ObjectOutput out, final int v) throws IOException {
+		if (out instanceof BytesOutput)
+			((BytesOutput) out).writeCompactInt(v);
+		else
+			out.writeInt(v);
+	}
+
+	static int readInt(final ObjectInput in) throws IOException {
+		return in instanceof BytesInput ? ((BytesInput) in).readCompactInt() : in.readInt();
+	}
+
+	static void writeLong(final ObjectOutput out, final long v) throws IOException {
+		if (out instanceof BytesOutput)
+			((BytesOutput) out).writeCompactLong(v);
+		else
+			out.writeLong(v);
+	}
+
+	static long readLong(final ObjectInput in) throws IOException {
+		return in instanceof BytesInput ? ((BytesInput) in).readCompactLong() : in.readLong();
+	}
+
+	/**
+	 * Write the length of an array or the size of a collection
+	 *
+	 * @param out  the output
+	 * @param size the positive size
+	 * @throws IOException if the size cannot be written
+	 */
+	static void writeSize(final ObjectOutput out, final int size) throws IOException {
+		if (out instanceof BytesOutput)
+			((BytesOutput) out).writeSize(size);
+		else
+			out.writeInt(size);
+	}
+
+	static int readSize(final ObjectInput in) throws IOException {
+		if (in instanceof BytesInput)
+			return ((BytesInput) in).readSize();
+		final int size = in.readInt();
+		if (size < 0)
+			throw new StreamCorruptedException("Negative size: " + size);
+		return size;
+	}
+
+	/**
+	 * Write an unsigned variable length integer on any output
+	 *
+	 * @param out   the output
+	 * @param value the value, negative values use 5 bytes
+	 * @throws IOException if the value cannot be written
+	 */
+	static void writeVarInt(final ObjectOutput out, int value) throws IOException {
+		if (out instanceof BytesOutput) {
+			((BytesOutput) out).writeVarInt(value);
+			return;
+		}
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(final ObjectInput in) throws IOException {
+		if (in instanceof BytesInput)
+			return ((BytesInput) in).readVarInt();
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new StreamCorruptedException("Malformed variable length integer");
+	}
+
+	static void writeVarLong(final ObjectOutput out, long value) throws IOException {
+		if (out instanceof BytesOutput) {
+			((BytesOutput) out).writeVarLong(value);
+			return;
+		}
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(final ObjectInput in) throws IOException {
+		if (in instanceof BytesInput)
+			return ((BytesInput) in).readVarLong();
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new StreamCorruptedException("Malformed variable length long");
+	}
+
+	/**
+	 * Write a zigzag variable length integer on any output, whatever the setting
+	 *
+	 * @param out the output
+	 * @param v   the value
+	 * @throws IOException if the value cannot be written
+	 */
+	static void writeZigZag(final ObjectOutput out, final int v) throws IOException {
+		writeVarInt(out, (v << 1) ^ (v >> 31));
+	}
+
+	static int readZigZagInt(final ObjectInput in) throws IOException {
+		final int v = readVarInt(in);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static void writeZigZag(final ObjectOutput out, final long v) throws IOException {
+		writeVarLong(out, (v << 1) ^ (v >> 63));
+	}
+
+	static long readZigZagLong(final ObjectInput in) throws IOException {
+		final long v = readVarLong(in);
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares that the serialized instances of the class can be read after fields have been added or removed.
+ * <p>
+ * The serialized object carries the hash of the schema of the class, and the tag and the size of each field. The tag
+ * of a field is made of its name and its type. When the schema of the reader is the same, the fields are read in
+ * sequence like for any class. Otherwise, each value is read by the field having the same tag, the values of the
+ * unknown fields are skipped, and the missing fields keep the value set by the constructor.
+ * <p>
+ * The values of a versioned object do not use the string table nor the reference tracking of the stream. A value
+ * written by the Java serialization has its own object stream, it is skipped like the other values.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Versioned {
+}
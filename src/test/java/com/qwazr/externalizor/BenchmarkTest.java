@@ -21,9 +21,14 @@ import org.junit.*;
 import org.junit.runners.MethodSorters;
 
 import java.io.*;
+import java.lang.reflect.Field;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.function.Function;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -32,9 +37,15 @@ public class BenchmarkTest {
 
 	private final int TIME = 2;
 
+	private final static String[] CODEC_NAMES = { "None", "GZIP", "Snappy", "Deflate", "Deflate\nBest speed" };
+	private final static Codec[] CODECS = { Codec.NONE, Codec.GZIP, Codec.SNAPPY, Codec.DEFLATE,
+			Codec.deflate(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY) };
+
 	private static Workbook workbook;
 	private static Sheet sheet;
+	private static Sheet codecSheet;
 	private static int ypos = 0;
+	private static int codecYpos = 0;
 
 	private static void setCell(CellStyle style, Row row, int pos, String value) {
 		Cell cell = row.createCell(pos);
@@ -63,6 +74,20 @@ public class BenchmarkTest {
 		setCell(style, row, 9, "Externalizor\nRaw");
 		setCell(style, row, 10, "Serialization\nCompressed");
 		setCell(style, row, 11, "Externalizor\nCompressed");
+
+		codecSheet = workbook.createSheet("Codecs");
+		row = codecSheet.createRow(codecYpos++);
+		setCell(style, row, 1, "Bytes\nSize");
+		setCell(style, row, CODECS.length + 3, "Rate\nrw / sec");
+		for (int i = 0; i < CODECS.length; i++) {
+			setCell(style, row, i + 2, CODEC_NAMES[i]);
+			setCell(style, row, i + CODECS.length + 4, CODEC_NAMES[i]);
+		}
+	}
+
+	@After
+	public void after() {
+		Dictionary.clear();
 	}
 
 	@AfterClass
@@ -218,6 +243,24 @@ public class BenchmarkTest {
 		row.createCell(10).setCellValue(compress1.rate);
 		row.createCell(11).setCellValue(compress2.rate);
 
+		// Codec benchmark
+		final BenchResult[] codecResults = new BenchResult[CODECS.length];
+		for (int i = 0; i < CODECS.length; i++) {
+			final Codec codec = CODECS[i];
+			codecResults[i] = benchmark("Externalizor - " + CODEC_NAMES[i].replace('\n', ' '), Duration.ofSeconds(TIME),
+					callNewObject, object -> ExternalizerTest.writeCompressed(object, codec),
+					bytes -> ExternalizerTest.readCompressed(bytes, clazz));
+			System.out.println(codecResults[i]);
+		}
+		System.out.println();
+
+		row = codecSheet.createRow(codecYpos++);
+		row.createCell(1).setCellValue(clazz.getSimpleName());
+		row.createCell(CODECS.length + 3).setCellValue(clazz.getSimpleName());
+		for (int i = 0; i < CODECS.length; i++) {
+			row.createCell(i + 2).setCellValue(codecResults[i].avgSize);
+			row.createCell(i + CODECS.length + 4).setCellValue(codecResults[i].rate);
+		}
 	}
 
 	@Test
@@ -245,4 +288,243 @@ public class BenchmarkTest {
 		benchmarkCompare(ComplexExample::new, ComplexExample.class);
 	}
 
+	@Test
+	public void benchmark11SortedCollections() throws Exception {
+		benchmarkCompare(() -> new SortedCollections(10_000), SortedCollections.class);
+	}
+
+	@Test
+	public void benchmark13ColumnarMaps() throws Exception {
+		benchmarkCompare(() -> new ColumnarMaps(1_000), ColumnarMaps.class);
+	}
+
+	@Test
+	public void benchmark14ColumnarCollections() throws Exception {
+		benchmarkCompare(() -> new ColumnarCollections(1_000), ColumnarCollections.class);
+	}
+
+	/**
+	 * Compare the GZIP codec before and after the registration of a dictionary
+	 */
+	public <T> void benchmarkDictionary(Callable<T> callNewObject, Class<T> clazz, int dictionaryId)
+			throws Exception {
+		final BenchResult gzip = benchmark("Externalizor - GZIP", Duration.ofSeconds(TIME), callNewObject,
+				ExternalizerTest::writeCompressed, bytes -> ExternalizerTest.readCompressed(bytes, clazz));
+
+		final List<T> samples = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+			samples.add(callNewObject.call());
+		Externalizor.registerDictionary(clazz, dictionaryId, Externalizor.trainDictionary(samples));
+
+		final BenchResult dictionary =
+				benchmark("Externalizor - Dictionary", Duration.ofSeconds(TIME), callNewObject,
+						ExternalizerTest::writeCompressed, bytes -> ExternalizerTest.readCompressed(bytes, clazz));
+
+		System.out.println(gzip);
+		System.out.println(dictionary);
+		System.out.println(compare(gzip, dictionary));
+		System.out.println();
+	}
+
+	@Test
+	public void benchmark08Dictionary() throws Exception {
+		benchmarkDictionary(SimplePrimitive::new, SimplePrimitive.class, 1001);
+		benchmarkDictionary(SimpleLang::new, SimpleLang.class, 1002);
+		benchmarkDictionary(SimpleTime::new, SimpleTime.class, 1004);
+	}
+
+	/**
+	 * Compare the fixed and the variable length encodings of the ints, the longs and the lengths
+	 */
+	public <T> void benchmarkVarInts(Callable<T> callNewObject, Class<T> clazz) throws Exception {
+		final BenchResult fixedRaw = benchmark("Externalizor - Raw - Fixed", Duration.ofSeconds(TIME), callNewObject,
+				ExternalizerTest::writeRaw, bytes -> ExternalizerTest.readRaw(bytes, clazz));
+		final BenchResult fixedCompress =
+				benchmark("Externalizor - Compress - Fixed", Duration.ofSeconds(TIME), callNewObject,
+						ExternalizerTest::writeCompressed, bytes -> ExternalizerTest.readCompressed(bytes, clazz));
+
+		final BenchResult varRaw;
+		final BenchResult varCompress;
+		Externalizor.setVarInts(true);
+		try {
+			varRaw = benchmark("Externalizor - Raw - VarInts", Duration.ofSeconds(TIME), callNewObject,
+					ExternalizerTest::writeRaw, bytes -> ExternalizerTest.readRaw(bytes, clazz));
+			varCompress = benchmark("Externalizor - Compress - VarInts", Duration.ofSeconds(TIME), callNewObject,
+					ExternalizerTest::writeCompressed, bytes -> ExternalizerTest.readCompressed(bytes, clazz));
+		} finally {
+			Externalizor.setVarInts(false);
+		}
+
+		System.out.println(fixedRaw);
+		System.out.println(varRaw);
+		System.out.println(compare(fixedRaw, varRaw));
+		System.out.println(fixedCompress);
+		System.out.println(varCompress);
+		System.out.println(compare(fixedCompress, varCompress));
+		System.out.println();
+	}
+
+	@Test
+	public void benchmark10VarInts() throws Exception {
+		benchmarkVarInts(SimplePrimitive::new, SimplePrimitive.class);
+		benchmarkVarInts(SimpleLang::new, SimpleLang.class);
+		benchmarkVarInts(SimpleTime::new, SimpleTime.class);
+		benchmarkVarInts(Counters::new, Counters.class);
+	}
+
+	/**
+	 * Compare the enums written as names and as ordinals
+	 */
+	public <T> void benchmarkEnumOrdinals(Callable<T> callNewObject, Class<T> clazz) throws Exception {
+		final BenchResult names = benchmark("Externalizor - Raw - Names", Duration.ofSeconds(TIME), callNewObject,
+				ExternalizerTest::writeRaw, bytes -> ExternalizerTest.readRaw(bytes, clazz));
+		final BenchResult ordinals;
+		Externalizor.setEnumOrdinals(true);
+		try {
+			ordinals = benchmark("Externalizor - Raw - Ordinals", Duration.ofSeconds(TIME), callNewObject,
+					ExternalizerTest::writeRaw, bytes -> ExternalizerTest.readRaw(bytes, clazz));
+		} finally {
+			Externalizor.setEnumOrdinals(false);
+		}
+		System.out.println(names);
+		System.out.println(ordinals);
+		System.out.println(compare(names, ordinals));
+		System.out.println();
+	}
+
+	@Test
+	public void benchmark09EnumOrdinals() throws Exception {
+		benchmarkEnumOrdinals(SimpleLang::new, SimpleLang.class);
+	}
+
+	public static class FieldAccess {
+
+		int value;
+	}
+
+	private interface FieldIncrement {
+
+		void increment(Object object) throws ReflectiveOperationException;
+	}
+
+	/**
+	 * @return the number of increments of the field per second
+	 */
+	private long benchmarkFieldAccess(final String name, final FieldIncrement increment)
+			throws ReflectiveOperationException {
+		final FieldAccess object = new FieldAccess();
+		final long startTime = System.nanoTime();
+		final long endTime = startTime + Duration.ofSeconds(TIME).toNanos();
+		long counter = 0;
+		while (System.nanoTime() < endTime) {
+			for (int i = 0; i < 1_000_000; i++)
+				increment.increment(object);
+			counter += 1_000_000;
+		}
+		final long rate = counter * 1_000_000_000L / (System.nanoTime() - startTime);
+		Assert.assertEquals((int) counter, object.value);
+		System.out.println(name + " - " + rate + " increments/s");
+		return rate;
+	}
+
+	/**
+	 * Compare the access to an int field using reflection, the method handles of a {@link FieldAccessor} called as
+	 * instance fields (the interpreted sequences), and an accessor like the ones generated by the
+	 * externalizor-processor. See benchmark07GeneratedSequence for the objects per second.
+	 */
+	@Test
+	public void benchmark06FieldAccess() throws Exception {
+		final Field field = FieldAccess.class.getDeclaredField("value");
+		final FieldAccessor handles = FieldAccessor.of(field);
+		final FieldAccessor generated =
+				new FieldAccessor(FieldAccess.class, "value", int.class, "int", new Class<?>[] {}) {
+					@Override
+					protected int getInt(final Object object) {
+						return ((FieldAccess) object).value;
+					}
+
+					@Override
+					protected void setInt(final Object object, final int value) {
+						((FieldAccess) object).value = value;
+					}
+				};
+		final long reflection = benchmarkFieldAccess("Field", object -> field.setInt(object, field.getInt(object) + 1));
+		final long handle = benchmarkFieldAccess("FieldAccessor - Method handles",
+				object -> handles.setInt(object, handles.getInt(object) + 1));
+		final long direct = benchmarkFieldAccess("FieldAccessor - Generated",
+				object -> generated.setInt(object, generated.getInt(object) + 1));
+		System.out.println("Method handles: " + (handle * 100 / reflection) + "% of Field");
+		System.out.println("Generated: " + (direct * 100 / reflection) + "% of Field");
+		System.out.println();
+	}
+
+	/**
+	 * Compare the field sequences generated with constant method handles (see GeneratedExternalizer) with the
+	 * interpreted sequences calling the field accessors
+	 */
+	public <T> void benchmarkGenerated(final T sample, final Class<T> clazz) throws Exception {
+		final BenchResult interpreted;
+		GeneratedExternalizer.enabled = false;
+		Externalizor.clear();
+		try {
+			Externalizor.warmup(Collections.singleton(sample), 10_000);
+			interpreted = benchmark("Externalizor - Raw - Interpreted", Duration.ofSeconds(TIME), () -> sample,
+					ExternalizerTest::writeRaw, bytes -> ExternalizerTest.readRaw(bytes, clazz));
+		} finally {
+			GeneratedExternalizer.enabled = true;
+			Externalizor.clear();
+		}
+		Externalizor.warmup(Collections.singleton(sample), 10_000);
+		final BenchResult generated =
+				benchmark("Externalizor - Raw - Generated", Duration.ofSeconds(TIME), () -> sample,
+						ExternalizerTest::writeRaw, bytes -> ExternalizerTest.readRaw(bytes, clazz));
+		System.out.println(interpreted);
+		System.out.println(generated);
+		System.out.println(compare(interpreted, generated));
+		System.out.println();
+	}
+
+	@Test
+	public void benchmark07GeneratedSequence() throws Exception {
+		benchmarkGenerated(new SimplePrimitive(), SimplePrimitive.class);
+		benchmarkGenerated(new ComplexExample(), ComplexExample.class);
+	}
+
+	/**
+	 * Compare the compression of large arrays in one block and in parallel chunks
+	 */
+	@Test
+	public void benchmark15ParallelCompression() throws Exception {
+		final SimplePrimitive primitive = new SimplePrimitive();
+		primitive.longArray = new long[4_000_000];
+		primitive.doubleArray = new double[4_000_000];
+		for (int i = 0; i < primitive.longArray.length; i++) {
+			primitive.longArray[i] = i % 1000;
+			primitive.doubleArray[i] = i / 7d;
+		}
+		final BenchResult single = benchmark("Externalizor - Raw - Single", Duration.ofSeconds(TIME), () -> primitive,
+				ExternalizerTest::writeRaw, bytes -> ExternalizerTest.readRaw(bytes, SimplePrimitive.class));
+		final BenchResult chunked;
+		Externalizor.setParallelCompression(ChunkedSnappy.CHUNK_SIZE);
+		try {
+			chunked = benchmark("Externalizor - Raw - Chunked", Duration.ofSeconds(TIME), () -> primitive,
+					ExternalizerTest::writeRaw, bytes -> ExternalizerTest.readRaw(bytes, SimplePrimitive.class));
+		} finally {
+			Externalizor.setParallelCompression(0);
+		}
+		System.out.println(single);
+		System.out.println(chunked);
+		System.out.println(compare(single, chunked));
+		System.out.println();
+	}
+
+	/**
+	 * Large collections, built once
+	 */
+	@Test
+	public void benchmark12SortedCollectionsLarge() throws Exception {
+		final SortedCollections large = new SortedCollections(100_000);
+		benchmarkCompare(() -> large, SortedCollections.class);
+	}
+
 }
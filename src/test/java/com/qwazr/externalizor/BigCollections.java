@@ -0,0 +1,66 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.apache.commons.lang3.RandomUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Large collections, created with the capacity for their elements on deserialization
+ */
+public class BigCollections {
+
+	public ArrayList<String> list;
+	public ArrayList<Long> longs;
+	public HashSet<Integer> set;
+	public HashMap<Integer, String> map;
+	public TreeMap<String, Integer> tree;
+
+	public BigCollections() {
+		this(RandomUtils.nextInt(5, 50));
+	}
+
+	public BigCollections(final int size) {
+		list = new ArrayList<>();
+		longs = new ArrayList<>();
+		set = new HashSet<>();
+		map = new HashMap<>();
+		tree = new TreeMap<>();
+		for (int i = 0; i < size; i++) {
+			final int value = RandomUtils.nextInt();
+			list.add(Integer.toString(value));
+			longs.add(i % 10 == 0 ? null : RandomUtils.nextLong());
+			set.add(value);
+			map.put(i, Integer.toString(value));
+			if (i < 100)
+				tree.put(Integer.toString(value), i);
+		}
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (!(o instanceof BigCollections))
+			return false;
+		final BigCollections b = (BigCollections) o;
+		return Objects.equals(list, b.list) && Objects.equals(longs, b.longs) && Objects.equals(set, b.set) &&
+				Objects.equals(map, b.map) && Objects.equals(tree, b.tree);
+	}
+}
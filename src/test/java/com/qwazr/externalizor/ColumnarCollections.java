@@ -0,0 +1,121 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.apache.commons.lang3.RandomUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Collections of objects written column by column
+ */
+public class ColumnarCollections implements Serializable {
+
+	public static class Point implements Serializable {
+
+		public int x;
+		public long y;
+		public double weight;
+		public boolean visible;
+		public char tag;
+		public String label;
+		public Integer rank;
+		public List<Long> history;
+		public SimpleTime time;
+
+		public Point() {
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Point))
+				return false;
+			final Point p = (Point) o;
+			return x == p.x && y == p.y && weight == p.weight && visible == p.visible && tag == p.tag &&
+					Objects.equals(label, p.label) && Objects.equals(rank, p.rank) &&
+					Objects.equals(history, p.history) && Objects.equals(time, p.time);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(x, y, label);
+		}
+	}
+
+	public static class Abstract implements Serializable {
+
+		@Columnar
+		public List<Shapes.Shape> shapes;
+	}
+
+	@Columnar
+	public List<Point> points;
+
+	@Columnar
+	public Set<Point> pointSet;
+
+	@Columnar
+	public ArrayList<SimplePrimitive> primitives;
+
+	public List<Point> sharedPoints;
+
+	public ColumnarCollections() {
+		this(RandomUtils.nextInt(5, 50));
+	}
+
+	public ColumnarCollections(final int size) {
+		points = new ArrayList<>();
+		pointSet = new LinkedHashSet<>();
+		primitives = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			final Point point = new Point();
+			point.x = i;
+			point.y = RandomUtils.nextLong();
+			point.weight = RandomUtils.nextDouble();
+			point.visible = RandomUtils.nextBoolean();
+			point.tag = (char) RandomUtils.nextInt('a', 'z');
+			point.label = i % 5 == 0 ? null : "point " + RandomUtils.nextInt();
+			point.rank = i % 7 == 0 ? null : RandomUtils.nextInt(0, 10);
+			if (i % 4 == 0) {
+				point.history = new ArrayList<>();
+				for (int j = 0; j < RandomUtils.nextInt(0, 10); j++)
+					point.history.add(RandomUtils.nextLong());
+			}
+			if (i % 100 == 0)
+				point.time = new SimpleTime();
+			points.add(i % 11 == 0 ? null : point);
+			pointSet.add(point);
+			if (i < 100)
+				primitives.add(new SimplePrimitive());
+		}
+		// The same objects, written element by element
+		sharedPoints = new ArrayList<>(pointSet);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (!(o instanceof ColumnarCollections))
+			return false;
+		final ColumnarCollections c = (ColumnarCollections) o;
+		return Objects.equals(points, c.points) && Objects.equals(pointSet, c.pointSet) &&
+				Objects.equals(primitives, c.primitives) && Objects.equals(sharedPoints, c.sharedPoints);
+	}
+}
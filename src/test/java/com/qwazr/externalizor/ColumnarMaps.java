@@ -0,0 +1,91 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.apache.commons.lang3.RandomUtils;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Maps whose keys or values are boxed primitives or strings, written as columns, and one map in the default format
+ */
+public class ColumnarMaps implements Serializable {
+
+	@Columnar
+	public HashMap<Integer, Long> integerLong;
+	@Columnar
+	public Map<String, Double> stringDouble;
+	@Columnar
+	public TreeMap<String, String> stringString;
+	@Columnar
+	public LinkedHashMap<Character, Boolean> charBoolean;
+	@Columnar
+	public HashMap<Short, Byte> shortByte;
+	@Columnar
+	public HashMap<Float, String> floatString;
+	@Columnar
+	public HashMap<String, SimpleLang> stringObject;
+	@Columnar
+	public HashMap<Thread.State, Integer> enumInteger;
+	public HashMap<String, Integer> stringInteger;
+
+	public ColumnarMaps() {
+		this(RandomUtils.nextInt(5, 50));
+	}
+
+	public ColumnarMaps(final int size) {
+		integerLong = new HashMap<>();
+		stringDouble = new HashMap<>();
+		stringString = new TreeMap<>();
+		charBoolean = new LinkedHashMap<>();
+		shortByte = new HashMap<>();
+		floatString = new HashMap<>();
+		stringObject = new HashMap<>();
+		enumInteger = new HashMap<>();
+		stringInteger = new HashMap<>();
+		for (int i = 0; i < size; i++) {
+			final String key = "key" + i;
+			integerLong.put(i, i % 7 == 0 ? null : RandomUtils.nextLong());
+			stringDouble.put(i == 0 ? null : key, RandomUtils.nextDouble());
+			stringString.put(key, i % 5 == 0 ? null : "\u00e9t\u00e9 " + RandomUtils.nextInt());
+			charBoolean.put((char) i, i % 3 == 0 ? null : RandomUtils.nextBoolean());
+			shortByte.put((short) i, (byte) RandomUtils.nextInt(0, 128));
+			floatString.put((float) i, "");
+			stringInteger.put(key, i % 11 == 0 ? null : RandomUtils.nextInt());
+		}
+		for (int i = 0; i < Math.min(size, 3); i++)
+			stringObject.put("object" + i, new SimpleLang());
+		for (final Thread.State state : Thread.State.values())
+			enumInteger.put(state, RandomUtils.nextInt());
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (!(o instanceof ColumnarMaps))
+			return false;
+		final ColumnarMaps m = (ColumnarMaps) o;
+		return Objects.equals(integerLong, m.integerLong) && Objects.equals(stringDouble, m.stringDouble) &&
+				Objects.equals(stringString, m.stringString) && Objects.equals(charBoolean, m.charBoolean) &&
+				Objects.equals(shortByte, m.shortByte) && Objects.equals(floatString, m.floatString) &&
+				Objects.equals(stringObject, m.stringObject) && Objects.equals(enumInteger, m.enumInteger) &&
+				Objects.equals(stringInteger, m.stringInteger);
+	}
+}
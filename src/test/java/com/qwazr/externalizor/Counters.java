@@ -0,0 +1,71 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.apache.commons.lang3.RandomUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Small numbers, which are shorter with the variable length encoding
+ */
+public class Counters {
+
+	public int count;
+	public long total;
+	@VarInt
+	public int delta;
+	@VarInt
+	public long offset;
+	public Integer boxed;
+	public ArrayList<Long> values;
+	public int[] array;
+	public Instant instant;
+
+	public Counters() {
+		count = RandomUtils.nextInt(0, 100);
+		total = RandomUtils.nextLong(0, 10_000);
+		delta = -RandomUtils.nextInt(0, 10);
+		offset = -RandomUtils.nextLong(0, 1000);
+		boxed = RandomUtils.nextInt(0, 10);
+		values = new ArrayList<>();
+		for (int i = 0; i < RandomUtils.nextInt(5, 50); i++)
+			values.add(i % 10 == 0 ? null : RandomUtils.nextLong(0, 1000) - 500);
+		array = new int[RandomUtils.nextInt(5, 50)];
+		for (int i = 0; i < array.length; i++)
+			array[i] = RandomUtils.nextInt(0, 100);
+		instant = Instant.ofEpochSecond(RandomUtils.nextLong(0, 2_000_000_000L), RandomUtils.nextInt(0, 1000));
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (!(o instanceof Counters))
+			return false;
+		final Counters c = (Counters) o;
+		return count == c.count && total == c.total && delta == c.delta && offset == c.offset &&
+				Objects.equals(boxed, c.boxed) && Objects.equals(values, c.values) && Arrays.equals(array, c.array) &&
+				Objects.equals(instant, c.instant);
+	}
+
+	public static class Invalid {
+
+		@VarInt
+		public String name;
+	}
+}
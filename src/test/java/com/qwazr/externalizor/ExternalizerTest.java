@@ -15,17 +15,40 @@
  */
 package com.qwazr.externalizor;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.time.*;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class ExternalizerTest {
 
+	@After
+	public void after() {
+		Dictionary.clear();
+		ClassIds.clear();
+	}
+
 	final static <T> byte[] writeCompressed(final T object) {
 		try (final ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
 			Externalizor.serialize(object, bos);
@@ -35,6 +58,15 @@ public class ExternalizerTest {
 		}
 	}
 
+	final static <T> byte[] writeCompressed(final T object, final Codec codec) {
+		try (final ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			Externalizor.serialize(object, bos, codec);
+			return bos.toByteArray();
+		} catch (IOException | ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	final static <T> T readCompressed(final byte[] bytes, final Class<T> clazz) {
 		try (final ByteArrayInputStream bis = new ByteArrayInputStream(bytes)) {
 			return Externalizor.deserialize(bis, clazz);
@@ -156,6 +188,918 @@ public class ExternalizerTest {
 		}
 	}
 
+	@Test
+	public void byteBufferTest() throws IOException, ReflectiveOperationException {
+		final ComplexExample first = new ComplexExample();
+		final ComplexExample second = new ComplexExample();
+		final byte[] raw = writeRaw(first);
+
+		for (final boolean direct : new boolean[] { false, true }) {
+			// Exact size
+			final ByteBuffer exact = Externalizor.serializeRawToBuffer(first, direct);
+			Assert.assertEquals(direct, exact.isDirect());
+			Assert.assertEquals(raw.length, exact.remaining());
+			Assert.assertEquals(first, Externalizor.deserializeRaw(exact, ComplexExample.class));
+			Assert.assertFalse(exact.hasRemaining());
+
+			// Grow on overflow, two objects in the same buffer
+			ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(16) : ByteBuffer.allocate(16);
+			buffer.putInt(12345);
+			buffer = Externalizor.serializeRaw(first, buffer);
+			buffer = Externalizor.serializeRaw(second, buffer);
+			Assert.assertEquals(direct, buffer.isDirect());
+			buffer.flip();
+			Assert.assertEquals(12345, buffer.getInt());
+			Assert.assertEquals(first, Externalizor.deserializeRaw(buffer, ComplexExample.class));
+			Assert.assertEquals(second, Externalizor.deserializeRaw(buffer, ComplexExample.class));
+			Assert.assertFalse(buffer.hasRemaining());
+		}
+
+		// The same bytes than the stream
+		final ByteBuffer buffer = Externalizor.serializeRaw(first, ByteBuffer.allocate(raw.length));
+		Assert.assertArrayEquals(raw, buffer.array());
+	}
+
+	@Test
+	public void gzipCompatibilityTest() throws IOException {
+		final ComplexExample object = new ComplexExample();
+		final byte[] raw = writeRaw(object);
+
+		// Our GZIP stream can be read by GZIPInputStream
+		final ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+		try (final GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(writeCompressed(object)))) {
+			final byte[] buffer = new byte[1024];
+			int read;
+			while ((read = input.read(buffer)) != -1)
+				uncompressed.write(buffer, 0, read);
+		}
+		Assert.assertArrayEquals(raw, uncompressed.toByteArray());
+
+		// A stream written by GZIPOutputStream, in two members, can be read
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (final GZIPOutputStream output = new GZIPOutputStream(compressed)) {
+			output.write(raw, 0, raw.length / 2);
+		}
+		try (final GZIPOutputStream output = new GZIPOutputStream(compressed)) {
+			output.write(raw, raw.length / 2, raw.length - raw.length / 2);
+		}
+		Assert.assertEquals(object, readCompressed(compressed.toByteArray(), ComplexExample.class));
+
+		// A corrupted stream is detected
+		final byte[] corrupted = writeCompressed(object);
+		corrupted[corrupted.length - 5]++;
+		try {
+			readCompressed(corrupted, ComplexExample.class);
+			Assert.fail("The exception is not thrown");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	/**
+	 * A codec which only inverts the bits
+	 */
+	final static class InvertCodec implements Codec {
+
+		@Override
+		public int getId() {
+			return 200;
+		}
+
+		@Override
+		public void compress(byte[] bytes, int offset, int length, OutputStream output) throws IOException {
+			for (int i = offset; i < offset + length; i++)
+				output.write(~bytes[i]);
+		}
+
+		@Override
+		public void uncompress(byte[] bytes, int offset, int length, OutputStream output) throws IOException {
+			compress(bytes, offset, length, output);
+		}
+	}
+
+	@Test
+	public void codecTest() throws IOException {
+		final ComplexExample object = new ComplexExample();
+		final byte[] raw = writeRaw(object);
+
+		final Codec invert = new InvertCodec();
+		Externalizor.registerCodec(invert);
+		Externalizor.registerCodec(invert);
+		try {
+			Externalizor.registerCodec(new InvertCodec());
+			Assert.fail("The exception is not thrown");
+		} catch (ExternalizorException e) {
+			Assert.assertTrue(e.getMessage().contains("200"));
+		}
+		try {
+			Externalizor.registerCodec(Codec.deflate(Deflater.BEST_SPEED, Deflater.FILTERED));
+			Assert.fail("The exception is not thrown");
+		} catch (ExternalizorException e) {
+			Assert.assertTrue(e.getMessage().contains("between"));
+		}
+
+		for (final Codec codec : new Codec[] { Codec.NONE, Codec.GZIP, Codec.SNAPPY, Codec.DEFLATE,
+				Codec.deflate(Deflater.BEST_SPEED, Deflater.FILTERED),
+				Codec.deflate(Deflater.BEST_COMPRESSION, Deflater.HUFFMAN_ONLY), invert }) {
+			final byte[] bytes = writeCompressed(object, codec);
+			Assert.assertEquals(codec.getId(), bytes[0] & 0xFF);
+			Assert.assertEquals(object, readCompressed(bytes, ComplexExample.class));
+
+			// Uncompress to any stream
+			final int offset = codec == Codec.GZIP ? 0 : 1;
+			final ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+			codec.uncompress(bytes, offset, bytes.length - offset, uncompressed);
+			Assert.assertArrayEquals(raw, uncompressed.toByteArray());
+		}
+		Assert.assertEquals(raw.length + 1, writeCompressed(object, Codec.NONE).length);
+
+		// The default codec
+		Assert.assertEquals(Codec.GZIP, Externalizor.getDefaultCodec());
+		Externalizor.setDefaultCodec(Codec.SNAPPY);
+		try {
+			Assert.assertEquals(Codec.SNAPPY.getId(), writeCompressed(object)[0]);
+		} finally {
+			Externalizor.setDefaultCodec(Codec.GZIP);
+		}
+
+		// Unknown codec
+		final byte[] unknown = writeCompressed(object, Codec.NONE);
+		unknown[0] = (byte) 199;
+		try {
+			readCompressed(unknown, ComplexExample.class);
+			Assert.fail("The exception is not thrown");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getCause() instanceof StreamCorruptedException);
+		}
+	}
+
+	@Test
+	public void dictionaryTest() throws IOException, ReflectiveOperationException {
+		final List<SimpleTime> samples = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+			samples.add(new SimpleTime());
+		final SimpleTime object = new SimpleTime();
+		final byte[] gzip = writeCompressed(object);
+		Assert.assertEquals(object, readCompressed(gzip, SimpleTime.class));
+
+		final byte[] dictionary = Externalizor.trainDictionary(samples);
+		Assert.assertEquals(4096, dictionary.length);
+		Assert.assertEquals(8192, Externalizor.trainDictionary(samples, 8192).length);
+		Externalizor.registerDictionary(SimpleTime.class, 1, dictionary);
+		Externalizor.registerDictionary(SimpleTime.class, 1, dictionary);
+		try {
+			Externalizor.registerDictionary(SimpleCollection.class, 1, new byte[] { 1, 2, 3 });
+			Assert.fail("The exception is not thrown");
+		} catch (ExternalizorException e) {
+			Assert.assertTrue(e.getMessage().contains("already used"));
+		}
+
+		// The GZIP and Deflate codecs use the dictionary, the others don't
+		final byte[] withDictionary = writeCompressed(object);
+		Assert.assertEquals(3, withDictionary[0]);
+		Assert.assertEquals(1, withDictionary[1]);
+		Assert.assertTrue(withDictionary.length + " " + gzip.length, withDictionary.length < gzip.length);
+		Assert.assertEquals(object, readCompressed(withDictionary, SimpleTime.class));
+		final byte[] deflate = writeCompressed(object, Codec.deflate(Deflater.BEST_SPEED, Deflater.FILTERED));
+		Assert.assertEquals(3, deflate[0]);
+		Assert.assertEquals(object, readCompressed(deflate, SimpleTime.class));
+		Assert.assertEquals(Codec.SNAPPY.getId(), writeCompressed(object, Codec.SNAPPY)[0]);
+
+		// The previous objects are still readable
+		Assert.assertEquals(object, readCompressed(gzip, SimpleTime.class));
+
+		// A new dictionary replaces the previous one, which is still used to read
+		Externalizor.registerDictionary(SimpleTime.class, 300, Externalizor.trainDictionary(samples.subList(0, 10)));
+		final byte[] withNewDictionary = writeCompressed(object);
+		Assert.assertEquals(3, withNewDictionary[0]);
+		Assert.assertEquals(object, readCompressed(withNewDictionary, SimpleTime.class));
+		Assert.assertEquals(object, readCompressed(withDictionary, SimpleTime.class));
+
+		// Unknown dictionary
+		withDictionary[1] = 2;
+		try {
+			readCompressed(withDictionary, SimpleTime.class);
+			Assert.fail("The exception is not thrown");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getCause() instanceof StreamCorruptedException);
+		}
+	}
+
+	@Test
+	public void stringTableTest() {
+		final RepeatedStrings object = new RepeatedStrings();
+		classTest(object);
+		final byte[] withoutTable = writeRaw(object);
+		Assert.assertEquals(object, readRaw(withoutTable, RepeatedStrings.class));
+
+		Externalizor.setStringTableSize(1000);
+		try {
+			final byte[] withTable = writeRaw(object);
+			Assert.assertTrue(withTable.length + " " + withoutTable.length, withTable.length < withoutTable.length);
+			final RepeatedStrings read = readRaw(withTable, RepeatedStrings.class);
+			Assert.assertEquals(object, read);
+			// The same instance for the same value
+			for (final String country : read.countries)
+				if (country != null && country.equals(read.country))
+					Assert.assertSame(read.country, country);
+			Assert.assertEquals(object, readCompressed(writeCompressed(object), RepeatedStrings.class));
+
+			// A table limited to one string
+			Externalizor.setStringTableSize(1);
+			final byte[] withSmallTable = writeRaw(object);
+			Assert.assertTrue(withSmallTable.length < withoutTable.length);
+			Assert.assertTrue(withSmallTable.length > withTable.length);
+			Assert.assertEquals(object, readRaw(withSmallTable, RepeatedStrings.class));
+		} finally {
+			Externalizor.setStringTableSize(0);
+		}
+		// Still readable without the table
+		Assert.assertEquals(object, readRaw(withoutTable, RepeatedStrings.class));
+	}
+
+	@Test
+	public void stringEncodingTest() throws IOException, ReflectiveOperationException {
+		final StringBuilder large = new StringBuilder();
+		while (large.length() < 100000)
+			large.append("Large string \u00e9 ");
+		final String[] values =
+				{ "", "ASCII", "Latin-1 \u00e9\u00e0\u00e7 \u00ff", "UTF-8 \u4e2d\u6587 \u20ac", "Emoji \ud83d\ude00",
+						large.toString(), large + "\u20ac" };
+		final LangExternalizer.StringExternalizer externalizer = LangExternalizer.StringExternalizer.INSTANCE;
+		final BytesOutput out = new BytesOutput();
+		for (final String value : values)
+			externalizer.writeExternal(value, out);
+		externalizer.writeExternal(null, out);
+		final BytesInput in = new BytesInput(out.toByteArray());
+		for (final String value : values)
+			Assert.assertEquals(value, externalizer.readObject(in));
+		Assert.assertNull(externalizer.readObject(in));
+
+		// One byte per char for Latin-1, without the writeUTF limit
+		out.reset();
+		externalizer.writeExternal(large.toString(), out);
+		Assert.assertEquals(1 + 3 + large.length(), out.size());
+
+		// An unpaired surrogate is written as '?', like String.getBytes
+		out.reset();
+		externalizer.writeExternal("a\ud83d", out);
+		Assert.assertEquals("a?", externalizer.readObject(new BytesInput(out.toByteArray())));
+
+		// The same encoding with any ObjectOutput
+		for (final String value : values) {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (final ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+				externalizer.writeExternal(value, output);
+			}
+			try (final ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+				Assert.assertEquals(value, externalizer.readObject(input));
+			}
+			out.reset();
+			externalizer.writeExternal(value, out);
+			Assert.assertEquals(value, externalizer.readObject(new BytesInput(out.toByteArray())));
+		}
+
+		// The strings written with writeUTF are still read
+		out.reset();
+		out.writeByte(LangExternalizer.StringExternalizer.INLINE);
+		out.writeUTF("Legacy \u00e9\u00e0\u20ac");
+		Assert.assertEquals("Legacy \u00e9\u00e0\u20ac", externalizer.readObject(new BytesInput(out.toByteArray())));
+
+		// Fields, collection elements and map keys
+		final RepeatedStrings object = new RepeatedStrings();
+		object.country = large.toString();
+		object.countries.add(large + "\u20ac");
+		object.statusById.put(large.toString(), "\u4e2d");
+		Assert.assertEquals(object, readRaw(writeRaw(object), RepeatedStrings.class));
+		classTest(object);
+	}
+
+	enum ColorV1 {
+		RED, GREEN, BLUE
+	}
+
+	enum ColorV2 {
+		BLUE, YELLOW, RED, GREEN
+	}
+
+	@Test
+	public void enumOrdinalTest() throws IOException, ReflectiveOperationException {
+		final Externalizer<ColorV1, ColorV1> v1 = LangExternalizer.lang(ColorV1.class);
+		final Externalizer<ColorV2, ColorV2> v2 = LangExternalizer.lang(ColorV2.class);
+		final ColorV1[] values = { ColorV1.BLUE, ColorV1.RED, null, ColorV1.BLUE, ColorV1.GREEN, ColorV1.RED };
+
+		// By default, the tag and the name
+		final BytesOutput out = new BytesOutput();
+		for (final ColorV1 value : values)
+			v1.writeExternal(value, out);
+		Assert.assertEquals((3 + 4) + (3 + 3) + 1 + (3 + 4) + (3 + 5) + (3 + 3), out.size());
+		BytesInput in = new BytesInput(out.toByteArray());
+		for (final ColorV1 value : values)
+			Assert.assertSame(value, v1.readObject(in));
+
+		out.reset();
+		Externalizor.setEnumOrdinals(true);
+		try {
+			for (final ColorV1 value : values)
+				v1.writeExternal(value, out);
+		} finally {
+			Externalizor.setEnumOrdinals(false);
+		}
+		// The tag, the ordinal and the name the first time, then only the ordinal
+		Assert.assertEquals((3 + 4) + (3 + 3) + 1 + 1 + (3 + 5) + 1, out.size());
+
+		// Same enum, read whatever the setting
+		in = new BytesInput(out.toByteArray());
+		for (final ColorV1 value : values)
+			Assert.assertSame(value, v1.readObject(in));
+
+		// Reordered constants
+		in = new BytesInput(out.toByteArray());
+		for (final ColorV1 value : values)
+			Assert.assertEquals(value == null ? null : value.name(), Objects.toString(v2.readObject(in), null));
+
+		// The names written by the previous versions are still read
+		out.reset();
+		out.writeBoolean(true);
+		out.writeUTF("GREEN");
+		Assert.assertSame(ColorV2.GREEN, v2.readObject(new BytesInput(out.toByteArray())));
+
+		// An ordinal without name
+		out.reset();
+		out.writeVarInt(LangExternalizer.EnumExternalizer.ORDINAL + 1);
+		try {
+			v1.readObject(new BytesInput(out.toByteArray()));
+			Assert.fail("The exception is not thrown");
+		} catch (StreamCorruptedException e) {
+			Assert.assertTrue(e.getMessage().contains(ColorV1.class.getName()));
+		}
+
+		classTest(new SimpleLang());
+		final SimpleLang object = new SimpleLang();
+		Assert.assertEquals(object, readRaw(writeRaw(object), SimpleLang.class));
+		Externalizor.setEnumOrdinals(true);
+		try {
+			classTest(object);
+		} finally {
+			Externalizor.setEnumOrdinals(false);
+		}
+	}
+
+	@Test
+	public void referenceTrackingTest() {
+		final Node root = new Node("root");
+		final Node shared = new Node("shared");
+		root.next = shared;
+		root.other = shared;
+		shared.next = new Node("last");
+		shared.next.next = root;
+		root.leaf = new Node.Leaf("leaf");
+		root.otherLeaf = root.leaf;
+
+		Externalizor.setReferenceTracking(true);
+		final byte[] tracked;
+		final byte[] trackedCompressed;
+		try {
+			tracked = writeRaw(root);
+			trackedCompressed = writeCompressed(shared);
+		} finally {
+			Externalizor.setReferenceTracking(false);
+		}
+		final Node read = readRaw(tracked, Node.class);
+		Assert.assertEquals("root", read.name);
+		Assert.assertEquals("shared", read.next.name);
+		// The shared object is read once
+		Assert.assertSame(read.next, read.other);
+		Assert.assertEquals("last", read.next.next.name);
+		// The cycle is restored
+		Assert.assertSame(read, read.next.next.next);
+		// The acyclic classes are not tracked
+		Assert.assertEquals("leaf", read.leaf.value);
+		Assert.assertEquals("leaf", read.otherLeaf.value);
+		Assert.assertNotSame(read.leaf, read.otherLeaf);
+		final Node readShared = readCompressed(trackedCompressed, Node.class);
+		Assert.assertSame(readShared, readShared.next.next.next);
+
+		// Without tracking, the shared objects are written several times
+		shared.next.next = null;
+		final Node untracked = readRaw(writeRaw(root), Node.class);
+		Assert.assertNotSame(untracked.next, untracked.other);
+		Assert.assertEquals(untracked.next.next.name, untracked.other.next.name);
+		Externalizor.setReferenceTracking(true);
+		try {
+			Assert.assertTrue(writeRaw(root).length < writeRaw(untracked).length);
+		} finally {
+			Externalizor.setReferenceTracking(false);
+		}
+	}
+
+	@Test
+	public void referenceTrackingComponentTest() {
+		final Node root = new Node("root");
+		final Node child = new Node("child");
+		// A cycle through a collection
+		root.children = new ArrayList<>(Arrays.asList(child, null));
+		child.children = new ArrayList<>(Collections.singletonList(root));
+		// A sharing through a map and a field
+		root.byName = new LinkedHashMap<>();
+		root.byName.put("child", child);
+		root.byName.put("again", child);
+		root.next = child;
+
+		Externalizor.setReferenceTracking(true);
+		final byte[] tracked;
+		try {
+			tracked = writeRaw(root);
+		} finally {
+			Externalizor.setReferenceTracking(false);
+		}
+		final Node read = readRaw(tracked, Node.class);
+		final Node readChild = read.children.get(0);
+		Assert.assertEquals("child", readChild.name);
+		Assert.assertNull(read.children.get(1));
+		Assert.assertSame(read, readChild.children.get(0));
+		Assert.assertSame(readChild, read.byName.get("child"));
+		Assert.assertSame(readChild, read.byName.get("again"));
+		Assert.assertSame(readChild, read.next);
+
+		// Without the cycle, the objects are copied
+		child.children = null;
+		final Node untracked = readRaw(writeRaw(root), Node.class);
+		Assert.assertEquals("child", untracked.byName.get("again").name);
+		Assert.assertNotSame(untracked.byName.get("child"), untracked.byName.get("again"));
+	}
+
+	@Test
+	public void registeredClassTest() {
+		final Shapes shapes = Shapes.create();
+		// Not registered: the Java serialization
+		final byte[] serialized = writeRaw(shapes);
+		Assert.assertEquals(shapes, readRaw(serialized, Shapes.class));
+
+		Externalizor.register(Shapes.Circle.class, 150);
+		Externalizor.register(Shapes.Square.class, 151);
+		// Registering again with the same id is allowed
+		Externalizor.register(Shapes.Circle.class, 150);
+		final byte[] registered = writeRaw(shapes);
+		Assert.assertTrue(registered.length < serialized.length);
+		Assert.assertEquals(shapes, readRaw(registered, Shapes.class));
+		Assert.assertEquals(shapes, readCompressed(writeCompressed(shapes), Shapes.class));
+		// The values written before the registration are still read
+		Assert.assertEquals(shapes, readRaw(serialized, Shapes.class));
+
+		// Any ObjectOutput
+		final Externalizer<Shapes, Shapes> externalizer = Externalizor.of(Shapes.class);
+		Assert.assertEquals(shapes, read(externalizer, write(externalizer, shapes)));
+
+		try {
+			Externalizor.register(Shapes.Square.class, 150);
+			Assert.fail("The exception is not thrown");
+		} catch (ExternalizorException e) {
+			Assert.assertTrue(e.getMessage().contains("already used"));
+		}
+		try {
+			Externalizor.register(Shapes.Shape.class, 152);
+			Assert.fail("The exception is not thrown");
+		} catch (ExternalizorException e) {
+			Assert.assertTrue(e.getMessage().contains("concrete"));
+		}
+	}
+
+	@Test
+	public void errorNotSerializableInterfaceTest() {
+		checkError(new Shapes.Unsupported(), e -> e.getMessage().contains(Runnable.class.getName()));
+	}
+
+	@Test
+	public void versionedTest() {
+		final Versions.V1 v1 = new Versions.V1("first", 12);
+
+		// Same schema
+		final Versions.V1 sameV1 = readRaw(writeRaw(v1), Versions.V1.class);
+		Assert.assertEquals("first", sameV1.name);
+		Assert.assertEquals(12, sameV1.count);
+		Assert.assertEquals(Thread.State.RUNNABLE, sameV1.removed);
+		Assert.assertEquals("first", sameV1.comment);
+		Assert.assertEquals(new NoEmptyConstructorSerial("first"), sameV1.serialized);
+
+		// A field removed, two fields added
+		final Versions.V2 v2 = readRaw(writeRaw(v1), Versions.V2.class);
+		Assert.assertEquals("first", v2.name);
+		Assert.assertEquals(12, v2.count);
+		Assert.assertEquals("first", v2.comment);
+		Assert.assertEquals(1.5, v2.added, 0);
+		Assert.assertTrue(v2.tags.isEmpty());
+
+		// And back
+		final Versions.V1 backV1 = readCompressed(writeCompressed(new Versions.V2("second", 7)), Versions.V1.class);
+		Assert.assertEquals("second", backV1.name);
+		Assert.assertEquals(7, backV1.count);
+		Assert.assertEquals("second", backV1.comment);
+		Assert.assertNull(backV1.removed);
+
+		// The state of the stream is kept when the values are skipped
+		final Versions.Holder1 holder = new Versions.Holder1();
+		holder.before = "shared";
+		holder.value = new Versions.V1("shared", 3);
+		holder.after = "shared";
+		// The Java serialization of the skipped value does not share the stream of the holder
+		holder.last = new NoEmptyConstructorSerial("last");
+		Externalizor.setStringTableSize(100);
+		Externalizor.setReferenceTracking(true);
+		final byte[] bytes;
+		try {
+			bytes = writeRaw(holder);
+		} finally {
+			Externalizor.setStringTableSize(0);
+			Externalizor.setReferenceTracking(false);
+		}
+		final Versions.Holder2 holder2 = readRaw(bytes, Versions.Holder2.class);
+		Assert.assertEquals("shared", holder2.before);
+		Assert.assertEquals("shared", holder2.value.name);
+		Assert.assertEquals(3, holder2.value.count);
+		Assert.assertSame(holder2.before, holder2.after);
+		Assert.assertEquals(holder.last, holder2.last);
+
+		// Any ObjectOutput: no tags, the schema must match
+		final Externalizer<Versions.V1, Versions.V1> externalizer = Externalizor.of(Versions.V1.class);
+		Assert.assertEquals("first", read(externalizer, write(externalizer, v1)).name);
+	}
+
+	@Test
+	public void nullBitmapTest() throws IOException, ReflectiveOperationException {
+		final SimpleLang lang = new SimpleLang();
+		final byte[] withFlags = writeRaw(lang);
+		final byte[] withBitmap;
+		final ByteArrayOutputStream records = new ByteArrayOutputStream();
+		Externalizor.setNullBitmap(true);
+		try {
+			withBitmap = writeRaw(lang);
+			try (final ExternalizorWriter writer = new ExternalizorWriter(records)) {
+				writer.write(lang);
+			}
+			Assert.assertTrue(withBitmap.length < withFlags.length);
+			Assert.assertEquals(lang, readRaw(withBitmap, SimpleLang.class));
+			classTest(new SimpleLang());
+			classTest(new SimpleTime());
+			classTest(new SimpleCollection());
+			classTest(new ComplexExample());
+			classTest(new AbstractProperty("Test"));
+			classTest(Shapes.create());
+
+			// Nested bitmaps, with the references and a versioned object
+			final Node root = new Node("root");
+			root.next = new Node("next");
+			root.other = root.next;
+			root.leaf = new Node.Leaf(null);
+			Externalizor.setReferenceTracking(true);
+			final Node read;
+			try {
+				read = readRaw(writeRaw(root), Node.class);
+			} finally {
+				Externalizor.setReferenceTracking(false);
+			}
+			Assert.assertSame(read.next, read.other);
+			Assert.assertNull(read.next.next);
+			Assert.assertNull(read.leaf.value);
+			Assert.assertNull(read.otherLeaf);
+			final Versions.Holder1 holder = new Versions.Holder1();
+			holder.value = new Versions.V1("versioned", 1);
+			holder.after = "after";
+			final Versions.Holder2 holder2 = readRaw(writeRaw(holder), Versions.Holder2.class);
+			Assert.assertNull(holder2.before);
+			Assert.assertEquals("versioned", holder2.value.name);
+			Assert.assertEquals("after", holder2.after);
+			// The reader uses the mode of the writer
+			Assert.assertEquals(lang, readRaw(withFlags, SimpleLang.class));
+		} finally {
+			Externalizor.setNullBitmap(false);
+		}
+		Assert.assertEquals(lang, readRaw(withBitmap, SimpleLang.class));
+		try (final ExternalizorReader reader = new ExternalizorReader(
+				new ByteArrayInputStream(records.toByteArray()))) {
+			Assert.assertEquals(lang, reader.read());
+		}
+	}
+
+	@Test
+	public void sizedCollectionTest() throws ReflectiveOperationException {
+		Assert.assertEquals(HashMap.class, Instantiator.sized(HashMap.class).newInstance(100_000).getClass());
+		Assert.assertEquals(ArrayList.class, Instantiator.sized(ArrayList.class).newInstance(0).getClass());
+		// Without a capacity constructor, the empty constructor is used
+		Assert.assertEquals(TreeMap.class, Instantiator.sized(TreeMap.class).newInstance(10).getClass());
+		classTest(new BigCollections(100_000));
+		classTest(new BigCollections(0));
+	}
+
+	@Test
+	public void bulkCollectionTest() {
+		final SortedCollections sorted = new SortedCollections(10_000);
+		final SortedCollections read = classTest(sorted);
+		Assert.assertEquals(TreeMap.class, read.navigableMap.getClass());
+		Assert.assertEquals(TreeSet.class, read.sortedSet.getClass());
+		// The trees built from the sorted runs are searchable
+		for (final Map.Entry<Integer, String> entry : sorted.navigableMap.entrySet())
+			Assert.assertEquals(entry.getValue(), read.navigableMap.get(entry.getKey()));
+		for (final Long value : sorted.skipListSet)
+			Assert.assertTrue(read.skipListSet.contains(value));
+		Assert.assertEquals(sorted.treeMap.lastEntry(), read.treeMap.lastEntry());
+		// The reversed map is read in the natural order
+		Assert.assertEquals(sorted.reversed.firstKey(), read.reversed.lastKey());
+		classTest(new SortedCollections(0));
+		classTest(new SortedCollections(1));
+	}
+
+	@Test
+	public void columnarMapTest() {
+		final ColumnarMaps maps = new ColumnarMaps(10_000);
+		final ColumnarMaps read = classTest(maps);
+		Assert.assertEquals(LinkedHashMap.class, read.charBoolean.getClass());
+		// The insertion order is kept
+		Assert.assertEquals(new ArrayList<>(maps.charBoolean.keySet()), new ArrayList<>(read.charBoolean.keySet()));
+		classTest(new ColumnarMaps(0));
+		classTest(new ColumnarMaps(1));
+	}
+
+	@Test
+	public void columnarCollectionTest() {
+		final ColumnarCollections collections = new ColumnarCollections(1_000);
+		final ColumnarCollections read = classTest(collections);
+		Assert.assertEquals(LinkedHashSet.class, read.pointSet.getClass());
+		Assert.assertNull(read.points.get(0));
+		classTest(new ColumnarCollections(0));
+		classTest(new ColumnarCollections(1));
+		Externalizor.setNullBitmap(true);
+		Externalizor.setVarInts(true);
+		try {
+			classTest(collections);
+		} finally {
+			Externalizor.setVarInts(false);
+			Externalizor.setNullBitmap(false);
+		}
+		// The elements must be of the declared class
+		try {
+			Externalizor.of(ColumnarCollections.Abstract.class);
+			Assert.fail("ExternalizorException not thrown");
+		} catch (ExternalizorException e) {
+			Assert.assertTrue(e.getMessage().contains("columnar"));
+		}
+	}
+
+	@Test
+	public void parallelCompressionTest() {
+		final SimplePrimitive primitive = new SimplePrimitive();
+		primitive.longArray = new long[300_001];
+		primitive.doubleArray = new double[300_000];
+		for (int i = 0; i < primitive.longArray.length; i++)
+			primitive.longArray[i] = (long) i * i;
+		for (int i = 0; i < primitive.doubleArray.length; i++)
+			primitive.doubleArray[i] = i / 7d;
+		primitive.byteArray = new byte[ChunkedSnappy.CHUNK_SIZE * 2 + 1];
+		final Externalizer<SimplePrimitive, SimplePrimitive> externalizer = Externalizor.of(SimplePrimitive.class);
+		final byte[] plain = writeRaw(primitive);
+		final byte[] chunked;
+		final ForkJoinPool pool = new ForkJoinPool(2);
+		Externalizor.setParallelCompression(ChunkedSnappy.CHUNK_SIZE);
+		try {
+			chunked = writeRaw(primitive);
+			classTest(primitive);
+			classTest(new BigCollections(300_000));
+			// Any ObjectOutput, with a smaller pool
+			Externalizor.setCompressionPool(pool);
+			Assert.assertEquals(primitive, read(externalizer, write(externalizer, primitive)));
+			Externalizor.setVarInts(true);
+			classTest(primitive);
+		} finally {
+			Externalizor.setVarInts(false);
+			Externalizor.setParallelCompression(0);
+			Externalizor.setCompressionPool(ForkJoinPool.commonPool());
+			pool.shutdown();
+		}
+		Assert.assertFalse(Arrays.equals(plain, chunked));
+		// The chunks are read whatever the setting
+		Assert.assertEquals(primitive, readRaw(chunked, SimplePrimitive.class));
+	}
+
+	@Test
+	public void primitiveBlockTest() {
+		final Externalizer<SimplePrimitive, SimplePrimitive> externalizer = Externalizor.of(SimplePrimitive.class);
+		// Any ObjectOutput receives the fields in declaration order, without the block
+		final SimplePrimitive primitive = new SimplePrimitive();
+		Assert.assertEquals(primitive, read(externalizer, write(externalizer, primitive)));
+		classTest(new SimplePrimitive());
+		classTest(new Counters());
+		// Without a fixed size, the fields of the block are written one by one
+		Externalizor.setVarInts(true);
+		try {
+			classTest(new SimplePrimitive());
+			classTest(new Counters());
+		} finally {
+			Externalizor.setVarInts(false);
+		}
+	}
+
+	@Test
+	public void varIntsTest() throws IOException, ReflectiveOperationException {
+		final Counters counters = new Counters();
+		counters.offset = Long.MIN_VALUE;
+		final byte[] fixed = writeRaw(counters);
+		Assert.assertEquals(counters, readRaw(fixed, Counters.class));
+		final byte[] variable;
+		final ByteArrayOutputStream records = new ByteArrayOutputStream();
+		Externalizor.setVarInts(true);
+		try {
+			variable = writeRaw(counters);
+			try (final ExternalizorWriter writer = new ExternalizorWriter(records)) {
+				writer.write(counters);
+			}
+			Assert.assertTrue(variable.length < fixed.length);
+			Assert.assertEquals(counters, readRaw(variable, Counters.class));
+			// The reader uses the encoding of the writer
+			Assert.assertEquals(counters, readRaw(fixed, Counters.class));
+			classTest(new SimplePrimitive());
+			classTest(new SimpleLang());
+			classTest(new SimpleTime());
+			classTest(new SimpleCollection());
+			classTest(new ComplexExample());
+			classTest(Shapes.create());
+		} finally {
+			Externalizor.setVarInts(false);
+		}
+		Assert.assertEquals(counters, readRaw(variable, Counters.class));
+		try (final ExternalizorReader reader = new ExternalizorReader(
+				new ByteArrayInputStream(records.toByteArray()))) {
+			Assert.assertEquals(counters, reader.read());
+		}
+		// The annotation applies to the int and long fields only
+		try {
+			Externalizor.warmup(Counters.Invalid.class);
+			Assert.fail("The exception is not thrown");
+		} catch (ExternalizorException e) {
+			Assert.assertTrue(e.getMessage().contains("VarInt"));
+		}
+	}
+
+	@Test
+	public void warmupTest() throws IOException, ReflectiveOperationException {
+		Externalizor.warmup(SimpleLang.class, SimplePrimitive.class, ComplexExample.class);
+		Assert.assertEquals(0, Externalizor.warmupLayouts());
+		Externalizor.warmup(Arrays.asList(new SimpleLang(), new SimpleCollection(), new ComplexExample()), 10);
+		// The unsupported classes are detected by the warm-up
+		try {
+			Externalizor.warmup(NoEmptyConstructor.class);
+			Assert.fail("The exception is not thrown");
+		} catch (ExternalizorException e) {
+			Assert.assertTrue(e.getMessage().contains(NoEmptyConstructor.class.getName()));
+		}
+	}
+
+	@Test
+	public void writerReaderTest() throws IOException, ReflectiveOperationException {
+		final List<Object> objects = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			objects.add(new SimpleLang());
+			objects.add(new SimplePrimitive());
+			objects.add(new NoEmptyConstructorSerial("Test" + i));
+			objects.add(new ComplexExample());
+		}
+		long separateSize = 0;
+		for (final Object object : objects)
+			separateSize += writeCompressed(object).length;
+
+		for (final boolean compress : new boolean[] { true, false }) {
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try (final ExternalizorWriter writer = new ExternalizorWriter(bos, compress)) {
+				for (final Object object : objects)
+					writer.write(object);
+			}
+			if (compress)
+				Assert.assertTrue(bos.size() < separateSize);
+
+			try (final ExternalizorReader reader = new ExternalizorReader(new ByteArrayInputStream(bos.toByteArray()),
+					compress)) {
+				final List<Object> read = new ArrayList<>();
+				reader.forEach(read::add);
+				Assert.assertEquals(objects, read);
+			}
+			try (final ExternalizorReader reader = new ExternalizorReader(new ByteArrayInputStream(bos.toByteArray()),
+					compress)) {
+				Assert.assertEquals(objects.size() / 4,
+						reader.stream().filter(o -> o.getClass() == SimpleLang.class).count());
+				Assert.assertNull(reader.read());
+			}
+		}
+	}
+
+	private static void assertCorrupted(final byte[] bytes) throws IOException, ReflectiveOperationException {
+		try (final ExternalizorReader reader = new ExternalizorReader(new ByteArrayInputStream(bytes), false)) {
+			reader.read();
+			Assert.fail("StreamCorruptedException not thrown");
+		} catch (StreamCorruptedException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void corruptedReaderTest() throws IOException, ReflectiveOperationException {
+		final byte[] negative = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F };
+		// A negative class id
+		final ByteArrayOutputStream classId = new ByteArrayOutputStream();
+		classId.write(ExternalizorWriter.VERSION);
+		classId.write(negative);
+		assertCorrupted(classId.toByteArray());
+		// A negative length
+		final ByteArrayOutputStream length = new ByteArrayOutputStream();
+		try (final DataOutputStream output = new DataOutputStream(length)) {
+			output.write(ExternalizorWriter.VERSION);
+			output.write(0);
+			output.writeUTF(SimpleLang.class.getName());
+			output.write(negative);
+		}
+		assertCorrupted(length.toByteArray());
+	}
+
+	@Test
+	public void poolTest() {
+		final ComplexExample object = new ComplexExample();
+		classTest(object);
+		readCompressed(writeCompressed(object, Codec.DEFLATE), ComplexExample.class);
+		final Map<String, Long> reused = new HashMap<>();
+		for (final PoolStats stats : Externalizor.getPoolStats())
+			reused.put(stats.getName(), stats.getReused());
+		for (int i = 0; i < 10; i++) {
+			classTest(object);
+			readCompressed(writeCompressed(object, Codec.DEFLATE), ComplexExample.class);
+		}
+		for (final PoolStats stats : Externalizor.getPoolStats())
+			Assert.assertTrue(stats.toString(), stats.getReused() >= reused.get(stats.getName()) + 10);
+	}
+
+	@Test
+	public void generatedExternalizerTest() {
+		final ClassExternalizer<ComplexExample> externalizer = ClassExternalizer.of(ComplexExample.class);
+		Assert.assertTrue(externalizer instanceof ClassExternalizer.RootExternalizer);
+		Assert.assertTrue(((ClassExternalizer.RootExternalizer) externalizer).fields instanceof GeneratedExternalizer);
+		testExternalizer(externalizer, new ComplexExample());
+	}
+
+	@Test
+	public void bytesOutputInputTest() throws IOException, ClassNotFoundException {
+		final BytesOutput out = new BytesOutput(1);
+		out.writeInt(-123456);
+		out.writeObject(new NoEmptyConstructorSerial("first"));
+		out.writeUTF("ascii");
+		out.writeUTF("\u00e9€\u0000");
+		out.writeLong(Long.MIN_VALUE);
+		out.writeObject(new NoEmptyConstructorSerial("second"));
+		out.writeDouble(Math.PI);
+		out.writeChar('€');
+		out.writeBoolean(true);
+
+		// The same encoding than the DataOutput
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (final DataOutputStream data = new DataOutputStream(bos)) {
+			data.writeUTF("\u00e9€\u0000");
+			data.writeLong(Long.MIN_VALUE);
+		}
+		final BytesOutput expected = new BytesOutput();
+		expected.writeUTF("\u00e9€\u0000");
+		expected.writeLong(Long.MIN_VALUE);
+		Assert.assertArrayEquals(bos.toByteArray(), expected.toByteArray());
+
+		final BytesInput in = new BytesInput(out.toByteArray());
+		Assert.assertEquals(-123456, in.readInt());
+		Assert.assertEquals(new NoEmptyConstructorSerial("first"), in.readObject());
+		Assert.assertEquals("ascii", in.readUTF());
+		Assert.assertEquals("\u00e9€\u0000", in.readUTF());
+		Assert.assertEquals(Long.MIN_VALUE, in.readLong());
+		Assert.assertEquals(new NoEmptyConstructorSerial("second"), in.readObject());
+		Assert.assertEquals(Math.PI, in.readDouble(), 0);
+		Assert.assertEquals('€', in.readChar());
+		Assert.assertTrue(in.readBoolean());
+		Assert.assertEquals(0, in.available());
+		try {
+			in.readByte();
+			Assert.fail("The exception is not thrown");
+		} catch (EOFException e) {
+		}
+	}
+
+	@Test
+	public void instantiateWithoutConstructorTest() {
+		Assert.assertTrue(ClassExternalizer.of(
+				NoEmptyConstructorSerial.class) instanceof ClassExternalizer.SerializableExternalizer);
+		Externalizor.setInstantiateWithoutConstructor(true);
+		try {
+			final ClassExternalizer<NoEmptyConstructorSerial> externalizer =
+					ClassExternalizer.of(NoEmptyConstructorSerial.class);
+			Assert.assertTrue(externalizer instanceof ClassExternalizer.RootExternalizer);
+			testExternalizer(externalizer, new NoEmptyConstructorSerial("Test"));
+		} finally {
+			Externalizor.setInstantiateWithoutConstructor(false);
+		}
+	}
+
 	final static <T extends Serializable> byte[] write(final Externalizer<T, T> externalizer, final T object) {
 		try (final ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
 			try (final ObjectOutputStream objected = new ObjectOutputStream(bos)) {
@@ -185,6 +1129,40 @@ public class ExternalizerTest {
 		Assert.assertEquals(write, read);
 	}
 
+	private static byte[] baseline(final Class<?> clazz, final String suffix) throws IOException {
+		try (final InputStream input = ExternalizerTest.class.getResourceAsStream(
+				"baseline/" + clazz.getSimpleName() + suffix)) {
+			Assert.assertNotNull(input);
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int n;
+			while ((n = input.read(buffer)) != -1)
+				output.write(buffer, 0, n);
+			return output.toByteArray();
+		}
+	}
+
+	/**
+	 * The objects written by the versions using an ObjectOutputStream (1.3.2), compared with the same objects
+	 * written by the Java serialization
+	 */
+	@Test
+	public void baselineTest() throws IOException, ReflectiveOperationException {
+		for (final Class<?> clazz : Arrays.asList(SimplePrimitive.class, SimpleLang.class, SimpleCollection.class,
+				SimpleTime.class, ComplexExample.class)) {
+			final Object expected;
+			try (final ObjectInputStream input = new ObjectInputStream(
+					new ByteArrayInputStream(baseline(clazz, ".ser")))) {
+				expected = input.readObject();
+			}
+			Assert.assertEquals(expected, readRaw(baseline(clazz, ".raw.bin"), clazz));
+			Assert.assertEquals(expected, readCompressed(baseline(clazz, ".gz.bin"), clazz));
+			final ByteBuffer buffer = ByteBuffer.wrap(baseline(clazz, ".raw.bin"));
+			Assert.assertEquals(expected, Externalizor.deserializeRaw(buffer, clazz));
+			Assert.assertFalse(buffer.hasRemaining());
+		}
+	}
+
 	@Test
 	public void externalizersTest() {
 
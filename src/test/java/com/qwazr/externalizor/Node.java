@@ -0,0 +1,53 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A graph node, which can be shared or part of a cycle
+ */
+public class Node {
+
+	public String name;
+	public Node next;
+	public Node other;
+	public Leaf leaf;
+	public Leaf otherLeaf;
+	public List<Node> children;
+	public Map<String, Node> byName;
+
+	public Node() {
+	}
+
+	public Node(final String name) {
+		this.name = name;
+	}
+
+	@Acyclic
+	public static class Leaf {
+
+		public String value;
+
+		public Leaf() {
+		}
+
+		public Leaf(final String value) {
+			this.value = value;
+		}
+	}
+}
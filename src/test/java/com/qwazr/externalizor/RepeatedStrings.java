@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.apache.commons.lang3.RandomUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Objects;
+
+public class RepeatedStrings implements Serializable {
+
+	final static String[] COUNTRIES = { "FR", "US", "DE", "GB", "JP" };
+	final static String[] STATUS = { "PENDING", "ACCEPTED", "REJECTED" };
+
+	public String country;
+	public String status;
+	public ArrayList<String> countries;
+	public HashMap<String, String> statusById;
+
+	public RepeatedStrings() {
+		country = COUNTRIES[RandomUtils.nextInt(0, COUNTRIES.length)];
+		status = STATUS[RandomUtils.nextInt(0, STATUS.length)];
+		countries = new ArrayList<>();
+		for (int i = 0; i < RandomUtils.nextInt(50, 100); i++)
+			countries.add(i % 10 == 0 ? null : COUNTRIES[RandomUtils.nextInt(0, COUNTRIES.length)]);
+		statusById = new HashMap<>();
+		for (int i = 0; i < RandomUtils.nextInt(50, 100); i++)
+			statusById.put("id" + i, STATUS[RandomUtils.nextInt(0, STATUS.length)]);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == null || !(o instanceof RepeatedStrings))
+			return false;
+		final RepeatedStrings s = (RepeatedStrings) o;
+		return Objects.equals(country, s.country) && Objects.equals(status, s.status) &&
+				Objects.equals(countries, s.countries) && Objects.equals(statusById, s.statusById);
+	}
+}
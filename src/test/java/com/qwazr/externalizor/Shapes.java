@@ -0,0 +1,119 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Fields declared with an interface
+ */
+public class Shapes implements Serializable {
+
+	public interface Shape extends Serializable {
+	}
+
+	public static class Circle implements Shape {
+
+		public double radius;
+
+		public Circle() {
+		}
+
+		public Circle(final double radius) {
+			this.radius = radius;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof Circle && ((Circle) o).radius == radius;
+		}
+
+		@Override
+		public int hashCode() {
+			return Double.hashCode(radius);
+		}
+	}
+
+	public static class Square implements Shape {
+
+		public String name;
+		public int side;
+
+		public Square() {
+		}
+
+		public Square(final String name, final int side) {
+			this.name = name;
+			this.side = side;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Square))
+				return false;
+			final Square s = (Square) o;
+			return Objects.equals(name, s.name) && side == s.side;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(name, side);
+		}
+	}
+
+	public Shape shape;
+	public Serializable any;
+	public List<Shape> list;
+	public Map<String, Shape> map;
+
+	public Shapes() {
+	}
+
+	/**
+	 * A field declared with an interface which is not Serializable
+	 */
+	public static class Unsupported {
+
+		public Runnable task;
+	}
+
+	public static Shapes create() {
+		final Shapes shapes = new Shapes();
+		shapes.shape = new Circle(1.5);
+		shapes.any = new Square("any", 3);
+		shapes.list = new ArrayList<>();
+		shapes.map = new LinkedHashMap<>();
+		for (int i = 0; i < 10; i++) {
+			shapes.list.add(i % 2 == 0 ? new Circle(i) : new Square("square" + i, i));
+			shapes.map.put("key" + i, i % 3 == 0 ? new Square("value" + i, i) : new Circle(i));
+		}
+		return shapes;
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (!(o instanceof Shapes))
+			return false;
+		final Shapes s = (Shapes) o;
+		return Objects.equals(shape, s.shape) && Objects.equals(any, s.any) && Objects.equals(list, s.list) &&
+				Objects.equals(map, s.map);
+	}
+}
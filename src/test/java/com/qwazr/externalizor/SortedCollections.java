@@ -0,0 +1,98 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import org.apache.commons.lang3.RandomUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Collections whose add is expensive: copy-on-write and sorted
+ */
+public class SortedCollections implements Serializable {
+
+	public CopyOnWriteArrayList<String> cowList;
+	public CopyOnWriteArraySet<Integer> cowSet;
+	public CopyOnWriteArrayList<Long> cowLongs;
+	public TreeSet<String> treeSet;
+	public SortedSet<Integer> sortedSet;
+	public ConcurrentSkipListSet<Long> skipListSet;
+	public TreeMap<String, Integer> treeMap;
+	public NavigableMap<Integer, String> navigableMap;
+	public ConcurrentSkipListMap<Integer, String> skipListMap;
+	public TreeMap<String, String> reversed;
+
+	public SortedCollections() {
+		this(RandomUtils.nextInt(5, 50));
+	}
+
+	public SortedCollections(final int size) {
+		treeSet = new TreeSet<>();
+		sortedSet = new TreeSet<>();
+		skipListSet = new ConcurrentSkipListSet<>();
+		treeMap = new TreeMap<>();
+		navigableMap = new TreeMap<>();
+		skipListMap = new ConcurrentSkipListMap<>();
+		// Written in the reverse order, read in the natural order
+		reversed = new TreeMap<>(Comparator.reverseOrder());
+		final String[] strings = new String[size];
+		final Long[] longs = new Long[size];
+		for (int i = 0; i < size; i++) {
+			final int key = RandomUtils.nextInt();
+			final String value = Integer.toString(key);
+			strings[i] = value;
+			longs[i] = i % 10 == 0 ? null : RandomUtils.nextLong();
+			treeSet.add(value);
+			sortedSet.add(key);
+			skipListSet.add(RandomUtils.nextLong());
+			treeMap.put(value, i);
+			navigableMap.put(key, value);
+			skipListMap.put(key, value);
+			reversed.put(value, value);
+		}
+		cowList = new CopyOnWriteArrayList<>(strings);
+		cowLongs = new CopyOnWriteArrayList<>(longs);
+		// A copy-on-write set checks each element against the others
+		final List<Integer> integers = new ArrayList<>();
+		for (int i = 0; i < Math.min(size, 1000); i++)
+			integers.add(i);
+		cowSet = new CopyOnWriteArraySet<>(integers);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (!(o instanceof SortedCollections))
+			return false;
+		final SortedCollections s = (SortedCollections) o;
+		return Objects.equals(cowList, s.cowList) && Objects.equals(cowSet, s.cowSet) &&
+				Objects.equals(cowLongs, s.cowLongs) && Objects.equals(treeSet, s.treeSet) &&
+				Objects.equals(sortedSet, s.sortedSet) && Objects.equals(skipListSet, s.skipListSet) &&
+				Objects.equals(treeMap, s.treeMap) && Objects.equals(navigableMap, s.navigableMap) &&
+				Objects.equals(skipListMap, s.skipListMap) && Objects.equals(reversed, s.reversed);
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.externalizor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Two versions of the same class: two fields have been removed, two fields have been added
+ */
+public class Versions {
+
+	@Versioned
+	public static class V1 implements Serializable {
+
+		public String name;
+		public int count;
+		public Thread.State removed;
+		public String comment;
+		public NoEmptyConstructorSerial serialized;
+
+		public V1() {
+		}
+
+		public V1(final String name, final int count) {
+			this.name = name;
+			this.count = count;
+			this.removed = Thread.State.RUNNABLE;
+			this.comment = name;
+			this.serialized = new NoEmptyConstructorSerial(name);
+		}
+	}
+
+	@Versioned
+	public static class V2 implements Serializable {
+
+		public String name;
+		public double added = 1.5;
+		public int count;
+		public String comment;
+		public List<String> tags = new ArrayList<>();
+
+		public V2() {
+		}
+
+		public V2(final String name, final int count) {
+			this.name = name;
+			this.count = count;
+			this.added = 2.5;
+			this.comment = name;
+			this.tags.add(name);
+		}
+	}
+
+	public static class Holder1 {
+
+		public String before;
+		public V1 value;
+		public String after;
+		public NoEmptyConstructorSerial last;
+	}
+
+	public static class Holder2 {
+
+		public String before;
+		public V2 value;
+		public String after;
+		public NoEmptyConstructorSerial last;
+	}
+}